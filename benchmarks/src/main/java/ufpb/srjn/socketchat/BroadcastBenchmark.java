@@ -0,0 +1,87 @@
+package ufpb.srjn.socketchat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of one ServerApplication.sendGlobally call against the number of
+ * connected clients. Clients are in-memory stand-ins whose writer encodes each
+ * queued frame and hands it to a blackhole, so the numbers cover registry
+ * iteration, queueing and encoding, but not the socket itself.
+ *
+ * @author samuel
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+
+	/**
+	 * A client with no socket; its writer runs inline and discards the bytes.
+	 */
+	static final class SinkClient extends ClientInstance {
+		private final Blackhole sink;
+
+		SinkClient(String username, int protocol, Blackhole sink) {
+			this.username = username;
+			this.protocol = protocol;
+			this.sink = sink;
+		}
+
+		@Override
+		protected void signalWriter() {
+			Frame frame;
+			while ((frame = outbound.poll()) != null) {
+				sink.consume(frame.encode(protocol));
+			}
+		}
+
+		@Override
+		protected void abort() {
+			outbound.clear();
+		}
+	}
+
+	// Connected client count
+	@Param({"1", "10", "100", "1000"})
+	public int clients;
+
+	// Protocol spoken by the clients; "mixed" alternates between versions
+	@Param({"1", "2", "mixed"})
+	public String protocol;
+
+	private final List<SinkClient> registered = new ArrayList<>();
+	private String message;
+
+	@Setup
+	public void setup(Blackhole sink) {
+		Authenticator.setPassword("benchmark");
+		message = "/127.0.0.1:50000/~someone: a typical chat message of a typical length " + TimestampClock.now();
+
+		for (int i = 0; i < clients; i++) {
+			int version = "mixed".equals(protocol) ? (i % 2 == 0 ? Protocol.V1 : Protocol.V2) : Integer.parseInt(protocol);
+			SinkClient client = new SinkClient("user" + i, version, sink);
+			ServerApplication.registerClient(client);
+			registered.add(client);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (SinkClient client : registered) {
+			ServerApplication.removeClient(client);
+		}
+		registered.clear();
+	}
+
+	@Benchmark
+	public void sendGlobally() {
+		ServerApplication.sendGlobally(message);
+	}
+}
@@ -0,0 +1,86 @@
+package ufpb.srjn.socketchat;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cipher throughput per message size, for both wire protocols and for AES-GCM
+ * group keys. Each encrypt builds a fresh Frame so the per-frame encoding
+ * cache never kicks in.
+ *
+ * @author samuel
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CipherBenchmark {
+
+	// Message size in characters
+	@Param({"16", "256", "4096", "65536"})
+	public int size;
+
+	// Plain message and its encrypted forms
+	private String message;
+	private Frame.Encoding v1;
+	private Frame.Encoding v2;
+	private GroupKey group_key;
+	private Frame.Encoding gcm;
+
+	@Setup
+	public void setup() {
+		Authenticator.setPassword("benchmark");
+
+		StringBuilder builder = new StringBuilder(size);
+		for (int i = 0; i < size; i++) {
+			builder.append((char) ('a' + i % 26));
+		}
+		message = builder.toString();
+
+		// v1 frames can't hold 64 KB of Base64; those runs report the v2 numbers only.
+		v1 = Frame.of(message).encode(Protocol.V1);
+		v2 = Frame.of(message).encode(Protocol.V2);
+		group_key = GroupKey.generate();
+		gcm = encryptGroup();
+	}
+
+	@Benchmark
+	public Frame.Encoding encryptV1() {
+		return Frame.of(message).encode(Protocol.V1);
+	}
+
+	@Benchmark
+	public Frame.Encoding encryptV2() {
+		return Frame.of(message).encode(Protocol.V2);
+	}
+
+	@Benchmark
+	public String decryptV1() {
+		// Skip the two-byte writeUTF length.
+		return v1 == null ? null : Authenticator.decrypt(v1.bytes, v1.offset + 2, v1.length() - 2);
+	}
+
+	@Benchmark
+	public String decryptV2() throws GeneralSecurityException {
+		// Skip the varint length and the type byte.
+		int header = Protocol.MAX_HEADER - v2.offset;
+		return Authenticator.decryptRaw(v2.bytes, v2.offset + header, v2.length() - header);
+	}
+
+	@Benchmark
+	public Frame.Encoding encryptGroup() {
+		Frame frame = Frame.of(message);
+		frame.share(group_key);
+		return frame.encodeGroup(false);
+	}
+
+	@Benchmark
+	public byte[] decryptGroup() throws GeneralSecurityException {
+		// Skip the varint length and the type byte.
+		int header = Protocol.MAX_HEADER - gcm.offset;
+		return group_key.open(gcm.bytes, gcm.offset + header, gcm.length() - header);
+	}
+}
@@ -0,0 +1,53 @@
+package ufpb.srjn.socketchat;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Parsing a "send -all" command and formatting the resulting message, with
+ * the in-place tokenizer and with the split/join approach it replaced. Run
+ * with -prof gc to compare the garbage per command.
+ *
+ * @author samuel
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandBenchmark {
+
+	// Command as received from a client
+	@Param({"send -all hello", "send -all hello there, this is a fairly normal chat message of some length"})
+	public String command;
+
+	private final CommandLine line = new CommandLine();
+	private final String origin = "/127.0.0.1:50000/~";
+	private final String username = "someone";
+
+	@Benchmark
+	public String tokenizer() {
+		line.parse(command);
+		if (!line.is(0, "send") || !line.is(1, "-all")) {
+			return null;
+		}
+
+		StringBuilder message = line.scratch().append(origin).append(username).append(": ");
+		line.appendRest(2, message).append(' ').append(TimestampClock.now());
+		return message.toString();
+	}
+
+	@Benchmark
+	public String splitJoin() {
+		String[] words = command.split(" ");
+		if (!"send".equals(words[0]) || !"-all".equals(words[1])) {
+			return null;
+		}
+
+		String message_contents = String.join(" ", Arrays.copyOfRange(words, 2, words.length));
+		return origin + username + ": " + message_contents + " " + LocalDateTime.now();
+	}
+}
@@ -0,0 +1,90 @@
+package ufpb.srjn.socketchat;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Bandwidth against CPU for compressed frames. Each run encodes and decodes a
+ * broadcast-shaped message of random chat words, with and without compression.
+ * The threshold is forced down so even the smallest size is compressed; the
+ * frame sizes on the wire are printed once per trial, to put next to the
+ * throughput numbers.
+ *
+ * @author samuel
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dsocketchat.compress.threshold=1")
+public class CompressionBenchmark {
+
+	// Words typical chat is made of
+	private static final String[] WORDS = {
+		"hey", "you", "the", "and", "what", "is", "that", "ok", "lol", "yeah", "think", "about",
+		"meeting", "tomorrow", "server", "deploy", "broke", "again", "coffee", "later", "sure",
+		"can", "we", "talk", "now", "no", "maybe", "link", "here", "thanks", "build", "tests"
+	};
+
+	// Body size in characters, without the sender and timestamp
+	@Param({"64", "256", "1024", "4096"})
+	public int size;
+
+	// Message and its encodings
+	private String message;
+	private Frame.Encoding plain;
+	private Frame.Encoding compressed;
+
+	@Setup
+	public void setup() {
+		Authenticator.setPassword("benchmark");
+
+		Random random = new Random(size);
+		StringBuilder builder = new StringBuilder("/127.0.0.1:54321/~alice: ");
+		int start = builder.length();
+		while (builder.length() - start < size) {
+			builder.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+		}
+		builder.append(TimestampClock.now());
+		message = builder.toString();
+
+		plain = Frame.of(message).encode(Protocol.V2, false);
+		compressed = Frame.of(message).encode(Protocol.V2, true);
+		System.out.printf("%nsize=%d: %d bytes plain, %d bytes compressed (%.0f%%)%n",
+			size, plain.length(), compressed.length(), 100.0 * compressed.length() / plain.length());
+	}
+
+	@Benchmark
+	public Frame.Encoding encodePlain() {
+		return Frame.of(message).encode(Protocol.V2, false);
+	}
+
+	@Benchmark
+	public Frame.Encoding encodeCompressed() {
+		return Frame.of(message).encode(Protocol.V2, true);
+	}
+
+	@Benchmark
+	public Frame decodePlain() throws GeneralSecurityException, IOException {
+		return decode(plain);
+	}
+
+	@Benchmark
+	public Frame decodeCompressed() throws GeneralSecurityException, IOException {
+		return decode(compressed);
+	}
+
+	/**
+	 * Decodes a frame the way a reader does, skipping its varint length.
+	 */
+	private static Frame decode(Frame.Encoding encoding) throws GeneralSecurityException, IOException {
+		int header = Protocol.MAX_HEADER - 1 - encoding.offset;
+		int code = encoding.bytes[encoding.offset + header] & 0xff;
+		byte[] body = Authenticator.decryptRawBytes(encoding.bytes, encoding.offset + header + 1, encoding.length() - header - 1);
+		return Frame.decodeV2(code, body);
+	}
+}
@@ -0,0 +1,111 @@
+package ufpb.srjn.socketchat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * End-to-end latency over loopback: a client sends a private message to
+ * another client and waits for it to arrive. A real server runs in the
+ * benchmark JVM with the selected engine. Reported as a latency distribution
+ * with percentiles.
+ *
+ * @author samuel
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+
+	// Server engine; "virtual" needs Java 21
+	@Param({"threads", "nio"})
+	public String engine;
+
+	private ClientInstance sender;
+	private ClientInstance receiver;
+
+	@Setup
+	public void setup() throws Exception {
+		int port = freePort();
+		Thread server = new Thread(() -> ServerApplication.main(new String[]{Integer.toString(port), "benchmark", engine}), "benchmark-server");
+		server.setDaemon(true);
+		server.start();
+
+		// Skip everything sent on login, up to each join announcement. The
+		// receiver's own announcement must be out before the sender logs in, or
+		// the sender may or may not get it depending on timing.
+		receiver = connect(port, "receiver");
+		awaitJoin(receiver, "receiver");
+		sender = connect(port, "sender");
+		awaitJoin(receiver, "sender");
+		awaitJoin(sender, "sender");
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		sender.close();
+		receiver.close();
+	}
+
+	@Benchmark
+	public String privateMessage() throws IOException {
+		sender.writeOut("send -user receiver ping");
+
+		// The sender gets its own echo; drain it so its socket never fills up.
+		String message = receiver.readIn();
+		sender.readIn();
+		return message;
+	}
+
+	/**
+	 * Reads frames until the announcement that a user has connected, dropping
+	 * tickets and earlier announcements. The announcement may come on its own
+	 * or folded into a summary with others, so it's matched by name.
+	 */
+	private static void awaitJoin(ClientInstance client, String username) throws IOException {
+		while (true) {
+			Frame frame = client.readFrame();
+			if (frame.getType() == MessageType.TEXT && frame.getText().startsWith("*** ") && frame.getText().contains(username)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Connects a client, retrying while the server is starting.
+	 */
+	private static ClientInstance connect(int port, String username) throws Exception {
+		for (int attempt = 0; ; attempt++) {
+			try {
+				Socket socket = new Socket("127.0.0.1", port);
+				socket.setTcpNoDelay(true);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), ClientInstance.STREAM_BUFFER));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), ClientInstance.STREAM_BUFFER));
+				return new ClientInstance(socket, in, out, username);
+			} catch (IOException ex) {
+				if (attempt == 50) {
+					throw ex;
+				}
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * Finds a port nothing is listening on.
+	 */
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+}
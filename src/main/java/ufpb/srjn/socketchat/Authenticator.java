@@ -1,19 +1,17 @@
 package ufpb.srjn.socketchat;
 
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
-import java.util.Base64;
 import java.util.logging.Logger;
-import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
-import javax.crypto.NoSuchPaddingException;
 
 /**
  *
@@ -22,7 +20,7 @@ import javax.crypto.NoSuchPaddingException;
 public class Authenticator {
 
 	// Logger handle
-	private static final Logger LOGGER = Logger.getLogger(ClientThread.class.getName());
+	private static final Logger LOGGER = Logger.getLogger(Authenticator.class.getName());
 	
 	// Crytography related fields
 	private static String password;
@@ -33,13 +31,25 @@ public class Authenticator {
 	private static KeySpec key_spec;
 	private static SecretKey tmp_key;
 	private static SecretKeySpec secret_key_spec;
-	private static Cipher cipher;
+	
+	// Ciphers are not thread-safe, so every encryption borrows its own from here.
+	private static volatile CipherPool ciphers;
+	
+	// SHA-256 of the password, computed once per password instead of per handshake
+	private static volatile String hashed_password;
+	private static volatile byte[] hashed_password_bytes;
 	
 	/**
 	 * Set a new server password.
 	 * @param password Server password. 
 	 */
-	public static void setPassword(String password) {
+	public static synchronized void setPassword(String password) {
+		// Deriving the key takes 65536 PBKDF2 rounds; skip it when nothing changed,
+		// so reconnecting with the same password is cheap.
+		if (password.equals(Authenticator.password) && ciphers != null) {
+			return;
+		}
+		
 		// Set the password
 		Authenticator.password = password;
 		
@@ -52,8 +62,12 @@ public class Authenticator {
 			key_spec = new PBEKeySpec(password.toCharArray(), salt.getBytes(), 65536, 128);
 			tmp_key = sk_factory.generateSecret(key_spec);
 			secret_key_spec = new SecretKeySpec(tmp_key.getEncoded(), "AES");
-			cipher = Cipher.getInstance("AES/CBC/PKCS5PADDING");
-		} catch (NoSuchAlgorithmException | InvalidKeySpecException | NoSuchPaddingException ex) {
+			ciphers = new CipherPool(secret_key_spec, iv_spec);
+			
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(password.getBytes(StandardCharsets.UTF_8));
+			hashed_password = bytesToHex(hash);
+			hashed_password_bytes = hashed_password.getBytes(StandardCharsets.US_ASCII);
+		} catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
 			throw new RuntimeException("Error during encryption algorithm setup: " + ex.getMessage());
 		}
 	}
@@ -63,13 +77,25 @@ public class Authenticator {
 	 * @return Hashed password. 
 	 */
 	public static String getHashedPassword() {
-		try {
-			MessageDigest digest = MessageDigest.getInstance("SHA-256");
-			byte[] encoded_hash = digest.digest(password.getBytes(StandardCharsets.UTF_8));
-			return bytesToHex(encoded_hash);
-		} catch (NoSuchAlgorithmException ex) {
-			throw new RuntimeException("SHA-256 is unsupported: " + ex.getMessage());
-		}
+		return hashed_password;
+	}
+	
+	/**
+	 * Returns the password-derived key, which session key agreements are bound to.
+	 * @return Copy of the key bytes.
+	 */
+	static byte[] getKeyBytes() {
+		return secret_key_spec.getEncoded();
+	}
+	
+	/**
+	 * Checks a hash sent by a client against the server password, in constant
+	 * time so the comparison doesn't leak how much of it matched.
+	 * @param hash Hex hash sent by the client.
+	 * @return True if it matches.
+	 */
+	static boolean matchesHashedPassword(String hash) {
+		return MessageDigest.isEqual(hash.getBytes(StandardCharsets.US_ASCII), hashed_password_bytes);
 	}
 	
 	/**
@@ -97,8 +123,7 @@ public class Authenticator {
 	 */
 	public static String encrypt(String str) {
 		try {
-			cipher.init(Cipher.ENCRYPT_MODE, secret_key_spec, iv_spec);
-			return Base64.getEncoder().encodeToString(cipher.doFinal(str.getBytes("UTF-8")));
+			return new String(encryptToBase64(str, 0), StandardCharsets.US_ASCII);
 		} catch (Exception ex) {
 			System.out.println("Error while encrypting: " + ex.toString());
 			return null;
@@ -111,9 +136,121 @@ public class Authenticator {
 	 * @return Decrypted string. 
 	 */
 	public static String decrypt(String str) {
+		byte[] bytes = str.getBytes(StandardCharsets.US_ASCII);
+		return decrypt(bytes, 0, bytes.length);
+	}
+	
+	/**
+	 * Encrypts a string and Base64-encodes it directly into a new array, without
+	 * any intermediate copies.
+	 * @param str
+	 * @param header Bytes to leave free at the start of the array for framing.
+	 * @return Array with the header space followed by the encrypted text.
+	 * @throws GeneralSecurityException 
+	 */
+	static byte[] encryptToBase64(String str, int header) throws GeneralSecurityException {
+		CipherPool pool = ciphers;
+		CipherPool.Session session = pool.acquire();
+		try {
+			return session.encryptToBase64(str, header);
+		} finally {
+			pool.release(session);
+		}
+	}
+	
+	/**
+	 * Encrypts a string into raw cipher text, with no Base64 step.
+	 * @param str
+	 * @param header Bytes to leave free at the start of the array for framing.
+	 * @return Array with the header space followed by the cipher text.
+	 * @throws GeneralSecurityException 
+	 */
+	static byte[] encryptRaw(String str, int header) throws GeneralSecurityException {
+		CipherPool pool = ciphers;
+		CipherPool.Session session = pool.acquire();
+		try {
+			return session.encryptRaw(str, header);
+		} finally {
+			pool.release(session);
+		}
+	}
+	
+	/**
+	 * Encrypts bytes that are already encoded into raw cipher text.
+	 * @param src Bytes to encrypt.
+	 * @param length How many bytes of src to encrypt, from index 0.
+	 * @param header Bytes to leave free at the start of the array for framing.
+	 * @return Array with the header space followed by the cipher text.
+	 * @throws GeneralSecurityException 
+	 */
+	static byte[] encryptRaw(byte[] src, int length, int header) throws GeneralSecurityException {
+		CipherPool pool = ciphers;
+		CipherPool.Session session = pool.acquire();
+		try {
+			return session.encryptRaw(src, length, header);
+		} finally {
+			pool.release(session);
+		}
+	}
+	
+	/**
+	 * Decrypts raw cipher text straight out of a byte array.
+	 * @param src Array holding the cipher text.
+	 * @param offset Where the cipher text starts.
+	 * @param length Length of the cipher text.
+	 * @return Decrypted string.
+	 * @throws GeneralSecurityException 
+	 */
+	static String decryptRaw(byte[] src, int offset, int length) throws GeneralSecurityException {
+		long started = System.nanoTime();
+		CipherPool pool = ciphers;
+		CipherPool.Session session = pool.acquire();
+		try {
+			return session.decryptRaw(src, offset, length);
+		} finally {
+			pool.release(session);
+			ServerMetrics.decrypted(started);
+		}
+	}
+	
+	/**
+	 * Decrypts raw cipher text into bytes, leaving them undecoded.
+	 * @param src Array holding the cipher text.
+	 * @param offset Where the cipher text starts.
+	 * @param length Length of the cipher text.
+	 * @return Decrypted bytes.
+	 * @throws GeneralSecurityException 
+	 */
+	static byte[] decryptRawBytes(byte[] src, int offset, int length) throws GeneralSecurityException {
+		long started = System.nanoTime();
+		CipherPool pool = ciphers;
+		CipherPool.Session session = pool.acquire();
+		try {
+			return session.decryptRawBytes(src, offset, length);
+		} finally {
+			pool.release(session);
+			ServerMetrics.decrypted(started);
+		}
+	}
+	
+	/**
+	 * Decrypts Base64 text straight out of a byte array.
+	 * @param src Array holding the encrypted text.
+	 * @param offset Where the text starts.
+	 * @param length Length of the text.
+	 * @return Decrypted string.
+	 */
+	static String decrypt(byte[] src, int offset, int length) {
+		long started = System.nanoTime();
 		try {
-			cipher.init(Cipher.DECRYPT_MODE, secret_key_spec, iv_spec);
-			return new String(cipher.doFinal(Base64.getDecoder().decode(str)));
+			CipherPool pool = ciphers;
+			CipherPool.Session session = pool.acquire();
+			try {
+				return session.decryptFromBase64(src, offset, length);
+			} finally {
+				pool.release(session);
+				ServerMetrics.decrypted(started);
+			}
 		} catch (Exception ex) {
 			System.out.println("Error while decrypting: " + ex.toString());
 			return null;
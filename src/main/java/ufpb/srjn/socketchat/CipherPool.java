@@ -0,0 +1,424 @@
+package ufpb.srjn.socketchat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Pool of ready-to-use cipher sessions. Each session owns its own initialized
+ * Cipher objects and scratch buffers, so threads never share cipher state and
+ * steady-state encryption doesn't allocate anything besides its result.
+ *
+ * A pool is used instead of one session per thread so that thousands of
+ * virtual threads don't each keep their own buffers alive.
+ *
+ * @author samuel
+ */
+final class CipherPool {
+
+	// Base64 alphabet and its reverse lookup table
+	private static final byte[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+	private static final int[] BASE64_INDEX = new int[256];
+
+	static {
+		java.util.Arrays.fill(BASE64_INDEX, -1);
+		for (int i = 0; i < BASE64.length; i++) {
+			BASE64_INDEX[BASE64[i]] = i;
+		}
+	}
+
+	// AES block size
+	private static final int BLOCK = 16;
+
+	// Key material shared by every session
+	private final SecretKeySpec key;
+	private final IvParameterSpec iv;
+
+	// Idle sessions
+	private final Queue<Session> idle = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param key AES key.
+	 * @param iv CBC initialization vector.
+	 */
+	CipherPool(SecretKeySpec key, IvParameterSpec iv) {
+		this.key = key;
+		this.iv = iv;
+	}
+
+	/**
+	 * Borrows a session. Must be handed back with release.
+	 *
+	 * @return A session owned by the caller until released.
+	 * @throws GeneralSecurityException If a new session could not be set up.
+	 */
+	Session acquire() throws GeneralSecurityException {
+		Session session = idle.poll();
+		return session != null ? session : new Session();
+	}
+
+	/**
+	 * Returns a borrowed session to the pool.
+	 *
+	 * @param session Session to return.
+	 */
+	void release(Session session) {
+		idle.add(session);
+	}
+
+	/**
+	 * A pair of initialized ciphers plus the scratch space they work in.
+	 */
+	final class Session {
+
+		// AES/CBC keeps its key and IV across doFinal calls, so these are initialized
+		// once. PKCS#5 padding is done by hand: the JDK copies the whole input to pad it.
+		private final Cipher encryptor;
+		private final Cipher decryptor;
+
+		// Reused for every message
+		private ByteBuffer plain = ByteBuffer.allocate(256);
+		private ByteBuffer sealed = ByteBuffer.allocate(256);
+
+		/**
+		 * Constructor.
+		 *
+		 * @throws GeneralSecurityException If the cipher could not be set up.
+		 */
+		private Session() throws GeneralSecurityException {
+			encryptor = Cipher.getInstance("AES/CBC/NoPadding");
+			encryptor.init(Cipher.ENCRYPT_MODE, key, iv);
+			decryptor = Cipher.getInstance("AES/CBC/NoPadding");
+			decryptor.init(Cipher.DECRYPT_MODE, key, iv);
+		}
+
+		/**
+		 * Encrypts between two buffers, adding PKCS#5 padding.
+		 *
+		 * @param in Plain text, read from position to limit. Must have room for
+		 * up to one block of padding after its limit.
+		 * @param out Receives the cipher text; must have enough room.
+		 * @return Number of bytes written.
+		 * @throws GeneralSecurityException If encryption fails.
+		 */
+		int encrypt(ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+			pad(in);
+			return encryptor.doFinal(in, out);
+		}
+
+		/**
+		 * Decrypts between two buffers, removing PKCS#5 padding.
+		 *
+		 * @param in Cipher text, read from position to limit.
+		 * @param out Receives the plain text; must have enough room.
+		 * @return Number of plain text bytes, not counting the padding.
+		 * @throws GeneralSecurityException If decryption fails.
+		 */
+		int decrypt(ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+			int start = out.position();
+			int n = decryptor.doFinal(in, out);
+			int length = unpad(out, start, n);
+			out.position(start + length);
+			return length;
+		}
+
+		/**
+		 * Encrypts a message and Base64-encodes it straight into a new array.
+		 *
+		 * @param text Message to encrypt.
+		 * @param header Bytes to leave free at the start of the array.
+		 * @return Array holding the header space followed by the Base64 text.
+		 * @throws GeneralSecurityException If encryption fails.
+		 */
+		byte[] encryptToBase64(String text, int header) throws GeneralSecurityException {
+			int length = seal(text);
+
+			byte[] result = new byte[header + (length + 2) / 3 * 4];
+			encodeBase64(sealed.array(), length, result, header);
+			return result;
+		}
+
+		/**
+		 * Encrypts a message into a new array, without any text encoding.
+		 *
+		 * @param text Message to encrypt.
+		 * @param header Bytes to leave free at the start of the array.
+		 * @return Array holding the header space followed by the cipher text.
+		 * @throws GeneralSecurityException If encryption fails.
+		 */
+		byte[] encryptRaw(String text, int header) throws GeneralSecurityException {
+			int length = seal(text);
+
+			byte[] result = new byte[header + length];
+			System.arraycopy(sealed.array(), 0, result, header, length);
+			return result;
+		}
+
+		/**
+		 * Encrypts bytes that are already encoded, such as a compressed body,
+		 * into a new array.
+		 *
+		 * @param src Bytes to encrypt.
+		 * @param length How many bytes of src to encrypt, from index 0.
+		 * @param header Bytes to leave free at the start of the array.
+		 * @return Array holding the header space followed by the cipher text.
+		 * @throws GeneralSecurityException If encryption fails.
+		 */
+		byte[] encryptRaw(byte[] src, int length, int header) throws GeneralSecurityException {
+			plain = ensure(plain, length + BLOCK);
+			plain.clear();
+			plain.put(src, 0, length).flip();
+			sealed = ensure(sealed, length + BLOCK);
+			sealed.clear();
+			int sealed_length = encrypt(plain, sealed);
+
+			byte[] result = new byte[header + sealed_length];
+			System.arraycopy(sealed.array(), 0, result, header, sealed_length);
+			return result;
+		}
+
+		/**
+		 * Base64-decodes and decrypts a message.
+		 *
+		 * @param src Array holding the Base64 text.
+		 * @param offset Where the text starts.
+		 * @param length Length of the text.
+		 * @return Decrypted message.
+		 * @throws GeneralSecurityException If decryption fails.
+		 */
+		String decryptFromBase64(byte[] src, int offset, int length) throws GeneralSecurityException {
+			sealed = ensure(sealed, length / 4 * 3);
+			int decoded = decodeBase64(src, offset, length, sealed.array());
+			return decryptRaw(sealed.array(), 0, decoded);
+		}
+
+		/**
+		 * Decrypts raw cipher text straight out of an array.
+		 *
+		 * @param src Array holding the cipher text.
+		 * @param offset Where the cipher text starts.
+		 * @param length Length of the cipher text.
+		 * @return Decrypted message.
+		 * @throws GeneralSecurityException If decryption fails.
+		 */
+		String decryptRaw(byte[] src, int offset, int length) throws GeneralSecurityException {
+			plain = ensure(plain, length);
+			plain.clear();
+			int n = decryptor.doFinal(src, offset, length, plain.array(), 0);
+			n = unpad(plain, 0, n);
+			return new String(plain.array(), 0, n, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Decrypts raw cipher text into a new array, without decoding it as text.
+		 *
+		 * @param src Array holding the cipher text.
+		 * @param offset Where the cipher text starts.
+		 * @param length Length of the cipher text.
+		 * @return Decrypted bytes.
+		 * @throws GeneralSecurityException If decryption fails.
+		 */
+		byte[] decryptRawBytes(byte[] src, int offset, int length) throws GeneralSecurityException {
+			plain = ensure(plain, length);
+			plain.clear();
+			int n = decryptor.doFinal(src, offset, length, plain.array(), 0);
+			n = unpad(plain, 0, n);
+			return java.util.Arrays.copyOf(plain.array(), n);
+		}
+
+		/**
+		 * Encrypts a message into the sealed buffer.
+		 *
+		 * @param text Message to encrypt.
+		 * @return Length of the cipher text, starting at index 0 of the sealed buffer.
+		 * @throws GeneralSecurityException If encryption fails.
+		 */
+		private int seal(String text) throws GeneralSecurityException {
+			encodeUtf8(text);
+			sealed = ensure(sealed, plain.remaining() + BLOCK);
+			sealed.clear();
+			return encrypt(plain, sealed);
+		}
+
+		/**
+		 * Encodes text as UTF-8 into the plain buffer, leaving it ready to read.
+		 * Done by hand because CharsetEncoder needs a CharBuffer per call.
+		 *
+		 * @param text Text to encode.
+		 */
+		private void encodeUtf8(String text) {
+			int length = text.length();
+			plain = ensure(plain, length * 3 + BLOCK);
+			byte[] dst = plain.array();
+			int j = 0;
+
+			for (int i = 0; i < length; i++) {
+				char c = text.charAt(i);
+				if (c < 0x80) {
+					dst[j++] = (byte) c;
+				} else if (c < 0x800) {
+					dst[j++] = (byte) (0xc0 | (c >> 6));
+					dst[j++] = (byte) (0x80 | (c & 0x3f));
+				} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, text.charAt(++i));
+					dst[j++] = (byte) (0xf0 | (cp >> 18));
+					dst[j++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+					dst[j++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+					dst[j++] = (byte) (0x80 | (cp & 0x3f));
+				} else if (Character.isSurrogate(c)) {
+					// Unpaired surrogate, same replacement String.getBytes uses.
+					dst[j++] = '?';
+				} else {
+					dst[j++] = (byte) (0xe0 | (c >> 12));
+					dst[j++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+					dst[j++] = (byte) (0x80 | (c & 0x3f));
+				}
+			}
+
+			plain.clear().limit(j);
+		}
+	}
+
+	/**
+	 * Appends PKCS#5 padding after a buffer's limit and extends the limit over it.
+	 *
+	 * @param buffer Buffer to pad; needs up to one block of room past its limit.
+	 */
+	private static void pad(ByteBuffer buffer) {
+		int padding = BLOCK - buffer.remaining() % BLOCK;
+		int limit = buffer.limit();
+		buffer.limit(limit + padding);
+		for (int i = 0; i < padding; i++) {
+			buffer.put(limit + i, (byte) padding);
+		}
+	}
+
+	/**
+	 * Validates PKCS#5 padding at the end of some decrypted bytes.
+	 *
+	 * @param buffer Buffer holding the decrypted bytes.
+	 * @param start Where the decrypted bytes start.
+	 * @param length How many bytes were decrypted.
+	 * @return Length without the padding.
+	 * @throws BadPaddingException If the padding is invalid.
+	 */
+	private static int unpad(ByteBuffer buffer, int start, int length) throws BadPaddingException {
+		if (length == 0) {
+			throw new BadPaddingException("Empty cipher text.");
+		}
+
+		int padding = buffer.get(start + length - 1) & 0xff;
+		if (padding < 1 || padding > BLOCK || padding > length) {
+			throw new BadPaddingException("Given final block not properly padded.");
+		}
+		for (int i = length - padding; i < length; i++) {
+			if (buffer.get(start + i) != (byte) padding) {
+				throw new BadPaddingException("Given final block not properly padded.");
+			}
+		}
+
+		return length - padding;
+	}
+
+	/**
+	 * Returns a buffer with at least the given capacity, reusing the old one if
+	 * it's big enough.
+	 *
+	 * @param buffer Current buffer.
+	 * @param capacity Required capacity.
+	 * @return Buffer with enough room.
+	 */
+	private static ByteBuffer ensure(ByteBuffer buffer, int capacity) {
+		if (buffer.capacity() >= capacity) {
+			return buffer;
+		}
+		return ByteBuffer.allocate(Math.max(capacity, buffer.capacity() * 2));
+	}
+
+	/**
+	 * Base64-encodes bytes into an existing array, with padding.
+	 *
+	 * @param src Bytes to encode.
+	 * @param length How many bytes of src to encode.
+	 * @param dst Destination array.
+	 * @param offset Where to start writing in dst.
+	 */
+	static void encodeBase64(byte[] src, int length, byte[] dst, int offset) {
+		int i = 0;
+		int j = offset;
+
+		for (; i + 2 < length; i += 3) {
+			int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff);
+			dst[j++] = BASE64[bits >>> 18];
+			dst[j++] = BASE64[(bits >>> 12) & 0x3f];
+			dst[j++] = BASE64[(bits >>> 6) & 0x3f];
+			dst[j++] = BASE64[bits & 0x3f];
+		}
+
+		int remaining = length - i;
+		if (remaining == 1) {
+			int bits = (src[i] & 0xff) << 16;
+			dst[j++] = BASE64[bits >>> 18];
+			dst[j++] = BASE64[(bits >>> 12) & 0x3f];
+			dst[j++] = '=';
+			dst[j] = '=';
+		} else if (remaining == 2) {
+			int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8;
+			dst[j++] = BASE64[bits >>> 18];
+			dst[j++] = BASE64[(bits >>> 12) & 0x3f];
+			dst[j++] = BASE64[(bits >>> 6) & 0x3f];
+			dst[j] = '=';
+		}
+	}
+
+	/**
+	 * Decodes padded Base64 text into an existing array.
+	 *
+	 * @param src Array holding the Base64 text.
+	 * @param offset Where the text starts.
+	 * @param length Length of the text.
+	 * @param dst Destination array; needs room for length / 4 * 3 bytes.
+	 * @return Number of decoded bytes.
+	 */
+	static int decodeBase64(byte[] src, int offset, int length, byte[] dst) {
+		if (length % 4 != 0) {
+			throw new IllegalArgumentException("Base64 input length is not a multiple of 4.");
+		}
+
+		// Padding only ever appears at the very end.
+		int padding = 0;
+		if (length > 0 && src[offset + length - 1] == '=') {
+			padding++;
+			if (src[offset + length - 2] == '=') {
+				padding++;
+			}
+		}
+
+		int j = 0;
+		int end = offset + length;
+		for (int i = offset; i < end; i += 4) {
+			int bits = 0;
+			for (int k = 0; k < 4; k++) {
+				byte c = src[i + k];
+				int value = (c == '=' && i + 4 == end) ? 0 : BASE64_INDEX[c & 0xff];
+				if (value < 0) {
+					throw new IllegalArgumentException("Illegal Base64 character: " + (char) (c & 0xff));
+				}
+				bits = bits << 6 | value;
+			}
+			dst[j++] = (byte) (bits >>> 16);
+			dst[j++] = (byte) (bits >>> 8);
+			dst[j++] = (byte) bits;
+		}
+
+		return j - padding;
+	}
+}
@@ -1,9 +1,28 @@
 package ufpb.srjn.socketchat;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.*;
 
 /**
  * This class represents a single client instance and its attributes.
@@ -12,12 +31,108 @@ import java.net.Socket;
  */
 public class ClientInstance {
 	
+	// Logger handle
+	private static final Logger LOGGER = Logger.getLogger(ClientInstance.class.getName());
+	
+	// Runs the writers that drain every client's outbound queue.
+	private static Executor writers = Executors.newCachedThreadPool((runnable) -> {
+		Thread thread = new Thread(runnable, "client-writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	// Size of the socket stream buffers. Frames queued together are packed into
+	// one buffer and leave in a single write.
+	static final int STREAM_BUFFER = Integer.getInteger("socketchat.write.buffer", 16384);
+	
+	// How long a writer waits for more frames before flushing a partial batch,
+	// in microseconds. Zero flushes as soon as the queue is empty.
+	private static final long LINGER_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.getLong("socketchat.write.linger", 0));
+	
+	// Group keys a client remembers; old ones only matter for frames still in flight.
+	private static final int MAX_GROUP_KEYS = 256;
+	
 	// Instance attributes.
 	public Socket socket;
 	private DataInputStream in;
 	private DataOutputStream out;
-	public String username;
+	private byte[] read_buffer = new byte[256];
+	public volatile String username;
 	public Authenticator auth;
+	
+	// "<IP>:<PORT>/~", prepended to every message this client sends; built on first use
+	private String origin;
+	
+	// Rooms this client has joined, so it can leave them all on disconnect
+	final Set<String> rooms = ConcurrentHashMap.newKeySet();
+	
+	// Wire protocol version spoken on this connection
+	protected volatile int protocol = Protocol.V1;
+	
+	// Whether large frames may be compressed on this connection (v2 only)
+	protected volatile boolean compress;
+	
+	// Client side: latest session ticket from the server, for reconnecting
+	public volatile String ticket;
+	
+	// Server side: whether the client accepts tickets, and the session it resumed
+	boolean resumable;
+	SessionTickets.Ticket resumed;
+	
+	// Set when a resumed session took this one's place
+	volatile boolean replaced;
+	
+	// Set when a client on another node kept this one's username
+	volatile boolean evicted;
+	
+	// Server side: whether the client answers pings, and when it last sent anything
+	boolean pings;
+	volatile long last_read = System.nanoTime();
+	
+	// Keys agreed on for this connection, or null if frames use the password key
+	volatile SessionKeys session;
+	
+	// Server side: ids of the group keys this client has been sent
+	final Set<Integer> known_keys = ConcurrentHashMap.newKeySet();
+	
+	// Client side: group keys received from the server (reader thread only)
+	private final Map<Integer, GroupKey> group_keys = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, GroupKey> eldest) {
+			return size() > MAX_GROUP_KEYS;
+		}
+	};
+	
+	// Frames waiting to be written, and whether a writer is already on it.
+	protected final OutboundQueue outbound = new OutboundQueue();
+	private final AtomicBoolean writer_scheduled = new AtomicBoolean();
+	
+	// Set once the connection should close after its queued frames are written.
+	protected volatile boolean closing;
+	
+	// Client-side instances skip the queue and write directly, one writer at a time.
+	private boolean direct;
+	private final ReentrantLock direct_lock = new ReentrantLock();
+	
+	// Server side: history sequences of the frames sent live while a catch-up
+	// is put together, so it can leave them out (guarded by catch_up_lock)
+	private final Object catch_up_lock = new Object();
+	private Set<Long> sent_live;
+	private volatile boolean catching_up;
+	
+	// Server side: history sequences the catch-up sent, sorted, and the mark it
+	// stopped at; live copies of them arriving later are dropped
+	private volatile long[] caught_up = new long[0];
+	private volatile long caught_up_to = Long.MIN_VALUE;
+	
+	// Server side: highest history sequence handed to the socket, so a session
+	// that drops catches up from there and not from when it was noticed dead
+	final AtomicLong delivered = new AtomicLong(-1);
+	
+	// Server side: history position when the client last sent anything, and
+	// whether the connection died without the server noticing in time
+	volatile long heard = -1;
+	volatile boolean unresponsive;
 
 	/**
 	 * Constructor used by the ClientApplication.
@@ -29,22 +144,75 @@ public class ClientInstance {
 	 * @throws java.io.IOException
 	 */
 	public ClientInstance(Socket socket, DataInputStream in, DataOutputStream out, String username) throws IOException {
+		this(socket, in, out, username, null);
+	}
+
+	/**
+	 * Constructor used by the ClientApplication to resume an earlier session.
+	 *
+	 * @param socket The open socket associated with this client.
+	 * @param in The DataInputStream associated with this client's socket.
+	 * @param out The DataOutputStream associated with this client's socket.
+	 * @param username The username by which this client is identified.
+	 * @param ticket Session ticket from the previous connection, or null to log in normally.
+	 * @throws java.io.IOException If the server refuses the login or the ticket.
+	 */
+	public ClientInstance(Socket socket, DataInputStream in, DataOutputStream out, String username, String ticket) throws IOException {
 		this.socket = socket;
 		this.in = in;
 		this.out = out;
 		this.username = username;
+		this.direct = true;
 
-		// Send the hash to the server
-		out.writeUTF("HASH " + Authenticator.getHashedPassword());
+		// Offer protocol v2, compression and a key agreement if enabled, and
+		// always ask for a ticket
+		String offer = "";
+		KeyPair key_pair = null;
+		if (Protocol.V2_ENABLED) {
+			offer = " " + Protocol.V2_TOKEN + (Protocol.Z_ENABLED ? " " + Protocol.Z_TOKEN : "");
+			if (Protocol.KEYS_ENABLED) {
+				try {
+					key_pair = SessionKeys.generate();
+					offer += " " + Protocol.KEY_TOKEN + SessionKeys.encode(key_pair.getPublic());
+				} catch (GeneralSecurityException ex) {
+					LOGGER.log(Level.WARNING, "Key agreement unavailable, using the password key: {0}", ex.getMessage());
+				}
+			}
+		}
+		offer += " " + Protocol.PING_TOKEN + " " + Protocol.RESUME_TOKEN;
 		
-		// Announce our username to the server as soon as we connect
-		out.writeUTF(Authenticator.encrypt("RENAME " + username));
+		if (ticket != null) {
+			// The ticket stands for both the password and the username.
+			out.writeUTF(Protocol.RESUME_COMMAND + " " + ticket + offer);
+		} else {
+			// Send the hash to the server...
+			out.writeUTF("HASH " + Authenticator.getHashedPassword() + offer);
+			
+			// ...and announce our username as soon as we connect
+			out.writeUTF(Authenticator.encrypt("RENAME " + username));
+		}
+		out.flush();
 		
-		// Check if we connected correctly. If not, throw new exception
+		// Check if we connected correctly. If not, throw new exception.
+		// Older servers answer a plain OK and keep talking v1.
 		String response = in.readUTF();
-		if (!"OK".equals(response)) {
+		String[] words = response.split(" ");
+		if (!"OK".equals(words[0])) {
 			throw new IOException(response);
 		}
+		for (int i = 1; i < words.length; i++) {
+			if (Protocol.V2_TOKEN.equals(words[i])) {
+				this.protocol = Protocol.V2;
+			} else if (Protocol.Z_TOKEN.equals(words[i])) {
+				this.compress = true;
+			} else if (words[i].startsWith(Protocol.KEY_TOKEN) && key_pair != null) {
+				try {
+					this.session = SessionKeys.agree(key_pair, words[i].substring(Protocol.KEY_TOKEN.length()), true);
+				} catch (GeneralSecurityException ex) {
+					throw new IOException("Key agreement failed: " + ex.getMessage(), ex);
+				}
+			}
+		}
 	}
 
 	/**
@@ -55,35 +223,182 @@ public class ClientInstance {
 	 */
 	public ClientInstance(Socket socket) throws IOException, Exception {
 		this.socket = socket;
-		this.in = new DataInputStream(socket.getInputStream());
-		this.out = new DataOutputStream(socket.getOutputStream());
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER));
+		this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER));
 
-		// Retrieve hash and test against server password.
-		String[] incoming = in.readUTF().split(" ");
-		if (!"HASH".equals(incoming[0])) {
-			throw new Exception("First message must be a HASH command, got: " + String.join(" ", incoming));
+		// Retrieve hash and test against server password, or redeem a ticket.
+		String hash_message = in.readUTF();
+		if (isResume(hash_message)) {
+			this.resumed = checkResume(hash_message);
+			if (this.resumed == null) {
+				this.out.writeUTF("Invalid ticket.");
+				this.out.flush();
+				this.closeStreams();
+				throw new IOException("Client sent an invalid session ticket.");
+			}
+			this.username = resumed.username;
+		} else {
+			if (!checkHash(hash_message)) {
+				this.out.writeUTF("Invalid password.");
+				this.out.flush();
+				this.closeStreams();
+				throw new IOException("Invalid password.");
+			}
+			
+			// Retrieve client's username
+			this.username = parseRename(readIn());
 		}
+		this.resumable = Protocol.negotiateResume(hash_message);
+		this.pings = Protocol.negotiatePing(hash_message);
 		
-		String client_hash = incoming[1];
-		if (!client_hash.equals(Authenticator.getHashedPassword())) {
-			this.out.writeUTF("Invalid password.");
-			this.close();
+		// Connected successfully! Switch to v2 framing, compression and session
+		// keys if both sides support them.
+		this.protocol = Protocol.negotiate(hash_message);
+		this.compress = Protocol.negotiateCompression(hash_message);
+		String key = agreeKeys(Protocol.negotiateKey(hash_message));
+		this.out.writeUTF(Protocol.accept(protocol, compress, key));
+		this.out.flush();
+	}
+	
+	/**
+	 * Constructor used by alternative server engines that do their own I/O.
+	 * Subclasses must set the socket themselves and override signalWriter, abort
+	 * and readIn.
+	 */
+	protected ClientInstance() {
+	}
+	
+	/**
+	 * Validates the first handshake message sent by a client.
+	 *
+	 * @param message Plain text HASH message.
+	 * @return True if the client's hash matches the server password.
+	 * @throws Exception If the message is not a HASH command.
+	 */
+	static boolean checkHash(String message) throws Exception {
+		String[] incoming = message.split(" ");
+		if (!"HASH".equals(incoming[0]) || incoming.length < 2) {
+			throw new Exception("First message must be a HASH command, got: " + message);
 		}
 		
-		// Retrieve client's username
-		incoming = Authenticator.decrypt(in.readUTF()).split(" ");
+		return Authenticator.matchesHashedPassword(incoming[1]);
+	}
+	
+	/**
+	 * Completes the key agreement a client offered in its first handshake
+	 * message, if any. Server side; call right before answering OK.
+	 *
+	 * @param peer Client's encoded public key, or null if it didn't offer one.
+	 * @return Server's encoded public key for the OK reply, or null if frames
+	 * keep using the password key.
+	 */
+	String agreeKeys(String peer) {
+		if (peer == null) {
+			return null;
+		}
+		
+		try {
+			KeyPair key_pair = SessionKeys.generate();
+			this.session = SessionKeys.agree(key_pair, peer, false);
+			return SessionKeys.encode(key_pair.getPublic());
+		} catch (GeneralSecurityException ex) {
+			LOGGER.log(Level.INFO, "Key agreement failed, using the password key: {0}", ex.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Connects again to the server a client lost its connection to. Resumes the
+	 * session with its ticket if it has one, and logs in from scratch if the
+	 * server no longer honours it.
+	 *
+	 * @param lost Client whose connection dropped.
+	 * @return Newly connected client.
+	 * @throws IOException If the server can't be reached or refuses the login.
+	 */
+	public static ClientInstance reconnect(ClientInstance lost) throws IOException {
+		if (lost.ticket != null) {
+			try {
+				return connect(lost.socket, lost.username, lost.ticket);
+			} catch (IOException ex) {
+				LOGGER.log(Level.INFO, "Could not resume session, logging in again: {0}", ex.getMessage());
+			}
+		}
+		return connect(lost.socket, lost.username, null);
+	}
+	
+	/**
+	 * Opens a client connection to the same address as an earlier socket.
+	 */
+	private static ClientInstance connect(Socket previous, String username, String ticket) throws IOException {
+		Socket socket = new Socket(previous.getInetAddress(), previous.getPort());
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER));
+			return new ClientInstance(socket, in, out, username, ticket);
+		} catch (IOException ex) {
+			socket.close();
+			throw ex;
+		}
+	}
+	
+	/**
+	 * Tells whether the first handshake message redeems a session ticket
+	 * instead of sending the password hash.
+	 *
+	 * @param message Plain text first message.
+	 * @return True for a RESUME command.
+	 */
+	static boolean isResume(String message) {
+		return message.startsWith(Protocol.RESUME_COMMAND + " ");
+	}
+	
+	/**
+	 * Redeems the session ticket in a RESUME command.
+	 *
+	 * @param message Plain text RESUME message.
+	 * @return The session being resumed, or null if the ticket is no good.
+	 */
+	static SessionTickets.Ticket checkResume(String message) {
+		String[] incoming = message.split(" ");
+		if (incoming.length < 2) {
+			return null;
+		}
+		return ServerApplication.redeemTicket(incoming[1]);
+	}
+	
+	/**
+	 * Parses the second handshake message sent by a client.
+	 *
+	 * @param message Decrypted RENAME message.
+	 * @return The client's username.
+	 * @throws Exception If the message is not a well-formed RENAME command.
+	 */
+	static String parseRename(String message) throws Exception {
+		String[] incoming = message.split(" ");
 		if (!"RENAME".equals(incoming[0])) {
-			throw new Exception("Second message must be a RENAME command, got: " + String.join(" ", incoming));
+			throw new Exception("Second message must be a RENAME command, got: " + message);
 		}
 
 		if (incoming.length != 2) {
 			throw new Exception("Malformed RENAME command received during client connection.");
 		}
-
-		this.username = incoming[1];
 		
-		// Connected successfully!
-		this.out.writeUTF("OK");
+		return incoming[1];
+	}
+	
+	/**
+	 * Returns the address part of this client's message header, formatted as
+	 * "IP:PORT/~". The username follows it and is not included,
+	 * since it can change.
+	 * @return Formatted address.
+	 */
+	public String getOrigin() {
+		// Computing it twice on a race is harmless; the result is the same.
+		if (origin == null) {
+			origin = socket.getInetAddress() + ":" + socket.getPort() + "/~";
+		}
+		return origin;
 	}
 	
 	/**
@@ -92,23 +407,460 @@ public class ClientInstance {
 	 * @throws IOException 
 	 */
 	public void writeOut(String msg) throws IOException {
-		out.writeUTF(Authenticator.encrypt(msg));
+		writeFrame(Frame.of(msg));
+	}
+	
+	/**
+	 * Queues an already-encrypted frame for the client. On the server this never
+	 * blocks on the client's socket; a writer thread drains the queue in the
+	 * background.
+	 * @param frame
+	 * @throws IOException If the client is closed or can't keep up.
+	 */
+	public void writeFrame(Frame frame) throws IOException {
+		if (!sendLive(frame)) {
+			return;
+		}
+		
+		if (direct) {
+			direct_lock.lock();
+			try {
+				Frame.Encoding encoding = encode(frame);
+				if (encoding != null) {
+					out.write(encoding.bytes, encoding.offset, encoding.length());
+					out.flush();
+				}
+			} finally {
+				direct_lock.unlock();
+			}
+			return;
+		}
+		
+		enqueue(frame);
+		signalWriter();
+	}
+	
+	/**
+	 * Returns the first history message this connection may not have got: the
+	 * oldest one its queue discarded, or else the one after the newest it
+	 * handed to the socket. If the connection died silently, whatever went out
+	 * after the client was last heard from may be stuck in it too, so those
+	 * count as missed even if some of them made it.
+	 *
+	 * @return History sequence number.
+	 */
+	long undelivered() {
+		long from = Math.min(delivered.get() + 1, outbound.lowestDropped());
+		return unresponsive ? Math.min(from, heard + 1) : from;
+	}
+	
+	/**
+	 * Starts noting which history messages are sent live, before the client is
+	 * registered and can get any.
+	 */
+	void startCatchUp() {
+		synchronized (catch_up_lock) {
+			sent_live = new HashSet<>();
+			catching_up = true;
+		}
+	}
+	
+	/**
+	 * Leaves out of a catch-up whatever the client already got live, and drops
+	 * live copies of what it covers from then on.
+	 *
+	 * @param missed Missed frames, oldest first.
+	 * @param before History mark the catch-up stops at.
+	 * @return The frames still to send.
+	 */
+	List<Frame> finishCatchUp(List<Frame> missed, long before) {
+		synchronized (catch_up_lock) {
+			Set<Long> seen = sent_live;
+			sent_live = null;
+			if (seen != null && !seen.isEmpty()) {
+				missed.removeIf((frame) -> seen.contains(frame.getSequence()));
+			}
+			
+			// Only what the catch-up really holds; a message it skipped still goes out live.
+			long[] sequences = new long[missed.size()];
+			for (int i = 0; i < sequences.length; i++) {
+				sequences[i] = missed.get(i).getSequence();
+			}
+			Arrays.sort(sequences);
+			caught_up = sequences;
+			caught_up_to = before;
+			catching_up = false;
+		}
+		return missed;
+	}
+	
+	/**
+	 * Tells whether a frame should be sent live, noting it if a catch-up is
+	 * being put together.
+	 */
+	private boolean sendLive(Frame frame) {
+		long sequence = frame.getSequence();
+		if (sequence < 0 || (!catching_up && sequence >= caught_up_to)) {
+			return true;
+		}
+		
+		synchronized (catch_up_lock) {
+			if (catching_up) {
+				sent_live.add(sequence);
+				return true;
+			}
+			return Arrays.binarySearch(caught_up, sequence) < 0;
+		}
+	}
+	
+	/**
+	 * Queues several frames for the client and wakes its writer once, so they
+	 * leave together in as few writes as possible.
+	 * @param frames
+	 * @throws IOException If the client is closed or can't keep up.
+	 */
+	public void writeFrames(List<Frame> frames) throws IOException {
+		if (direct) {
+			for (Frame frame : frames) {
+				writeFrame(frame);
+			}
+			return;
+		}
+		
+		// A burst of text compresses far better as one body than frame by frame.
+		if (compress && frames.size() > 1) {
+			Frame joined = join(frames);
+			if (joined != null) {
+				enqueue(joined);
+				signalWriter();
+				return;
+			}
+		}
+		
+		for (Frame frame : frames) {
+			enqueue(frame);
+		}
+		signalWriter();
+	}
+	
+	/**
+	 * Joins text frames into a single multi-line text frame.
+	 * @param frames
+	 * @return Joined frame, or null if any of them isn't plain text.
+	 */
+	private static Frame join(List<Frame> frames) {
+		StringBuilder text = new StringBuilder();
+		long sequence = -1;
+		for (Frame frame : frames) {
+			if (frame.getType() != MessageType.TEXT) {
+				return null;
+			}
+			if (text.length() > 0) {
+				text.append('\n');
+			}
+			text.append(frame.getText());
+			sequence = Math.max(sequence, frame.getSequence());
+		}
+		
+		// Counts as delivering its newest part.
+		Frame joined = Frame.of(text.toString());
+		if (sequence >= 0) {
+			joined.setSequence(sequence);
+		}
+		return joined;
+	}
+	
+	/**
+	 * Encodes a frame for this connection. Frames must be written in the order
+	 * they're encoded, since session keys seal them with a counter.
+	 *
+	 * Broadcasts are sealed under their group key if this client has been sent
+	 * it, and under the session key otherwise. A KEY message counts as sent
+	 * once it's encoded, so frames encoded after it can use its key.
+	 *
+	 * @param frame
+	 * @return Encoding, or null if the frame is too large for this connection.
+	 */
+	protected Frame.Encoding encode(Frame frame) {
+		long sequence = frame.getSequence();
+		if (sequence > delivered.get()) {
+			delivered.accumulateAndGet(sequence, Math::max);
+		}
+		
+		SessionKeys keys = session;
+		if (keys == null) {
+			return frame.encode(protocol, compress);
+		}
+		
+		GroupKey group = frame.getGroup();
+		if (group != null && known_keys.contains(group.id)) {
+			return frame.encodeGroup(compress);
+		}
+		
+		Frame.Encoding encoding = frame.encodeSession(keys, compress);
+		GroupKey granted = frame.getGrantedKey();
+		if (granted != null && encoding != null) {
+			known_keys.add(granted.id);
+		}
+		return encoding;
+	}
+	
+	/**
+	 * Opens the body of a protocol v2 frame read from this connection.
+	 *
+	 * @param code Type byte.
+	 * @param src Array holding the body.
+	 * @param offset Where the body starts.
+	 * @param length Length of the body.
+	 * @return Decrypted body, still compressed if the frame is.
+	 * @throws GeneralSecurityException If the frame doesn't decrypt.
+	 */
+	protected byte[] open(int code, byte[] src, int offset, int length) throws GeneralSecurityException {
+		if ((code & Protocol.GROUP) != 0) {
+			GroupKey key = length >= 4 ? group_keys.get(GroupKey.readId(src, offset)) : null;
+			if (key == null) {
+				throw new GeneralSecurityException("Unknown group key.");
+			}
+			return key.open(src, offset, length);
+		}
+		
+		SessionKeys keys = session;
+		if (keys != null) {
+			return keys.open(src, offset, length);
+		}
+		return Authenticator.decryptRawBytes(src, offset, length);
+	}
+	
+	/**
+	 * Puts a frame on the outbound queue without waking the writer.
+	 * @param frame
+	 * @throws IOException If the client is closed or can't keep up.
+	 */
+	private void enqueue(Frame frame) throws IOException {
+		if (closing) {
+			throw new IOException("Connection is closed.");
+		}
+		
+		if (!outbound.offer(frame)) {
+			LOGGER.log(Level.INFO, "Outbound queue full, disconnecting slow client: {0}", username);
+			abort();
+			throw new IOException("Client is not keeping up with its messages.");
+		}
+		
+		ServerMetrics.messageOut(frame.getType());
+		ServerMetrics.queued(outbound.size());
+	}
+	
+	/**
+	 * Sets the executor that runs queue writers. The server uses this to match
+	 * writers to its threading model.
+	 * @param executor 
+	 */
+	public static void setWriterExecutor(Executor executor) {
+		writers = executor;
+	}
+	
+	/**
+	 * Makes sure someone will drain the outbound queue soon.
+	 */
+	protected void signalWriter() {
+		if (writer_scheduled.compareAndSet(false, true)) {
+			writers.execute(this::drain);
+		}
+	}
+	
+	/**
+	 * Writes every queued frame to the socket. Only one drain runs at a time.
+	 * Frames are packed into the stream buffer and flushed together once the
+	 * queue is empty, optionally after lingering for more frames to arrive.
+	 */
+	private void drain() {
+		try {
+			while (true) {
+				int frames = 0;
+				long bytes = 0;
+				boolean lingered = LINGER_NANOS == 0;
+				while (true) {
+					Frame frame;
+					while ((frame = outbound.poll()) != null) {
+						// Frames too big for this client's protocol are skipped.
+						Frame.Encoding encoding = encode(frame);
+						if (encoding != null) {
+							out.write(encoding.bytes, encoding.offset, encoding.length());
+							frames++;
+							bytes += encoding.length();
+						}
+					}
+					
+					// Give a burst a moment to fill the batch, but never hold
+					// back a close or wait more than once per flush.
+					if (lingered || frames == 0 || closing) {
+						break;
+					}
+					LockSupport.parkNanos(LINGER_NANOS);
+					lingered = true;
+				}
+				out.flush();
+				if (frames > 0) {
+					WriteStats.record(frames, bytes);
+				}
+				
+				// Stop, unless something was queued after we emptied the queue.
+				writer_scheduled.set(false);
+				if (outbound.isEmpty() || !writer_scheduled.compareAndSet(false, true)) {
+					break;
+				}
+			}
+			
+			if (closing && outbound.isEmpty()) {
+				closeStreams();
+			}
+		} catch (IOException ex) {
+			// Client is gone; its reader will notice and clean up.
+			abort();
+			writer_scheduled.set(false);
+		}
 	}
 	
 	/**
 	 * Reads an encrypted message from client's socket and returns it decrypted.
-	 * @return Decrypted incoming message.
+	 * @return Decrypted incoming message, with its protocol v1 type prefix.
 	 * @throws IOException 
 	 */
 	public String readIn() throws IOException {
-		return Authenticator.decrypt(in.readUTF());
+		if (protocol == Protocol.V2) {
+			return readFrameV2().toLegacyText();
+		}
+		
+		// Encrypted frames are Base64, so they can be decrypted straight from the
+		// raw bytes without decoding a String first.
+		int length = in.readUnsignedShort();
+		fill(length);
+		last_read = System.nanoTime();
+		ServerMetrics.bytesIn(2 + length);
+		return Authenticator.decrypt(read_buffer, 0, length);
+	}
+	
+	/**
+	 * Reads an encrypted message from client's socket as a typed frame.
+	 * @return Decrypted incoming frame.
+	 * @throws IOException 
+	 */
+	public Frame readFrame() throws IOException {
+		if (protocol == Protocol.V2) {
+			return readFrameV2();
+		}
+		
+		while (true) {
+			String text = readIn();
+			if (text == null) {
+				throw new IOException("Failed to decrypt incoming message.");
+			}
+			Frame frame = Frame.parseLegacy(text);
+			if (frame.getType() != MessageType.PING) {
+				return frame;
+			}
+			pong();
+		}
+	}
+	
+	/**
+	 * Answers a PING from the server.
+	 * @throws IOException 
+	 */
+	private void pong() throws IOException {
+		writeFrame(Frame.of(MessageType.PONG, ""));
+	}
+	
+	/**
+	 * Reads a protocol v2 frame: varint length, type byte, raw cipher text.
+	 * Group keys sent by the server are kept, and pings are answered; neither
+	 * is returned.
+	 * @return Decrypted incoming frame.
+	 * @throws IOException 
+	 */
+	private Frame readFrameV2() throws IOException {
+		while (true) {
+			int length = Protocol.readVarint(in);
+			if (length < 1 || length > Protocol.MAX_FRAME) {
+				throw new IOException("Invalid frame length: " + length);
+			}
+			fill(length);
+			last_read = System.nanoTime();
+			ServerMetrics.bytesIn(Protocol.varintSize(length) + length);
+			
+			int code = read_buffer[0] & 0xff;
+			Frame frame;
+			try {
+				frame = Frame.decodeV2(code, open(code, read_buffer, 1, length - 1));
+			} catch (GeneralSecurityException ex) {
+				throw new IOException("Failed to decrypt incoming message: " + ex.getMessage(), ex);
+			}
+			if (frame.getType() == MessageType.PING && direct) {
+				pong();
+				continue;
+			}
+			if (frame.getType() != MessageType.KEY) {
+				return frame;
+			}
+			
+			// Only the server hands out keys, and only under the session key.
+			if (!direct || session == null || (code & Protocol.GROUP) != 0) {
+				throw new IOException("Unexpected KEY message.");
+			}
+			try {
+				GroupKey key = GroupKey.parse(frame.getText());
+				group_keys.put(key.id, key);
+			} catch (IllegalArgumentException ex) {
+				throw new IOException("Malformed KEY message: " + ex.getMessage(), ex);
+			}
+		}
 	}
 	
 	/**
-	 * Close client's sockets.
+	 * Reads exactly length bytes into the read buffer, growing it if needed.
+	 * @param length
+	 * @throws IOException 
+	 */
+	private void fill(int length) throws IOException {
+		if (length > read_buffer.length) {
+			read_buffer = new byte[Math.max(length, read_buffer.length * 2)];
+		}
+		in.readFully(read_buffer, 0, length);
+	}
+	
+	/**
+	 * Close client's sockets once every queued frame has been written.
 	 * @throws java.io.IOException
 	 */
 	public void close() throws IOException {
+		if (direct) {
+			closeStreams();
+			return;
+		}
+		
+		closing = true;
+		signalWriter();
+	}
+	
+	/**
+	 * Drops the connection right away, discarding anything still queued.
+	 */
+	protected void abort() {
+		closing = true;
+		outbound.clear();
+		try {
+			socket.close();
+		} catch (IOException ex) {
+			// Nothing else to do
+		}
+	}
+	
+	/**
+	 * Closes the client's streams and socket.
+	 * @throws java.io.IOException
+	 */
+	private void closeStreams() throws IOException {
 		in.close();
 		out.flush();
 		out.close();
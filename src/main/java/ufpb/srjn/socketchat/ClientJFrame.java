@@ -1,12 +1,21 @@
 package ufpb.srjn.socketchat;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JOptionPane;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
 
 /**
  * This class is responsible for the client's GUI.
@@ -15,25 +24,91 @@ import javax.swing.JOptionPane;
 public class ClientJFrame extends javax.swing.JFrame {
 
 	// Logger handle
-	private static final Logger LOGGER = Logger.getLogger(ClientThread.class.getName());
+	private static final Logger LOGGER = Logger.getLogger(ClientJFrame.class.getName());
+
+	// How many lines of chat the window keeps; older ones are dropped
+	private static final int SCROLLBACK = Integer.getInteger("socketchat.gui.scrollback", 5000);
+
+	// How many times per second at most the chat area is updated
+	private static final int FRAME_RATE = Integer.getInteger("socketchat.gui.fps", 30);
 
 	// Client instance
-	private static ClientInstance client;
+	private static volatile ClientInstance client;
+
+	// Lines received but not shown yet, and whether an update is already scheduled
+	private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean update_scheduled = new AtomicBoolean();
+
+	// Shows pending lines on the event dispatch thread, at most once per frame
+	private final Timer update_timer;
 
 	/**
 	 * Creates new form ClientJFrame
 	 */
 	public ClientJFrame() {
 		initComponents();
+
+		update_timer = new Timer(1000 / Math.max(1, FRAME_RATE), (evt) -> showPending());
+		update_timer.setRepeats(false);
+	}
+
+	/**
+	 * Switches the window over to a new connection, after a reconnect.
+	 * @param client Newly connected client.
+	 */
+	static void setClient(ClientInstance client) {
+		ClientJFrame.client = client;
 	}
 
 	/**
-	 * Sends a new line to the chat text field.
+	 * Sends a new line to the chat text field. Safe to call from any thread;
+	 * lines arriving close together are shown in a single update.
 	 * @param message Message to send to text field.
 	 */
 	public void sendToTextField(String message) {
-		chatTextArea.append(message + "\n");
-		chatTextArea.setCaretPosition(chatTextArea.getText().length());
+		pending.add(message);
+		if (update_scheduled.compareAndSet(false, true)) {
+			update_timer.start();
+		}
+	}
+
+	/**
+	 * Appends every pending line to the chat area in one go and trims the
+	 * scrollback. Runs on the event dispatch thread.
+	 */
+	private void showPending() {
+		update_scheduled.set(false);
+
+		// Lines that would be trimmed right away are never added.
+		Queue<String> lines = new ArrayDeque<>();
+		String line;
+		while ((line = pending.poll()) != null) {
+			lines.add(line);
+			if (lines.size() > SCROLLBACK) {
+				lines.poll();
+			}
+		}
+		if (lines.isEmpty()) {
+			return;
+		}
+
+		StringBuilder text = new StringBuilder();
+		for (String message : lines) {
+			text.append(message).append('\n');
+		}
+		chatTextArea.append(text.toString());
+
+		// The area ends with a newline, so its last line is always empty.
+		Document document = chatTextArea.getDocument();
+		int excess = chatTextArea.getLineCount() - 1 - SCROLLBACK;
+		if (excess > 0) {
+			try {
+				document.remove(0, chatTextArea.getLineStartOffset(excess));
+			} catch (BadLocationException ex) {
+				LOGGER.log(Level.WARNING, "Failed to trim chat scrollback: {0}", ex.getMessage());
+			}
+		}
+		chatTextArea.setCaretPosition(document.getLength());
 	}
 
 	/**
@@ -162,8 +237,8 @@ public class ClientJFrame extends javax.swing.JFrame {
 				// Connect to server.
 				try {
 					Socket socket = new Socket(ip_port.split(":")[0], Integer.parseInt(ip_port.split(":")[1]));
-					DataInputStream in = new DataInputStream(socket.getInputStream());
-					DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+					DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), ClientInstance.STREAM_BUFFER));
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), ClientInstance.STREAM_BUFFER));
 
 					client = new ClientInstance(socket, in, out, username);
 				} catch (IOException ex) {
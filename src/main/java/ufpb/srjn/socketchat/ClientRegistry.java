@@ -0,0 +1,151 @@
+package ufpb.srjn.socketchat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of logged-in clients. Lookups, reservations and iteration are all
+ * lock-free: usernames live in a ConcurrentHashMap (whose bins are locked
+ * independently on update), and broadcasts iterate a separate concurrent set of
+ * clients so a rename in progress never shows the same client twice.
+ *
+ * Renaming and removing the same client are made atomic with each other by
+ * locking that client, so a client removed mid-rename never leaves its new
+ * name reserved. Different clients never wait for each other; time spent
+ * waiting for a client's lock is reported by ServerMetrics.
+ *
+ * @author samuel
+ */
+public class ClientRegistry {
+
+	// Username to client, for O(1) lookups and atomic reservations
+	private final Map<String, ClientInstance> by_username = new ConcurrentHashMap<>();
+
+	// Every registered client, for broadcasts
+	private final Set<ClientInstance> members = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Atomically reserves the client's username and registers it.
+	 *
+	 * @param client Client to register.
+	 * @return False if the username is already taken.
+	 */
+	public boolean register(ClientInstance client) {
+		if (by_username.putIfAbsent(client.username, client) != null) {
+			return false;
+		}
+
+		members.add(client);
+		return true;
+	}
+
+	/**
+	 * Looks up a client by username.
+	 *
+	 * @param username Username to look up.
+	 * @return The client, or null if nobody is using that name.
+	 */
+	public ClientInstance get(String username) {
+		return by_username.get(username);
+	}
+
+	/**
+	 * Removes whichever client is registered under a username.
+	 *
+	 * @param username Username to remove.
+	 * @return The removed client, or null if nobody was using that name.
+	 */
+	public ClientInstance remove(String username) {
+		ClientInstance client = by_username.get(username);
+		if (client == null) {
+			return null;
+		}
+
+		long started = System.nanoTime();
+		synchronized (client) {
+			ServerMetrics.lockWait(started);
+			// It may have been renamed or removed while we waited.
+			if (!by_username.remove(username, client)) {
+				return null;
+			}
+			members.remove(client);
+		}
+		return client;
+	}
+
+	/**
+	 * Removes a specific client, if it's still registered.
+	 *
+	 * @param client Client to remove.
+	 */
+	public void remove(ClientInstance client) {
+		long started = System.nanoTime();
+		synchronized (client) {
+			ServerMetrics.lockWait(started);
+			if (members.remove(client)) {
+				by_username.remove(client.username, client);
+			}
+		}
+	}
+
+	/**
+	 * Atomically moves a client to a new username.
+	 *
+	 * @param client Client to rename.
+	 * @param new_username Desired username.
+	 * @return False if the new username is already taken.
+	 * @throws NoSuchElementException If the client isn't registered anymore.
+	 */
+	public boolean rename(ClientInstance client, String new_username) {
+		long started = System.nanoTime();
+		synchronized (client) {
+			ServerMetrics.lockWait(started);
+			if (!members.contains(client)) {
+				throw new NoSuchElementException("Client is no longer registered.");
+			}
+
+			// Reserve the new name first, so nobody can grab it in between.
+			if (by_username.putIfAbsent(new_username, client) != null) {
+				return false;
+			}
+
+			String old_username = client.username;
+			client.username = new_username;
+			by_username.remove(old_username, client);
+			return true;
+		}
+	}
+
+	/**
+	 * Returns every registered client. Iteration is weakly consistent and never
+	 * blocks registrations or removals.
+	 *
+	 * @return Registered clients.
+	 */
+	public Set<ClientInstance> clients() {
+		return Collections.unmodifiableSet(members);
+	}
+
+	/**
+	 * Returns a snapshot of every username currently registered.
+	 *
+	 * @return List of usernames.
+	 */
+	public List<String> usernames() {
+		return new ArrayList<>(by_username.keySet());
+	}
+
+	/**
+	 * Returns how many clients are registered.
+	 *
+	 * @return Client count.
+	 */
+	public int size() {
+		return members.size();
+	}
+}
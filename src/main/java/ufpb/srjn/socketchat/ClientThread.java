@@ -15,6 +15,13 @@ public class ClientThread implements Runnable {
 	// Logger handle
 	private static final Logger LOGGER = Logger.getLogger(ClientThread.class.getName());
 
+	// How many times to try reconnecting after the connection drops
+	private static final int RECONNECT_ATTEMPTS = Integer.getInteger("socketchat.reconnect.attempts", 5);
+
+	// Whether every received message is logged; off by default, since busy
+	// rooms would spend more time logging than showing messages
+	private static final boolean LOG_MESSAGES = Boolean.getBoolean("socketchat.client.log");
+
 	// Client instance
 	private ClientInstance client;
 
@@ -37,42 +44,89 @@ public class ClientThread implements Runnable {
 	 */
 	@Override
 	public void run() {
+		// When the connection drops, try to get it back before giving up.
+		do {
+			readFrames();
+		} while (reconnect());
+
+		JOptionPane.showMessageDialog(
+			jframe,
+			"Lost connection to server.",
+			"Error",
+			JOptionPane.ERROR_MESSAGE
+			);
+		System.exit(0);
+	}
+
+	/**
+	 * Reads and handles frames until the connection drops.
+	 */
+	private void readFrames() {
 		try {
-			String server_incoming;
+			Frame server_incoming;
 			while (true) {
-				server_incoming = client.readIn();
-				LOGGER.log(Level.INFO, server_incoming);
-
-				// Server told us to leave
-				if (server_incoming.startsWith("DISCONNECT")) {
-					System.exit(0);
+				server_incoming = client.readFrame();
+				if (LOG_MESSAGES) {
+					LOGGER.log(Level.INFO, server_incoming.toLegacyText());
 				}
 
-				// Server told us to change names
-				else if (server_incoming.startsWith("RENAME")) {
-					client.username = server_incoming.split(" ")[1];
-				}
-				
-				// Normal message incoming
-				else {
-					jframe.sendToTextField(server_incoming);
+				switch (server_incoming.getType()) {
+					case DISCONNECT:
+						// Server told us to leave
+						System.exit(0);
+						break;
+					case RENAME:
+						// Server told us to change names
+						client.username = server_incoming.getText();
+						break;
+					case TICKET:
+						// Keep it in case we need to reconnect
+						client.ticket = server_incoming.getText();
+						break;
+					case ERROR:
+						// Something we asked for went wrong
+						jframe.sendToTextField(server_incoming.toLegacyText());
+						break;
+					default:
+						// Normal message incoming
+						jframe.sendToTextField(server_incoming.getText());
 				}
 			}
 		} catch (IOException ex) {
-			JOptionPane.showMessageDialog(
-				jframe,
-				"Lost connection to server.",
-				"Error",
-				JOptionPane.ERROR_MESSAGE
-				);
-			System.exit(0);
+			LOGGER.log(Level.WARNING, "Lost connection to server: {0}", ex.getMessage());
 		}
+	}
 
-		try {
-			// Exit
-			client.close();
-		} catch (IOException ex) {
-			// Exception while closing sockets, don't need to do anything
+	/**
+	 * Reconnects to the server, backing off between attempts. With a ticket
+	 * from the server this skips the login and keeps the session's rooms.
+	 * @return True once reconnected.
+	 */
+	private boolean reconnect() {
+		long backoff = 250;
+		for (int attempt = 0; attempt < RECONNECT_ATTEMPTS; attempt++) {
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException ex) {
+				return false;
+			}
+			backoff *= 2;
+
+			try {
+				ClientInstance lost = client;
+				client = ClientInstance.reconnect(lost);
+				ClientJFrame.setClient(client);
+				try {
+					lost.close();
+				} catch (IOException ex) {
+					// Already closed
+				}
+				jframe.sendToTextField("*** Reconnected as " + client.username);
+				return true;
+			} catch (IOException ex) {
+				LOGGER.log(Level.INFO, "Reconnect attempt failed: {0}", ex.getMessage());
+			}
 		}
+		return false;
 	}
 }
@@ -0,0 +1,345 @@
+package ufpb.srjn.socketchat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.*;
+
+/**
+ * Outgoing link from this node to one peer. Records are queued by any thread
+ * and written by the link's own thread, several to a flush.
+ *
+ * Every record gets a sequence number and is kept until the peer acknowledges
+ * it. When the connection drops, the link reconnects, asks the peer for the
+ * last record it got, and sends everything after it again, so no message is
+ * lost to a reconnect. The peer skips anything it has already seen. If the
+ * peer stays unreachable past the grace period, it's considered gone and
+ * whatever was waiting for it is dropped.
+ *
+ * @author samuel
+ */
+public class ClusterLink implements Runnable {
+
+	// Logger handle
+	private static final Logger LOGGER = Logger.getLogger(ClusterLink.class.getName());
+
+	// Configuration
+	private static final int CAPACITY = Integer.getInteger("socketchat.cluster.queue", 65536);
+	private static final long GRACE_MILLIS = Long.getLong("socketchat.cluster.grace", 30000L);
+	private static final int CONNECT_TIMEOUT = 2000;
+
+	// How long an idle link waits before sending a heartbeat, so a dead peer is
+	// noticed even when there's nothing to say
+	static final long HEARTBEAT_MILLIS = 1000;
+
+	// How long either end of a connection waits to hear anything, heartbeats
+	// included, before treating the connection as dead
+	static final int READ_TIMEOUT = (int) HEARTBEAT_MILLIS * 5;
+
+	/**
+	 * A record that was written and not acknowledged yet.
+	 */
+	private static final class Pending {
+		final long sequence;
+		final byte[] record;
+
+		Pending(long sequence, byte[] record) {
+			this.sequence = sequence;
+			this.record = record;
+		}
+	}
+
+	// Node this link belongs to
+	private final ClusterNode node;
+
+	// Peer address, as host:port
+	final String address;
+
+	// Whether to keep dialing this peer after it's gone
+	final boolean seed;
+
+	// Records waiting to be written
+	private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(CAPACITY);
+
+	// Records written but not acknowledged, in sequence order
+	private final ArrayDeque<Pending> unacked = new ArrayDeque<>();
+
+	// Sequence number of the next record (link thread only)
+	private long next_sequence = 1;
+
+	// Tells the peer which link the sequence numbers belong to, since a link
+	// made again after the peer was lost numbers its records from 1 again
+	final long id = ThreadLocalRandom.current().nextLong();
+
+	// Current connection, closed once it fails (link thread only)
+	private Socket socket;
+
+	// Set once a connection completes its handshake (link thread only)
+	private boolean connected;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param node Node this link belongs to.
+	 * @param address Peer address, as host:port.
+	 * @param seed True to keep dialing the peer even after it's gone.
+	 */
+	public ClusterLink(ClusterNode node, String address, boolean seed) {
+		this.node = node;
+		this.address = address;
+		this.seed = seed;
+	}
+
+	/**
+	 * Starts the link's thread.
+	 */
+	public void start() {
+		Thread thread = new Thread(this, "cluster-link-" + address);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queues a record for the peer. Never blocks.
+	 *
+	 * @param record Sealed record, from ClusterNode.seal.
+	 */
+	public void send(byte[] record) {
+		if (!queue.offer(record)) {
+			LOGGER.log(Level.WARNING, "Cluster link to {0} is full, dropping a record.", address);
+		}
+	}
+
+	/**
+	 * Connects, writes and reconnects until the peer is gone, or for good if
+	 * it's a seed.
+	 */
+	@Override
+	public void run() {
+		long down_since = 0;
+		long backoff = 100;
+
+		while (true) {
+			try {
+				connectAndWrite();
+			} catch (IOException ex) {
+				LOGGER.log(Level.FINE, "Cluster link to {0} is down: {1}", new Object[]{address, ex.getMessage()});
+			}
+			closeQuietly(socket);
+
+			// Give the peer a grace period before treating it as gone.
+			long now = System.currentTimeMillis();
+			if (down_since == 0) {
+				down_since = now;
+				LOGGER.log(Level.INFO, "Lost cluster link to {0}, reconnecting...", address);
+			} else if (now - down_since > GRACE_MILLIS) {
+				LOGGER.log(Level.WARNING, "Cluster peer {0} is gone.", address);
+				forget();
+				node.peerLost(this);
+				down_since = 0;
+				if (!seed) {
+					break;
+				}
+			}
+
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException ex) {
+				break;
+			}
+			backoff = Math.min(backoff * 2, 2000);
+
+			// A successful connection resets the backoff.
+			if (connected) {
+				connected = false;
+				down_since = 0;
+				backoff = 100;
+			}
+		}
+	}
+
+	/**
+	 * Runs a single connection: handshake, catch-up, then the write loop.
+	 *
+	 * @throws IOException When the connection fails.
+	 */
+	private void connectAndWrite() throws IOException {
+		Socket current = new Socket();
+		socket = current;
+		current.setTcpNoDelay(true);
+		current.setSoTimeout(READ_TIMEOUT);
+		current.connect(parse(address), CONNECT_TIMEOUT);
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(current.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(current.getOutputStream(), ClientInstance.STREAM_BUFFER));
+
+		// Introduce ourselves; the peer answers with the last record it got from us.
+		out.writeUTF("NODE " + Authenticator.getHashedPassword() + " " + node.address + " " + node.epoch + " " + id);
+		out.flush();
+		String response = in.readUTF();
+		if (!response.startsWith("OK ")) {
+			throw new IOException("Peer refused link: " + response);
+		}
+		long received = Long.parseLong(response.substring(3));
+		connected = true;
+		LOGGER.log(Level.INFO, "Cluster link to {0} is up.", address);
+
+		// Acknowledgements come back on the same connection.
+		Thread acks = new Thread(() -> readAcks(in, current), "cluster-acks-" + address);
+		acks.setDaemon(true);
+		acks.start();
+
+		// Send again whatever the peer didn't get before the connection dropped.
+		List<Pending> resend;
+		synchronized (unacked) {
+			while (!unacked.isEmpty() && unacked.peek().sequence <= received) {
+				unacked.poll();
+			}
+			resend = new ArrayList<>(unacked);
+		}
+		for (Pending pending : resend) {
+			write(out, pending.sequence, pending.record);
+		}
+
+		// Then bring the peer up to date with who is logged in here, and
+		// which other nodes we know of.
+		send(out, node.snapshot());
+		send(out, node.peerList());
+		out.flush();
+
+		List<byte[]> batch = new ArrayList<>();
+		long idle_since = System.currentTimeMillis();
+		while (true) {
+			byte[] first;
+			try {
+				// Hold off while the peer is this far behind on acknowledgements.
+				if (pending() >= CAPACITY) {
+					Thread.sleep(10);
+					continue;
+				}
+				first = queue.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+				return;
+			}
+			if (first == null) {
+				// Sequence number 0 is a heartbeat with no record.
+				if (System.currentTimeMillis() - idle_since >= HEARTBEAT_MILLIS) {
+					out.writeLong(0);
+					out.flush();
+					idle_since = System.currentTimeMillis();
+				}
+				continue;
+			}
+			idle_since = System.currentTimeMillis();
+			batch.add(first);
+			queue.drainTo(batch, 1023);
+
+			for (byte[] record : batch) {
+				send(out, record);
+			}
+			batch.clear();
+			out.flush();
+		}
+	}
+
+	/**
+	 * Numbers a record, keeps it until acknowledged and writes it. Link thread
+	 * only.
+	 */
+	private void send(DataOutputStream out, byte[] record) throws IOException {
+		if (record == null) {
+			return;
+		}
+
+		long sequence = next_sequence++;
+		synchronized (unacked) {
+			unacked.add(new Pending(sequence, record));
+		}
+		write(out, sequence, record);
+	}
+
+	/**
+	 * Returns how many records are waiting for an acknowledgement.
+	 */
+	private int pending() {
+		synchronized (unacked) {
+			return unacked.size();
+		}
+	}
+
+	/**
+	 * Reads acknowledgements and forgets every record they cover.
+	 *
+	 * @param in Connection input.
+	 * @param connection Connection being read, closed when reading fails.
+	 */
+	private void readAcks(DataInputStream in, Socket connection) {
+		try {
+			while (true) {
+				long acked = in.readLong();
+				synchronized (unacked) {
+					while (!unacked.isEmpty() && unacked.peek().sequence <= acked) {
+						unacked.poll();
+					}
+				}
+			}
+		} catch (IOException ex) {
+			// Connection closed; make sure the writer notices too.
+			closeQuietly(connection);
+		}
+	}
+
+	/**
+	 * Writes one record: sequence number, then the sealed bytes.
+	 */
+	private static void write(DataOutputStream out, long sequence, byte[] record) throws IOException {
+		out.writeLong(sequence);
+		out.write(record);
+	}
+
+	/**
+	 * Drops everything waiting for a peer that's gone.
+	 */
+	private void forget() {
+		queue.clear();
+		synchronized (unacked) {
+			unacked.clear();
+		}
+	}
+
+	/**
+	 * Parses a host:port address.
+	 *
+	 * @param address Address to parse.
+	 * @return Socket address.
+	 */
+	static InetSocketAddress parse(String address) {
+		int colon = address.lastIndexOf(':');
+		return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+	}
+
+	/**
+	 * Closes a socket, ignoring errors.
+	 */
+	private static void closeQuietly(Socket socket) {
+		if (socket == null) {
+			return;
+		}
+		try {
+			socket.close();
+		} catch (IOException ex) {
+			// Nothing else to do
+		}
+	}
+}
@@ -0,0 +1,499 @@
+package ufpb.srjn.socketchat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.*;
+
+/**
+ * One server in a cluster. Nodes form a full mesh over TCP: every node dials
+ * each peer it knows of through a ClusterLink and only sends on the links it
+ * dialed, while reading whatever its peers send on the connections they
+ * dialed. A new node only needs the address of one member; every node shares
+ * the addresses it knows when a link comes up, and the rest of the mesh dials
+ * in from there.
+ *
+ * Every node keeps a directory of which node each remote user is on. It's
+ * kept current by join, leave and rename records, and replaced by a full
+ * snapshot whenever a link comes up. A broadcast is sent once to each peer,
+ * which hands it to its own clients; a private message only goes to the node
+ * the recipient is on. Records are encrypted with the server password, like
+ * client traffic, so every node must be started with the same one.
+ *
+ * If two nodes log in the same username at the same time, the node with the
+ * lower address keeps it and the other disconnects its client.
+ *
+ * @author samuel
+ */
+public class ClusterNode {
+
+	// Logger handle
+	private static final Logger LOGGER = Logger.getLogger(ClusterNode.class.getName());
+
+	// Record kinds, the first character of every record
+	private static final char GLOBAL = 'G';
+	private static final char PRIVATE = 'P';
+	private static final char ROOM = 'R';
+	private static final char JOIN = 'J';
+	private static final char LEAVE = 'L';
+	private static final char RENAME = 'N';
+	private static final char SNAPSHOT = 'S';
+	private static final char PEERS = 'M';
+
+	/**
+	 * Progress of the records received from one peer.
+	 */
+	private static final class Inbound {
+		// Which run of the peer, and which of its links, the sequence numbers belong to
+		final long epoch;
+		final long link;
+		// Last record applied
+		volatile long last;
+
+		Inbound(long epoch, long link) {
+			this.epoch = epoch;
+			this.link = link;
+		}
+	}
+
+	// This node's address, as peers dial it
+	final String address;
+
+	// Changes every time the node starts, so peers can tell a restart from a reconnect
+	final long epoch = ThreadLocalRandom.current().nextLong();
+
+	// Port peers connect to
+	private final int port;
+
+	// Clients logged in to this node
+	private final ClientRegistry clients;
+
+	// Outgoing links, by peer address
+	private final Map<String, ClusterLink> links = new ConcurrentHashMap<>();
+
+	// Remote username to the address of the node it's on
+	private final Map<String, String> directory = new ConcurrentHashMap<>();
+
+	// Records received so far, by peer address
+	private final Map<String, Inbound> received = new ConcurrentHashMap<>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param clients Clients logged in to this node.
+	 * @param port Port peers connect to.
+	 * @param address This node's address as peers should dial it, as host:port.
+	 */
+	public ClusterNode(ClientRegistry clients, int port, String address) {
+		this.clients = clients;
+		this.port = port;
+		this.address = address;
+	}
+
+	/**
+	 * Starts listening for peers and dials the given ones.
+	 *
+	 * @param seeds Peer addresses to dial, as host:port. They're dialed for as
+	 * long as the node runs; peers learned from them are dropped once gone.
+	 * @throws IOException If the peer port can't be opened.
+	 */
+	public void start(List<String> seeds) throws IOException {
+		ServerSocket listener = new ServerSocket(port);
+		Thread acceptor = new Thread(() -> accept(listener), "cluster-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		for (String seed : seeds) {
+			connect(seed, true);
+		}
+		LOGGER.log(Level.INFO, "Cluster node {0} listening for peers on port {1}", new Object[]{address, Integer.toString(port)});
+	}
+
+	/**
+	 * Starts a link to a peer, unless there's one already.
+	 *
+	 * @param peer Peer address.
+	 * @param seed True to keep dialing it even after it's gone.
+	 */
+	private void connect(String peer, boolean seed) {
+		if (peer.isEmpty() || peer.equals(address) || links.containsKey(peer)) {
+			return;
+		}
+		links.computeIfAbsent(peer, (key) -> {
+			ClusterLink link = new ClusterLink(this, key, seed);
+			link.start();
+			return link;
+		});
+	}
+
+	/**
+	 * Accepts peer connections forever.
+	 */
+	private void accept(ServerSocket listener) {
+		while (true) {
+			try {
+				Socket socket = listener.accept();
+				Thread reader = new Thread(() -> serve(socket), "cluster-peer");
+				reader.setDaemon(true);
+				reader.start();
+			} catch (IOException ex) {
+				LOGGER.log(Level.SEVERE, "Failed to accept peer connection: {0}", ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Reads and applies the records a peer sends, acknowledging them at the end
+	 * of every burst and at least once per heartbeat interval. A peer that
+	 * sends nothing, not even heartbeats, for a few intervals is cut off.
+	 *
+	 * @param socket Connection the peer dialed.
+	 */
+	private void serve(Socket socket) {
+		String peer = null;
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(ClusterLink.READ_TIMEOUT);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), ClientInstance.STREAM_BUFFER));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+			// NODE <hash> <address> <epoch> <link>
+			String[] hello = in.readUTF().split(" ");
+			if (hello.length != 5 || !"NODE".equals(hello[0]) || !Authenticator.matchesHashedPassword(hello[1])) {
+				LOGGER.log(Level.WARNING, "Rejected peer connection from {0}", socket.getInetAddress());
+				out.writeUTF("Invalid password.");
+				out.flush();
+				return;
+			}
+			peer = hello[2];
+			long peer_epoch = Long.parseLong(hello[3]);
+			long peer_link = Long.parseLong(hello[4]);
+
+			// A new epoch or link means the peer numbers its records from scratch.
+			Inbound state = received.compute(peer, (key, current) ->
+				current != null && current.epoch == peer_epoch && current.link == peer_link ? current : new Inbound(peer_epoch, peer_link));
+			out.writeUTF("OK " + state.last);
+			out.flush();
+
+			// Make sure we can talk back.
+			connect(peer, false);
+
+			byte[] buffer = new byte[256];
+			long acked_at = System.currentTimeMillis();
+			while (true) {
+				// Sequence number 0 is a heartbeat with no record.
+				long sequence = in.readLong();
+				if (sequence != 0) {
+					int length = in.readInt();
+					if (length < 0 || length > Protocol.MAX_FRAME) {
+						throw new IOException("Invalid record length: " + length);
+					}
+					if (length > buffer.length) {
+						buffer = new byte[Math.max(length, buffer.length * 2)];
+					}
+					in.readFully(buffer, 0, length);
+
+					// Records sent again after a reconnect are skipped. A record we
+					// can't make sense of is skipped too, rather than dropping the
+					// link and getting it again on every reconnect.
+					if (sequence > state.last) {
+						String record = Authenticator.decryptRaw(buffer, 0, length);
+						try {
+							apply(peer, record);
+						} catch (RuntimeException ex) {
+							LOGGER.log(Level.WARNING, "Malformed cluster record from {0}: {1}", new Object[]{peer, ex.toString()});
+						}
+						state.last = sequence;
+					}
+				}
+
+				// Also acknowledge during long bursts, so the link hears from us in time.
+				long now = System.currentTimeMillis();
+				if (in.available() == 0 || now - acked_at >= ClusterLink.HEARTBEAT_MILLIS) {
+					out.writeLong(state.last);
+					out.flush();
+					acked_at = now;
+				}
+			}
+		} catch (IOException | GeneralSecurityException | NumberFormatException ex) {
+			LOGGER.log(Level.FINE, "Peer connection from {0} closed: {1}", new Object[]{peer, ex.getMessage()});
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException ex) {
+				// Nothing else to do
+			}
+		}
+	}
+
+	/**
+	 * Applies a single record received from a peer.
+	 *
+	 * @param peer Address of the node that sent it.
+	 * @param record Decrypted record.
+	 */
+	private void apply(String peer, String record) throws IOException {
+		if (record.isEmpty()) {
+			LOGGER.log(Level.WARNING, "Empty cluster record from {0}", peer);
+			return;
+		}
+
+		String[] fields;
+		switch (record.charAt(0)) {
+			case GLOBAL:
+				// G <type> <text>
+				fields = record.split(" ", 3);
+				MessageType type = MessageType.fromCode(Integer.parseInt(fields[1]));
+				ServerApplication.deliverGlobally(Frame.of(type == null ? MessageType.TEXT : type, fields[2]));
+				break;
+			case PRIVATE:
+				// P ~<sender> <recipient> <text>
+				fields = record.split(" ", 4);
+				ServerApplication.deliverToClient(Frame.of(fields[3]), fields[2], fields[1].substring(1));
+				break;
+			case ROOM:
+				// R ~<sender> <room> <text>
+				fields = record.split(" ", 4);
+				ServerApplication.deliverToRoom(Frame.of(fields[3]), fields[2], fields[1].substring(1));
+				break;
+			case JOIN:
+				claim(record.substring(2), peer);
+				break;
+			case LEAVE:
+				forget(record.substring(2), peer);
+				break;
+			case RENAME:
+				// N <old> <new>
+				fields = record.split(" ");
+				forget(fields[1], peer);
+				claim(fields[2], peer);
+				break;
+			case SNAPSHOT:
+				// S <username>...
+				forgetPeer(peer);
+				fields = record.split(" ");
+				for (int i = 1; i < fields.length; i++) {
+					claim(fields[i], peer);
+				}
+				break;
+			case PEERS:
+				// M <address>...
+				fields = record.split(" ");
+				for (int i = 1; i < fields.length; i++) {
+					connect(fields[i], false);
+				}
+				break;
+			default:
+				LOGGER.log(Level.WARNING, "Unknown cluster record from {0}: {1}", new Object[]{peer, record.charAt(0)});
+		}
+	}
+
+	/**
+	 * Records that a user is on a peer. If the same username is logged in here,
+	 * the node with the lower address keeps it.
+	 *
+	 * @param username Username.
+	 * @param peer Address of the node the user is on.
+	 */
+	private void claim(String username, String peer) {
+		ClientInstance local = clients.get(username);
+		if (local != null) {
+			if (peer.compareTo(address) > 0) {
+				// We keep it; the peer gives its client up once it hears about ours.
+				return;
+			}
+			LOGGER.log(Level.INFO, "Username {0} was taken on {1} first, disconnecting local client.", new Object[]{username, peer});
+			ServerApplication.evict(local);
+		}
+		directory.put(username, peer);
+		ServerApplication.getPresence().joined(username);
+	}
+
+	/**
+	 * Forgets a remote user, if they're still on the given peer.
+	 *
+	 * @param username Username.
+	 * @param peer Address of the node the user was on.
+	 */
+	private void forget(String username, String peer) {
+		if (directory.remove(username, peer)) {
+			ServerApplication.getPresence().left(username);
+		}
+	}
+
+	/**
+	 * Forgets every user on a peer.
+	 *
+	 * @param peer Peer address.
+	 */
+	private void forgetPeer(String peer) {
+		for (Map.Entry<String, String> entry : directory.entrySet()) {
+			if (peer.equals(entry.getValue())) {
+				forget(entry.getKey(), peer);
+			}
+		}
+	}
+
+	/**
+	 * Forgets everything about a peer that's gone.
+	 *
+	 * @param link Link to the peer.
+	 */
+	void peerLost(ClusterLink link) {
+		forgetPeer(link.address);
+		received.remove(link.address);
+		if (!link.seed) {
+			links.remove(link.address, link);
+		}
+	}
+
+	/**
+	 * Sends a broadcast to every peer. The record is sealed once and shared by
+	 * every link.
+	 *
+	 * @param frame Frame that was broadcast here.
+	 */
+	public void publishGlobal(Frame frame) {
+		publish(seal(GLOBAL + " " + frame.getType().getCode() + " " + frame.getText()));
+	}
+
+	/**
+	 * Sends a private message to the node the recipient is on.
+	 *
+	 * @param frame Frame to deliver.
+	 * @param sender Who sent it, or "" for server messages.
+	 * @param recipient Who it's for.
+	 * @return False if the recipient isn't on any peer.
+	 */
+	public boolean publishPrivate(Frame frame, String sender, String recipient) {
+		String node = directory.get(recipient);
+		ClusterLink link = node == null ? null : links.get(node);
+		if (link == null) {
+			return false;
+		}
+
+		byte[] record = seal(PRIVATE + " ~" + sender + " " + recipient + " " + frame.getText());
+		if (record != null) {
+			link.send(record);
+		}
+		return true;
+	}
+
+	/**
+	 * Sends a room message to every peer, each of which hands it to its own
+	 * members of the room.
+	 *
+	 * @param frame Frame that was sent to the room here.
+	 * @param room Room name.
+	 * @param sender Who sent it, or "" for server messages.
+	 */
+	public void publishRoom(Frame frame, String room, String sender) {
+		publish(seal(ROOM + " ~" + sender + " " + room + " " + frame.getText()));
+	}
+
+	/**
+	 * Tells every peer a user logged in here.
+	 *
+	 * @param username Username.
+	 */
+	public void userJoined(String username) {
+		publish(seal(JOIN + " " + username));
+	}
+
+	/**
+	 * Tells every peer a user left this node.
+	 *
+	 * @param username Username.
+	 */
+	public void userLeft(String username) {
+		publish(seal(LEAVE + " " + username));
+	}
+
+	/**
+	 * Tells every peer a user here changed names.
+	 *
+	 * @param old_username Original username.
+	 * @param new_username New username.
+	 */
+	public void userRenamed(String old_username, String new_username) {
+		publish(seal(RENAME + " " + old_username + " " + new_username));
+	}
+
+	/**
+	 * Finds which node a remote user is on.
+	 *
+	 * @param username Username.
+	 * @return Node address, or null if no peer has that user.
+	 */
+	public String locate(String username) {
+		return directory.get(username);
+	}
+
+	/**
+	 * Builds the record listing every user logged in here.
+	 *
+	 * @return Sealed record.
+	 */
+	byte[] snapshot() {
+		StringBuilder record = new StringBuilder().append(SNAPSHOT);
+		for (String username : clients.usernames()) {
+			record.append(' ').append(username);
+		}
+		return seal(record.toString());
+	}
+
+	/**
+	 * Builds the record listing every node this one knows of.
+	 *
+	 * @return Sealed record.
+	 */
+	byte[] peerList() {
+		StringBuilder record = new StringBuilder().append(PEERS).append(' ').append(address);
+		for (String peer : links.keySet()) {
+			record.append(' ').append(peer);
+		}
+		return seal(record.toString());
+	}
+
+	/**
+	 * Queues a record on every link.
+	 */
+	private void publish(byte[] record) {
+		if (record == null) {
+			return;
+		}
+		for (ClusterLink link : links.values()) {
+			link.send(record);
+		}
+	}
+
+	/**
+	 * Encrypts a record and prefixes it with its length.
+	 *
+	 * @param record Plain text record.
+	 * @return Sealed record, or null if encryption failed.
+	 */
+	private static byte[] seal(String record) {
+		try {
+			byte[] bytes = Authenticator.encryptRaw(record, 4);
+			int length = bytes.length - 4;
+			bytes[0] = (byte) (length >>> 24);
+			bytes[1] = (byte) (length >>> 16);
+			bytes[2] = (byte) (length >>> 8);
+			bytes[3] = (byte) length;
+			return bytes;
+		} catch (GeneralSecurityException ex) {
+			LOGGER.log(Level.WARNING, "Failed to encrypt cluster record: {0}", ex.getMessage());
+			return null;
+		}
+	}
+}
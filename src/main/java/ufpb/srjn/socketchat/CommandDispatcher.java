@@ -0,0 +1,300 @@
+package ufpb.srjn.socketchat;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Routes commands sent by clients to their handlers. Commands are looked up in
+ * a table built once, by comparing the first word of the tokenized line in
+ * place, so dispatching a command doesn't allocate anything.
+ *
+ * @author samuel
+ */
+public class CommandDispatcher {
+
+	/**
+	 * Handler for a single command.
+	 */
+	@FunctionalInterface
+	public interface Command {
+		/**
+		 * Runs the command.
+		 *
+		 * @param client Client that sent the command.
+		 * @param line Tokenized command line.
+		 * @throws IOException If writing back to the client fails.
+		 */
+		void execute(ClientInstance client, CommandLine line) throws IOException;
+	}
+
+	// Command names and their handlers, at matching indexes
+	private String[] names = new String[0];
+	private Command[] commands = new Command[0];
+
+	/**
+	 * Constructor. Registers the built-in commands.
+	 */
+	public CommandDispatcher() {
+		register("bye", CommandDispatcher::bye);
+		register("send", CommandDispatcher::send);
+		register("list", CommandDispatcher::list);
+		register("rename", CommandDispatcher::rename);
+		register("history", CommandDispatcher::history);
+		register("join", CommandDispatcher::join);
+		register("leave", CommandDispatcher::leave);
+	}
+
+	/**
+	 * Adds a command to the table, replacing any command with the same name.
+	 *
+	 * @param name Command name, as typed by the client.
+	 * @param command Handler.
+	 */
+	public final void register(String name, Command command) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name)) {
+				commands[i] = command;
+				return;
+			}
+		}
+
+		names = Arrays.copyOf(names, names.length + 1);
+		commands = Arrays.copyOf(commands, commands.length + 1);
+		names[names.length - 1] = name;
+		commands[commands.length - 1] = command;
+	}
+
+	/**
+	 * Runs whichever command the client sent.
+	 *
+	 * @param client Client that sent the command.
+	 * @param line Tokenized command line.
+	 * @throws IOException If writing back to the client fails.
+	 */
+	public void dispatch(ClientInstance client, CommandLine line) throws IOException {
+		for (int i = 0; i < names.length; i++) {
+			if (line.is(0, names[i])) {
+				ServerMetrics.messageIn(names[i]);
+				commands[i].execute(client, line);
+				return;
+			}
+		}
+
+		// Client sent some other command.
+		ServerMetrics.messageIn("unknown");
+		client.writeFrame(Frame.error("Unknown command."));
+	}
+
+	/**
+	 * Client wants to disconnect.
+	 */
+	private static void bye(ClientInstance client, CommandLine line) throws IOException {
+		// Malformed command.
+		if (line.size() != 1) {
+			client.writeFrame(Frame.error("bye does not take any extra parameters."));
+			return;
+		}
+
+		client.writeFrame(Frame.disconnect());
+	}
+
+	/**
+	 * Client wants to send a message.
+	 */
+	private static void send(ClientInstance client, CommandLine line) throws IOException {
+		// Some parameters were missing from the command.
+		if (line.size() < 2) {
+			client.writeFrame(Frame.error("Malformed command."));
+			return;
+		}
+
+		// Message format: <IP>:<PORT>/~<username> : <message> <hour-date>
+		if (line.is(1, "-all")) {
+			// Send to all users.
+			StringBuilder message = line.scratch()
+				.append(client.getOrigin()).append(client.username).append(": ");
+			line.appendRest(2, message).append(' ').append(TimestampClock.now());
+
+			ServerApplication.sendGlobally(message.toString());
+		} else if (line.is(1, "-user")) {
+			// Send to a specific user.
+			if (line.size() < 3) {
+				client.writeFrame(Frame.error("Malformed command."));
+				return;
+			}
+			String desired_user = line.word(2);
+
+			// Make sure client is not sending himself a message.
+			if (client.username.equals(desired_user)) {
+				client.writeFrame(Frame.error("You can't send a private message to yourself."));
+				return;
+			}
+
+			StringBuilder message = line.scratch()
+				.append(client.getOrigin()).append(client.username)
+				.append(" to ").append(desired_user).append(" (private): ");
+			line.appendRest(3, message).append(' ').append(TimestampClock.now());
+
+			// The same frame goes to both sides of the conversation.
+			Frame frame = Frame.of(message.toString());
+			try {
+				// Send to desired client...
+				ServerApplication.sendToClient(frame, desired_user, client.username);
+
+				// ...and echo back to the client that sent it
+				client.writeFrame(frame);
+			} catch (NoSuchElementException ex) {
+				client.writeFrame(Frame.error("The username " + desired_user + " does not exist."));
+			}
+		} else if (line.is(1, "-room")) {
+			// Send to the members of a room.
+			if (line.size() < 3) {
+				client.writeFrame(Frame.error("Malformed command."));
+				return;
+			}
+			String room = RoomRegistry.normalize(line.word(2));
+
+			// Only members may talk in a room.
+			if (!client.rooms.contains(room)) {
+				client.writeFrame(Frame.error("You are not in #" + room + "."));
+				return;
+			}
+
+			StringBuilder message = line.scratch()
+				.append(client.getOrigin()).append(client.username)
+				.append(" to #").append(room).append(": ");
+			line.appendRest(3, message).append(' ').append(TimestampClock.now());
+
+			ServerApplication.sendToRoom(Frame.of(message.toString()), room, client.username);
+		} else {
+			// Second parameter was neither -all, -user nor -room.
+			client.writeFrame(Frame.error("Missing or wrong parameters for send command."));
+		}
+	}
+
+	/**
+	 * Client asked for a list of connected clients, or for changes to it.
+	 */
+	private static void list(ClientInstance client, CommandLine line) throws IOException {
+		PresenceIndex presence = ServerApplication.getPresence();
+
+		// Everyone, from the shared cached frame.
+		if (line.size() == 1) {
+			client.writeFrame(presence.list());
+			return;
+		}
+
+		if (line.size() == 2 && line.is(1, "-watch")) {
+			presence.watch(client);
+			return;
+		}
+
+		if (line.size() == 2 && line.is(1, "-unwatch")) {
+			if (!presence.unwatch(client)) {
+				client.writeFrame(Frame.error("You are not watching the client list."));
+			}
+			return;
+		}
+
+		if (line.size() == 3 && line.is(1, "-since")) {
+			try {
+				client.writeFrame(presence.since(Long.parseLong(line.word(2))));
+			} catch (NumberFormatException ex) {
+				client.writeFrame(Frame.error("Malformed command. Proper syntax is: list -since <version>"));
+			}
+			return;
+		}
+
+		// Any mix of -prefix <text> and -page <number>.
+		String prefix = "";
+		int page = 1;
+		for (int i = 1; i < line.size(); i += 2) {
+			if (i + 1 < line.size() && line.is(i, "-prefix")) {
+				prefix = line.word(i + 1);
+			} else if (i + 1 < line.size() && line.is(i, "-page")) {
+				try {
+					page = Integer.parseInt(line.word(i + 1));
+				} catch (NumberFormatException ex) {
+					page = 0;
+				}
+			} else {
+				page = 0;
+			}
+			if (page < 1) {
+				client.writeFrame(Frame.error("Malformed command. Proper syntax is: list [-prefix <text>] [-page <number>] | -since <version> | -watch | -unwatch"));
+				return;
+			}
+		}
+		client.writeFrame(presence.page(prefix, page));
+	}
+
+	/**
+	 * Client requested a rename.
+	 */
+	private static void rename(ClientInstance client, CommandLine line) throws IOException {
+		// Malformed command.
+		if (line.size() != 2) {
+			client.writeFrame(Frame.error("Malformed command. Proper syntax is: rename <new name>"));
+			return;
+		}
+
+		ServerApplication.renameClient(client, line.word(1));
+	}
+
+	/**
+	 * Client wants to see recent messages.
+	 */
+	private static void history(ClientInstance client, CommandLine line) throws IOException {
+		// Malformed command.
+		if (line.size() > 2) {
+			client.writeFrame(Frame.error("Malformed command. Proper syntax is: history [count]"));
+			return;
+		}
+
+		int count = 20;
+		if (line.size() == 2) {
+			try {
+				count = Integer.parseInt(line.word(1));
+			} catch (NumberFormatException ex) {
+				count = 0;
+			}
+			if (count < 1 || count > ServerApplication.MAX_REPLAY) {
+				client.writeFrame(Frame.error("History size must be between 1 and " + ServerApplication.MAX_REPLAY + "."));
+				return;
+			}
+		}
+
+		// The frames were encrypted when first sent; they go out again as they are.
+		List<Frame> frames = ServerApplication.getHistory(client.username, count);
+		frames.add(0, Frame.of("*** Last " + frames.size() + " messages:"));
+		client.writeFrames(frames);
+	}
+
+	/**
+	 * Client wants to join a room.
+	 */
+	private static void join(ClientInstance client, CommandLine line) throws IOException {
+		// Malformed command.
+		if (line.size() != 2 || RoomRegistry.normalize(line.word(1)).isEmpty()) {
+			client.writeFrame(Frame.error("Malformed command. Proper syntax is: join <room>"));
+			return;
+		}
+
+		ServerApplication.joinRoom(client, RoomRegistry.normalize(line.word(1)));
+	}
+
+	/**
+	 * Client wants to leave a room.
+	 */
+	private static void leave(ClientInstance client, CommandLine line) throws IOException {
+		// Malformed command.
+		if (line.size() != 2) {
+			client.writeFrame(Frame.error("Malformed command. Proper syntax is: leave <room>"));
+			return;
+		}
+
+		ServerApplication.leaveRoom(client, RoomRegistry.normalize(line.word(1)));
+	}
+}
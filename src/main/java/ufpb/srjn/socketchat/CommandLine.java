@@ -0,0 +1,136 @@
+package ufpb.srjn.socketchat;
+
+import java.util.Arrays;
+
+/**
+ * A command sent by a client, tokenized in place. Instead of splitting the line
+ * into new strings, only the start and end offsets of each space-separated word
+ * are recorded, so commands can be matched and message bodies sliced out without
+ * copying. Tokens follow String.split(" "): consecutive spaces make empty words
+ * and trailing empty words are dropped.
+ *
+ * An instance is reused for every command read from one connection, along with
+ * a scratch builder for formatting replies, so it must not be shared between
+ * threads.
+ *
+ * @author samuel
+ */
+public final class CommandLine {
+
+	// Line being parsed
+	private String line = "";
+
+	// Word offsets: word i is line[starts[i], ends[i])
+	private int[] starts = new int[8];
+	private int[] ends = new int[8];
+	private int count;
+
+	// Reusable builder for formatting outgoing messages
+	private final StringBuilder scratch = new StringBuilder(256);
+
+	/**
+	 * Tokenizes a new line, replacing the previous one.
+	 *
+	 * @param line Decrypted command sent by the client.
+	 * @return This command line.
+	 */
+	public CommandLine parse(String line) {
+		this.line = line;
+		this.count = 0;
+
+		int length = line.length();
+		int start = 0;
+		for (int i = 0; i <= length; i++) {
+			if (i == length || line.charAt(i) == ' ') {
+				add(start, i);
+				start = i + 1;
+			}
+		}
+
+		// Trailing empty words are dropped, just like split does.
+		while (count > 0 && starts[count - 1] == ends[count - 1]) {
+			count--;
+		}
+
+		return this;
+	}
+
+	/**
+	 * Records a word's offsets, growing the offset arrays if needed.
+	 *
+	 * @param start Index of the word's first char.
+	 * @param end Index after the word's last char.
+	 */
+	private void add(int start, int end) {
+		if (count == starts.length) {
+			starts = Arrays.copyOf(starts, count * 2);
+			ends = Arrays.copyOf(ends, count * 2);
+		}
+		starts[count] = start;
+		ends[count] = end;
+		count++;
+	}
+
+	/**
+	 * Returns how many words the line has.
+	 * @return Word count.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Checks whether a word equals the given text, without copying it.
+	 *
+	 * @param index Word index.
+	 * @param text Text to compare with.
+	 * @return True if the word exists and matches.
+	 */
+	public boolean is(int index, String text) {
+		if (index >= count) {
+			return false;
+		}
+
+		int length = ends[index] - starts[index];
+		return length == text.length() && line.regionMatches(starts[index], text, 0, length);
+	}
+
+	/**
+	 * Returns a single word.
+	 *
+	 * @param index Word index.
+	 * @return The word.
+	 * @throws ArrayIndexOutOfBoundsException If the line doesn't have that many words.
+	 */
+	public String word(int index) {
+		if (index >= count) {
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+		return line.substring(starts[index], ends[index]);
+	}
+
+	/**
+	 * Appends every word from the given one to the end of the line, with the
+	 * spaces between them, to a builder. Appends nothing if there are no such
+	 * words.
+	 *
+	 * @param index Index of the first word.
+	 * @param builder Where to append.
+	 * @return The builder.
+	 */
+	public StringBuilder appendRest(int index, StringBuilder builder) {
+		if (index < count) {
+			builder.append(line, starts[index], ends[count - 1]);
+		}
+		return builder;
+	}
+
+	/**
+	 * Returns the scratch builder, emptied, for formatting a reply.
+	 * @return Empty builder.
+	 */
+	public StringBuilder scratch() {
+		scratch.setLength(0);
+		return scratch;
+	}
+}
@@ -0,0 +1,510 @@
+package ufpb.srjn.socketchat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.logging.*;
+
+/**
+ * An immutable, typed message. Its wire encoding for each protocol version is
+ * encrypted and serialized at most once, the first time a client speaking that
+ * version needs it, so the same bytes can be written to any number of clients
+ * without paying for the cipher again.
+ *
+ * @author samuel
+ */
+public final class Frame {
+
+	// Logger handle
+	private static final Logger LOGGER = Logger.getLogger(Frame.class.getName());
+
+	/**
+	 * Serialized bytes of a frame, ready to be written as they are.
+	 */
+	public static final class Encoding {
+		// Backing array; the frame starts at offset and runs to the end.
+		final byte[] bytes;
+		final int offset;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param bytes Backing array.
+		 * @param offset Where the frame starts.
+		 */
+		Encoding(byte[] bytes, int offset) {
+			this.bytes = bytes;
+			this.offset = offset;
+		}
+
+		/**
+		 * Returns the frame's size on the wire.
+		 * @return Size in bytes.
+		 */
+		int length() {
+			return bytes.length - offset;
+		}
+	}
+
+	// What kind of message this is, and its body
+	private final MessageType type;
+	private final String text;
+
+	// Handshake replies are sent unencrypted and are the same in every version.
+	private final Encoding plain;
+
+	// Cached encodings, filled in on first use
+	private volatile Encoding v1;
+	private volatile Encoding v2;
+	// Version 2 for clients that accept compression; same as v2 when compressing doesn't pay off
+	private volatile Encoding v2z;
+
+	// Group key this frame is broadcast under, if any, and its sealed encodings
+	private volatile GroupKey group;
+	private volatile Encoding sealed;
+	private volatile Encoding sealed_z;
+
+	// For KEY messages, the key being handed out
+	private GroupKey granted;
+
+	// Place in the message history, or -1 if it isn't kept there
+	private volatile long sequence = -1;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param type Message type.
+	 * @param text Message body.
+	 * @param plain Fixed unencrypted encoding, or null.
+	 */
+	private Frame(MessageType type, String text, Encoding plain) {
+		this.type = type;
+		this.text = text;
+		this.plain = plain;
+	}
+
+	/**
+	 * Creates a regular text message.
+	 *
+	 * @param msg Message that will be sent.
+	 * @return Frame ready to be written to any client.
+	 */
+	public static Frame of(String msg) {
+		return new Frame(MessageType.TEXT, msg, null);
+	}
+
+	/**
+	 * Creates a typed message.
+	 *
+	 * @param type Message type.
+	 * @param text Message body.
+	 * @return Frame ready to be written to any client.
+	 */
+	public static Frame of(MessageType type, String text) {
+		return new Frame(type, text, null);
+	}
+
+	/**
+	 * Creates an error message.
+	 *
+	 * @param reason What went wrong.
+	 * @return Frame ready to be written to any client.
+	 */
+	public static Frame error(String reason) {
+		return new Frame(MessageType.ERROR, reason, null);
+	}
+
+	/**
+	 * Creates a message telling the client its new username.
+	 *
+	 * @param username New username.
+	 * @return Frame ready to be written to any client.
+	 */
+	public static Frame rename(String username) {
+		return new Frame(MessageType.RENAME, username, null);
+	}
+
+	/**
+	 * Creates a message handing a group key to a client. It's always sealed
+	 * under the client's own session key.
+	 *
+	 * @param key Group key.
+	 * @return Frame ready to be written to a client with session keys.
+	 */
+	static Frame key(GroupKey key) {
+		Frame frame = new Frame(MessageType.KEY, key.toText(), null);
+		frame.granted = key;
+		return frame;
+	}
+
+	/**
+	 * Creates a message telling the client to disconnect.
+	 *
+	 * @return Frame ready to be written to any client.
+	 */
+	public static Frame disconnect() {
+		return new Frame(MessageType.DISCONNECT, "", null);
+	}
+
+	/**
+	 * Serializes an unencrypted message into a frame. Only used for the
+	 * handshake replies, which are sent in plain text.
+	 *
+	 * @param msg Message that will be sent.
+	 * @return Frame ready to be written to a client.
+	 * @throws IOException If the message does not fit in a single frame.
+	 */
+	static Frame plain(String msg) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(msg.length() + 2);
+		new DataOutputStream(bytes).writeUTF(msg);
+		return new Frame(MessageType.TEXT, msg, new Encoding(bytes.toByteArray(), 0));
+	}
+
+	/**
+	 * Rebuilds a typed message from protocol v1 text, where the type is a prefix.
+	 *
+	 * @param text Decrypted protocol v1 text.
+	 * @return Typed frame.
+	 */
+	static Frame parseLegacy(String text) {
+		if (text.startsWith(MessageType.DISCONNECT.getPrefix())) {
+			return disconnect();
+		} else if (text.startsWith(MessageType.RENAME.getPrefix())) {
+			return rename(text.split(" ")[1]);
+		} else if (text.startsWith(MessageType.ERROR.getPrefix())) {
+			return error(text.substring(MessageType.ERROR.getPrefix().length()));
+		} else if (text.startsWith(MessageType.TICKET.getPrefix())) {
+			return of(MessageType.TICKET, text.substring(MessageType.TICKET.getPrefix().length()));
+		} else if (text.equals(MessageType.PING.getPrefix())) {
+			return of(MessageType.PING, "");
+		} else if (text.equals(MessageType.PONG.getPrefix())) {
+			return of(MessageType.PONG, "");
+		}
+		return of(text);
+	}
+
+	/**
+	 * Returns the type of this frame.
+	 * @return Message type.
+	 */
+	public MessageType getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the body of this frame, without any type prefix.
+	 * @return Plain text body.
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * Returns the group key this frame is broadcast under.
+	 * @return Group key, or null for frames meant for a single client.
+	 */
+	GroupKey getGroup() {
+		return group;
+	}
+
+	/**
+	 * Returns the key a KEY message hands out.
+	 * @return Group key, or null for any other frame.
+	 */
+	GroupKey getGrantedKey() {
+		return granted;
+	}
+
+	/**
+	 * Returns where this frame was put in the message history.
+	 * @return Sequence number, or -1 if it isn't kept there.
+	 */
+	long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Records where this frame was put in the message history. Only the first
+	 * call counts.
+	 *
+	 * @param sequence Sequence number.
+	 */
+	void setSequence(long sequence) {
+		if (this.sequence < 0) {
+			this.sequence = sequence;
+		}
+	}
+
+	/**
+	 * Marks this frame as a broadcast under a group key, so it can be sealed
+	 * once for every client holding that key. Only the first call counts; a
+	 * frame keeps its group key for its whole life, including history replays.
+	 *
+	 * @param key Group key.
+	 */
+	void share(GroupKey key) {
+		if (group == null && plain == null && granted == null) {
+			group = key;
+		}
+	}
+
+	/**
+	 * Returns this frame as protocol v1 text, with its type prefix.
+	 * @return Prefixed plain text.
+	 */
+	public String toLegacyText() {
+		return type == MessageType.DISCONNECT ? type.getPrefix() : type.getPrefix() + text;
+	}
+
+	/**
+	 * Returns the wire encoding for a protocol version, encrypting it the first
+	 * time it's needed.
+	 *
+	 * @param protocol Protocol version spoken by the receiving client.
+	 * @return Encoding, or null if this frame can't be sent in that version.
+	 */
+	Encoding encode(int protocol) {
+		return encode(protocol, false);
+	}
+
+	/**
+	 * Returns the wire encoding for a protocol version, compressing and
+	 * encrypting it the first time it's needed.
+	 *
+	 * @param protocol Protocol version spoken by the receiving client.
+	 * @param compress True if the client accepts compressed frames.
+	 * @return Encoding, or null if this frame can't be sent in that version.
+	 */
+	Encoding encode(int protocol, boolean compress) {
+		if (plain != null) {
+			return plain;
+		}
+
+		Encoding encoding = cached(protocol, compress);
+		if (encoding != null) {
+			return encoding;
+		}
+
+		synchronized (this) {
+			// Another writer may have encoded it while we waited.
+			encoding = cached(protocol, compress);
+			if (encoding == null) {
+				long started = System.nanoTime();
+				try {
+					if (protocol != Protocol.V2) {
+						encoding = v1 = encodeV1();
+					} else if (compress) {
+						encoding = v2z = encodeCompressed();
+					} else {
+						encoding = v2 = encodeV2();
+					}
+				} catch (IOException | GeneralSecurityException ex) {
+					LOGGER.log(Level.WARNING, "Failed to encode frame for protocol v{0}: {1}", new Object[]{protocol, ex.getMessage()});
+				}
+				ServerMetrics.encrypted(started);
+			}
+		}
+
+		return encoding;
+	}
+
+	/**
+	 * Returns this frame sealed under its group key, sealing it the first time
+	 * it's needed.
+	 *
+	 * @param compress True if the client accepts compressed frames.
+	 * @return Encoding, or null if the frame is too large.
+	 */
+	Encoding encodeGroup(boolean compress) {
+		Encoding encoding = compress ? sealed_z : sealed;
+		if (encoding != null) {
+			return encoding;
+		}
+
+		synchronized (this) {
+			encoding = compress ? sealed_z : sealed;
+			if (encoding == null) {
+				long started = System.nanoTime();
+				try {
+					encoding = seal(group, null, compress);
+					if (compress) {
+						sealed_z = encoding;
+					} else {
+						sealed = encoding;
+					}
+				} catch (IOException | GeneralSecurityException ex) {
+					LOGGER.log(Level.WARNING, "Failed to seal frame under group key: {0}", ex.getMessage());
+				}
+				ServerMetrics.encrypted(started);
+			}
+		}
+
+		return encoding;
+	}
+
+	/**
+	 * Seals this frame under one client's session keys. Never cached: each
+	 * seal uses up a nonce, so it must happen right before the frame is written.
+	 *
+	 * @param session Session keys of the receiving client.
+	 * @param compress True if the client accepts compressed frames.
+	 * @return Encoding, or null if the frame is too large.
+	 */
+	Encoding encodeSession(SessionKeys session, boolean compress) {
+		if (plain != null) {
+			return plain;
+		}
+
+		long started = System.nanoTime();
+		try {
+			return seal(null, session, compress);
+		} catch (IOException | GeneralSecurityException ex) {
+			LOGGER.log(Level.WARNING, "Failed to seal frame under session key: {0}", ex.getMessage());
+			return null;
+		} finally {
+			ServerMetrics.encrypted(started);
+		}
+	}
+
+	/**
+	 * Returns the cached encoding for a protocol version, if any.
+	 */
+	private Encoding cached(int protocol, boolean compress) {
+		if (protocol != Protocol.V2) {
+			return v1;
+		}
+		return compress ? v2z : v2;
+	}
+
+	/**
+	 * Encodes this frame as a writeUTF string holding Base64 cipher text.
+	 *
+	 * @return Protocol v1 encoding.
+	 * @throws IOException If the encrypted message does not fit in a single frame.
+	 * @throws GeneralSecurityException If encryption fails.
+	 */
+	private Encoding encodeV1() throws IOException, GeneralSecurityException {
+		// Encrypted straight into the frame, leaving room for the length prefix.
+		byte[] bytes = Authenticator.encryptToBase64(toLegacyText(), 2);
+
+		// Base64 output is plain ASCII, so its modified UTF-8 form is one byte per char.
+		int length = bytes.length - 2;
+		if (length > 65535) {
+			throw new IOException("Encrypted message too long for protocol v1: " + length + " bytes");
+		}
+
+		bytes[0] = (byte) (length >>> 8);
+		bytes[1] = (byte) length;
+		return new Encoding(bytes, 0);
+	}
+
+	/**
+	 * Encodes this frame as a varint length, a type byte and raw cipher text.
+	 *
+	 * @return Protocol v2 encoding.
+	 * @throws IOException If the encrypted message is larger than the frame limit.
+	 * @throws GeneralSecurityException If encryption fails.
+	 */
+	private Encoding encodeV2() throws IOException, GeneralSecurityException {
+		// Encrypted after the largest possible header; the real header is
+		// written right before the cipher text and the rest is skipped.
+		byte[] bytes = Authenticator.encryptRaw(text, Protocol.MAX_HEADER);
+		return frame(bytes, type.getCode());
+	}
+
+	/**
+	 * Encodes this frame like encodeV2, but with its body deflated first. Small
+	 * or incompressible bodies share the plain v2 encoding instead. Caller must
+	 * hold the frame's lock.
+	 *
+	 * @return Protocol v2 encoding, compressed if it's worth it.
+	 * @throws IOException If the encrypted message is larger than the frame limit.
+	 * @throws GeneralSecurityException If encryption fails.
+	 */
+	private Encoding encodeCompressed() throws IOException, GeneralSecurityException {
+		byte[] deflated = FrameCompressor.compress(text);
+		if (deflated == null) {
+			return v2 != null ? v2 : (v2 = encodeV2());
+		}
+
+		byte[] bytes = Authenticator.encryptRaw(deflated, deflated.length, Protocol.MAX_HEADER);
+		ServerMetrics.compressed(text.length(), deflated.length);
+		return frame(bytes, type.getCode() | Protocol.COMPRESSED);
+	}
+
+	/**
+	 * Writes a version 2 header in front of cipher text encrypted after
+	 * MAX_HEADER free bytes.
+	 *
+	 * @param bytes Header space followed by the cipher text.
+	 * @param code Type byte.
+	 * @return Encoding starting at the header.
+	 * @throws IOException If the frame is larger than the frame limit.
+	 */
+	private static Encoding frame(byte[] bytes, int code) throws IOException {
+		int length = bytes.length - Protocol.MAX_HEADER + 1;
+		if (length > Protocol.MAX_FRAME) {
+			throw new IOException("Encrypted message too long: " + length + " bytes");
+		}
+
+		int offset = Protocol.MAX_HEADER - 1 - Protocol.varintSize(length);
+		Protocol.writeVarint(length, bytes, offset);
+		bytes[Protocol.MAX_HEADER - 1] = (byte) code;
+		return new Encoding(bytes, offset);
+	}
+
+	/**
+	 * Rebuilds a frame from a decrypted version 2 body.
+	 *
+	 * @param code Type byte, with the compressed bit if set.
+	 * @param body Decrypted body.
+	 * @return Typed frame.
+	 * @throws IOException If the type is unknown or the body is malformed.
+	 */
+	static Frame decodeV2(int code, byte[] body) throws IOException {
+		MessageType type = MessageType.fromCode(code & ~(Protocol.COMPRESSED | Protocol.GROUP));
+		if (type == null) {
+			throw new IOException("Unknown message type: " + code);
+		}
+		if ((code & Protocol.COMPRESSED) != 0) {
+			return of(type, FrameCompressor.decompress(body));
+		}
+		return of(type, new String(body, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Seals this frame with AES-GCM, under either a group key or session keys.
+	 *
+	 * @param group_key Group key, or null to use the session keys.
+	 * @param session Session keys, used when there's no group key.
+	 * @param compress True to deflate the body first when it pays off.
+	 * @return Protocol v2 encoding.
+	 * @throws IOException If the sealed message is larger than the frame limit.
+	 * @throws GeneralSecurityException If encryption fails.
+	 */
+	private Encoding seal(GroupKey group_key, SessionKeys session, boolean compress) throws IOException, GeneralSecurityException {
+		byte[] deflated = compress ? FrameCompressor.compress(text) : null;
+		byte[] body = deflated != null ? deflated : text.getBytes(StandardCharsets.UTF_8);
+		int code = type.getCode() | (deflated != null ? Protocol.COMPRESSED : 0);
+
+		// Checked before sealing, since a session seal uses up a nonce.
+		int length = 1 + GroupKey.PREFIX + body.length + SessionKeys.TAG_BYTES;
+		if (length > Protocol.MAX_FRAME) {
+			throw new IOException("Sealed message too long: " + length + " bytes");
+		}
+
+		byte[] bytes;
+		if (group_key != null) {
+			bytes = group_key.seal(body, body.length, Protocol.MAX_HEADER);
+			code |= Protocol.GROUP;
+		} else {
+			bytes = session.seal(body, body.length, Protocol.MAX_HEADER);
+		}
+		if (deflated != null) {
+			ServerMetrics.compressed(text.length(), deflated.length);
+		}
+		return frame(bytes, code);
+	}
+}
@@ -0,0 +1,133 @@
+package ufpb.srjn.socketchat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates large message bodies before they are encrypted. Cipher text doesn't
+ * compress, so this has to happen first, and it happens once per frame: the
+ * result is cached in the frame's encoding like everything else.
+ *
+ * Both sides prime zlib with the same preset dictionary of words and protocol
+ * strings that show up in almost every message, so even a few hundred bytes of
+ * chat compress well. Changing the dictionary breaks compatibility with older
+ * peers, which is why it's fixed here and not configurable.
+ *
+ * Deflaters and inflaters hold native memory, so they are pooled the same way
+ * as cipher sessions instead of being created per message.
+ *
+ * @author samuel
+ */
+final class FrameCompressor {
+
+	// Configuration
+	static final int THRESHOLD = Integer.getInteger("socketchat.compress.threshold", 256);
+	private static final int LEVEL = Integer.getInteger("socketchat.compress.level", Deflater.DEFAULT_COMPRESSION);
+
+	// Shared by both sides; zlib matches best against the end, so the most
+	// frequent strings come last.
+	private static final byte[] DICTIONARY = (
+		"would there their about which when them been some could other were more than into "
+		+ "what your have from they will this with that just like know think yeah okay "
+		+ "the and you for are not but was can all it's don't I'm "
+		+ "*** Connected clients: *** Last  messages: *** You missed  messages while away: "
+		+ "This username is already taken. The username  does not exist. Malformed command. "
+		+ " changed username to  has disconnected from the server. has connected. "
+		+ " joined # left # to # (private): @/127.0.0.1:/0:0:0:0:0:0:0:1: "
+		+ "2026-01-01T00:00:00.000 ").getBytes(StandardCharsets.UTF_8);
+
+	// Idle deflaters and inflaters
+	private static final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+	private static final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Utility class.
+	 */
+	private FrameCompressor() {
+	}
+
+	/**
+	 * Compresses a message body, if it's worth it.
+	 *
+	 * @param text Message body.
+	 * @return Varint length of the UTF-8 text followed by the deflated text, or
+	 * null if the text is below the threshold or doesn't get any smaller.
+	 */
+	static byte[] compress(String text) {
+		if (text.length() < THRESHOLD) {
+			return null;
+		}
+
+		byte[] input = text.getBytes(StandardCharsets.UTF_8);
+		int header = Protocol.varintSize(input.length);
+		byte[] output = new byte[header + input.length];
+		Protocol.writeVarint(input.length, output, 0);
+
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			deflater = new Deflater(LEVEL);
+		}
+		try {
+			deflater.setDictionary(DICTIONARY);
+			deflater.setInput(input);
+			deflater.finish();
+			// Output is capped at the input size: anything larger isn't worth sending.
+			int length = header + deflater.deflate(output, header, input.length);
+			if (!deflater.finished() || length >= input.length) {
+				return null;
+			}
+			return java.util.Arrays.copyOf(output, length);
+		} finally {
+			deflater.reset();
+			deflaters.add(deflater);
+		}
+	}
+
+	/**
+	 * Restores a message body compressed by compress.
+	 *
+	 * @param src Compressed body.
+	 * @return Original text.
+	 * @throws IOException If the body is malformed or larger than a frame.
+	 */
+	static String decompress(byte[] src) throws IOException {
+		long varint = Protocol.peekVarint(src, 0, src.length);
+		if (varint < 0) {
+			throw new IOException("Truncated compressed frame.");
+		}
+		int header = (int) (varint >>> 32);
+		int length = (int) varint;
+		// Checked up front so a tiny frame can't inflate into gigabytes.
+		if (length < 0 || length > Protocol.MAX_FRAME) {
+			throw new IOException("Invalid uncompressed length: " + length);
+		}
+
+		Inflater inflater = inflaters.poll();
+		if (inflater == null) {
+			inflater = new Inflater();
+		}
+		try {
+			byte[] output = new byte[length];
+			inflater.setInput(src, header, src.length - header);
+			int n = inflater.inflate(output);
+			if (n == 0 && inflater.needsDictionary()) {
+				inflater.setDictionary(DICTIONARY);
+				n = inflater.inflate(output);
+			}
+			if (n != length || !inflater.finished()) {
+				throw new IOException("Compressed frame does not match its length.");
+			}
+			return new String(output, StandardCharsets.UTF_8);
+		} catch (DataFormatException ex) {
+			throw new IOException("Malformed compressed frame: " + ex.getMessage(), ex);
+		} finally {
+			inflater.reset();
+			inflaters.add(inflater);
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package ufpb.srjn.socketchat;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * An AES-GCM key shared by everyone a broadcast goes to, so the message is
+ * sealed once no matter how many clients get it. Every sealed body starts with
+ * the key's id and the nonce it was sealed with, since each client only sees
+ * some of the messages sealed under a key.
+ *
+ * Nonces come from a counter, so a key can seal 2^64 messages before it would
+ * repeat one; keys are rotated long before that (see GroupKeys).
+ *
+ * A sealed body can't be read or altered without the key, but it isn't tied to
+ * a connection or to an order. The same bytes go to every client. History and
+ * catch-up send them again later, possibly after newer ones. Concurrent
+ * broadcasts may take their nonces in a different order than some client gets
+ * them. So clients can't reject a body for carrying an old nonce, and anyone
+ * who can inject bytes into a connection can replay a broadcast sealed under a
+ * key that client still holds.
+ *
+ * @author samuel
+ */
+final class GroupKey {
+
+	// Bytes in front of the cipher text: key id and nonce counter
+	static final int PREFIX = 12;
+
+	// Source of new keys and ids
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	// Identifies the key in sealed bodies and KEY messages
+	final int id;
+
+	// Key material
+	private final byte[] raw;
+	private final SecretKeySpec key;
+
+	// When the key was made, for rotation
+	final long created = System.currentTimeMillis();
+
+	// Next nonce
+	private final AtomicLong counter = new AtomicLong();
+
+	// Idle ciphers; GCM needs a fresh init per message, so threads can't share one.
+	private final Queue<Cipher> ciphers = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param id Key id.
+	 * @param raw 128-bit key material.
+	 */
+	GroupKey(int id, byte[] raw) {
+		this.id = id;
+		this.raw = raw;
+		this.key = new SecretKeySpec(raw, "AES");
+	}
+
+	/**
+	 * Makes a new random key.
+	 *
+	 * @return Group key.
+	 */
+	static GroupKey generate() {
+		byte[] raw = new byte[16];
+		RANDOM.nextBytes(raw);
+		return new GroupKey(RANDOM.nextInt(), raw);
+	}
+
+	/**
+	 * Rebuilds a key from the body of a KEY message.
+	 *
+	 * @param text "<id> <Base64 key>".
+	 * @return Group key.
+	 * @throws IllegalArgumentException If the text is malformed.
+	 */
+	static GroupKey parse(String text) {
+		String[] words = text.split(" ");
+		if (words.length != 2) {
+			throw new IllegalArgumentException("Malformed group key.");
+		}
+		return new GroupKey(Integer.parseInt(words[0]), Base64.getDecoder().decode(words[1]));
+	}
+
+	/**
+	 * Returns the body of the KEY message that hands out this key.
+	 *
+	 * @return "<id> <Base64 key>".
+	 */
+	String toText() {
+		return id + " " + Base64.getEncoder().encodeToString(raw);
+	}
+
+	/**
+	 * Seals a frame body into a new array, after room for the frame header.
+	 *
+	 * @param body Plain body.
+	 * @param length How many bytes of body to seal, from index 0.
+	 * @param header Bytes to leave free at the start of the array.
+	 * @return Array holding the header space, key id, nonce, cipher text and tag.
+	 * @throws GeneralSecurityException If encryption fails.
+	 */
+	byte[] seal(byte[] body, int length, int header) throws GeneralSecurityException {
+		long sequence = counter.getAndIncrement();
+		byte[] nonce = new byte[12];
+		SessionKeys.nonce(nonce, sequence);
+
+		byte[] result = new byte[header + PREFIX + length + SessionKeys.TAG_BYTES];
+		writeInt(result, header, id);
+		System.arraycopy(nonce, 4, result, header + 4, 8);
+
+		Cipher cipher = acquire();
+		try {
+			cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(SessionKeys.TAG_BYTES * 8, nonce));
+			cipher.doFinal(body, 0, length, result, header + PREFIX);
+		} finally {
+			ciphers.add(cipher);
+		}
+		return result;
+	}
+
+	/**
+	 * Opens a body sealed under this key.
+	 *
+	 * @param src Array holding the sealed body, key id first.
+	 * @param offset Where the sealed body starts.
+	 * @param length Length of the sealed body.
+	 * @return Plain body.
+	 * @throws GeneralSecurityException If the body was tampered with.
+	 */
+	byte[] open(byte[] src, int offset, int length) throws GeneralSecurityException {
+		if (length < PREFIX + SessionKeys.TAG_BYTES) {
+			throw new GeneralSecurityException("Sealed body too short.");
+		}
+		byte[] nonce = new byte[12];
+		System.arraycopy(src, offset + 4, nonce, 4, 8);
+
+		Cipher cipher = acquire();
+		try {
+			cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(SessionKeys.TAG_BYTES * 8, nonce));
+			return cipher.doFinal(src, offset + PREFIX, length - PREFIX);
+		} finally {
+			ciphers.add(cipher);
+		}
+	}
+
+	/**
+	 * Reads the key id a sealed body starts with.
+	 *
+	 * @param src Array holding the sealed body.
+	 * @param offset Where the sealed body starts.
+	 * @return Key id.
+	 */
+	static int readId(byte[] src, int offset) {
+		return ((src[offset] & 0xff) << 24) | ((src[offset + 1] & 0xff) << 16)
+			| ((src[offset + 2] & 0xff) << 8) | (src[offset + 3] & 0xff);
+	}
+
+	/**
+	 * Borrows a cipher; must be handed back to the pool.
+	 */
+	private Cipher acquire() throws GeneralSecurityException {
+		Cipher cipher = ciphers.poll();
+		return cipher != null ? cipher : Cipher.getInstance("AES/GCM/NoPadding");
+	}
+
+	/**
+	 * Writes a big-endian int into an array.
+	 */
+	private static void writeInt(byte[] dst, int offset, int value) {
+		dst[offset] = (byte) (value >>> 24);
+		dst[offset + 1] = (byte) (value >>> 16);
+		dst[offset + 2] = (byte) (value >>> 8);
+		dst[offset + 3] = (byte) value;
+	}
+}
@@ -0,0 +1,180 @@
+package ufpb.srjn.socketchat;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Group keys for broadcasts: one for everyone on this server and one for each
+ * room. Clients with session keys get each group key they need in a KEY
+ * message, sealed under their own session key.
+ *
+ * A frame is only sealed under a group key for clients that have already been
+ * sent that key; everyone else gets it sealed under their session key. Each
+ * client's writer records the key when it writes the KEY message, so a client
+ * never receives a frame before the key to open it, and a key that is missing
+ * or was rotated away just costs a per-client seal instead of an error.
+ *
+ * Keys are rotated after socketchat.keys.rotate milliseconds (default one
+ * hour). A room's key is also rotated after someone leaves, so they can't read
+ * what's said after they're gone. That rotation waits for the room's next
+ * message, so a burst of departures costs a single rotation.
+ *
+ * @author samuel
+ */
+public class GroupKeys {
+
+	// Configuration
+	private static final long ROTATE_MILLIS = Long.getLong("socketchat.keys.rotate", 3600000L);
+
+	// Who the keys are handed out to
+	private final ClientRegistry clients;
+	private final RoomRegistry rooms;
+
+	// Current keys; created on first use
+	private volatile GroupKey global;
+	private final Map<String, GroupKey> room_keys = new ConcurrentHashMap<>();
+
+	// Rooms someone left since their key was made
+	private final Set<String> stale_rooms = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param clients Every client on this server.
+	 * @param rooms Room membership.
+	 */
+	public GroupKeys(ClientRegistry clients, RoomRegistry rooms) {
+		this.clients = clients;
+		this.rooms = rooms;
+	}
+
+	/**
+	 * Returns the key for messages to everyone, rotating it if it's too old.
+	 *
+	 * @return Current global key.
+	 */
+	public GroupKey global() {
+		GroupKey key = global;
+		if (key == null || expired(key)) {
+			key = rotateGlobal(key);
+		}
+		return key;
+	}
+
+	/**
+	 * Returns the key for messages to a room, rotating it if it's too old or
+	 * someone left.
+	 *
+	 * @param room Room name.
+	 * @return Current key for the room.
+	 */
+	public GroupKey room(String room) {
+		GroupKey key = room_keys.get(room);
+		boolean stale = stale_rooms.remove(room);
+		if (key == null || stale || expired(key)) {
+			key = rotateRoom(room, key);
+		}
+		return key;
+	}
+
+	/**
+	 * Hands the global key to a client that just logged in.
+	 *
+	 * @param client Client logging in.
+	 */
+	public void joined(ClientInstance client) {
+		GroupKey key = global;
+		if (key != null) {
+			grant(client, key, null);
+		}
+	}
+
+	/**
+	 * Hands a room's key to a client that just joined it.
+	 *
+	 * @param room Room name.
+	 * @param client Client joining.
+	 */
+	public void joinedRoom(String room, ClientInstance client) {
+		GroupKey key = room_keys.get(room);
+		if (key != null) {
+			grant(client, key, null);
+		}
+	}
+
+	/**
+	 * Marks a room's key for rotation after someone left, or forgets it if the
+	 * room is gone.
+	 *
+	 * @param room Room name.
+	 */
+	public void leftRoom(String room) {
+		if (rooms.members(room).isEmpty()) {
+			room_keys.remove(room);
+			stale_rooms.remove(room);
+		} else {
+			stale_rooms.add(room);
+		}
+	}
+
+	/**
+	 * Replaces the global key and hands the new one to every client.
+	 */
+	private synchronized GroupKey rotateGlobal(GroupKey old) {
+		// Someone else may have rotated it while we waited.
+		if (global != old) {
+			return global;
+		}
+
+		GroupKey key = GroupKey.generate();
+		global = key;
+		for (ClientInstance client : clients.clients()) {
+			grant(client, key, old);
+		}
+		return key;
+	}
+
+	/**
+	 * Replaces a room's key and hands the new one to its members.
+	 */
+	private synchronized GroupKey rotateRoom(String room, GroupKey old) {
+		GroupKey current = room_keys.get(room);
+		if (current != old) {
+			return current;
+		}
+
+		GroupKey key = GroupKey.generate();
+		room_keys.put(room, key);
+		for (ClientInstance client : rooms.members(room)) {
+			grant(client, key, old);
+		}
+		return key;
+	}
+
+	/**
+	 * Sends a key to a client that can use it, and stops using the key it
+	 * replaces for that client.
+	 */
+	private static void grant(ClientInstance client, GroupKey key, GroupKey old) {
+		if (client.session == null) {
+			return;
+		}
+		if (old != null) {
+			client.known_keys.remove(old.id);
+		}
+		try {
+			client.writeFrame(Frame.key(key));
+		} catch (IOException ex) {
+			// Client is gone already; its reader will clean up.
+		}
+	}
+
+	/**
+	 * Tells whether a key is due for rotation.
+	 */
+	private static boolean expired(GroupKey key) {
+		return System.currentTimeMillis() - key.created > ROTATE_MILLIS;
+	}
+}
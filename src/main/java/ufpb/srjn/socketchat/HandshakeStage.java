@@ -0,0 +1,164 @@
+package ufpb.srjn.socketchat;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.*;
+
+/**
+ * Runs the HASH/RENAME handshake for accepted sockets away from the accept
+ * loop. Handshakes run on their own worker pool, must finish within a deadline,
+ * and only a limited number may be pending at once; beyond that, new
+ * connections are turned away immediately.
+ *
+ * @author samuel
+ */
+public class HandshakeStage {
+
+	// Logger handle
+	private static final Logger LOGGER = Logger.getLogger(HandshakeStage.class.getName());
+
+	// Workers that run the handshakes
+	private final ExecutorService workers;
+
+	// Where clients go once their handshake succeeds
+	private final ExecutorService sessions;
+
+	// Closes sockets whose handshake takes too long
+	private final HashedWheelTimer deadlines;
+
+	// Limits
+	private final int max_pending;
+	private final long timeout_millis;
+
+	// Handshakes submitted but not finished yet
+	private final AtomicInteger pending = new AtomicInteger();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param workers Executor that runs the handshakes.
+	 * @param sessions Executor that runs a ServerThread for every logged-in client.
+	 * @param deadlines Timer for handshake deadlines.
+	 * @param max_pending Maximum number of handshakes waiting or in progress.
+	 * @param timeout_millis How long a client has to complete its handshake.
+	 */
+	public HandshakeStage(ExecutorService workers, ExecutorService sessions, HashedWheelTimer deadlines, int max_pending, long timeout_millis) {
+		this.workers = workers;
+		this.sessions = sessions;
+		this.deadlines = deadlines;
+		this.max_pending = max_pending;
+		this.timeout_millis = timeout_millis;
+	}
+
+	/**
+	 * Queues an accepted socket for its handshake. Never blocks on the client.
+	 *
+	 * @param socket Accepted socket.
+	 */
+	public void submit(Socket socket) {
+		// Too many logins in flight: turn this one away instead of queueing it.
+		if (pending.incrementAndGet() > max_pending) {
+			pending.decrementAndGet();
+			LOGGER.log(Level.WARNING, "Too many pending handshakes, rejecting connection from {0}", socket.getInetAddress());
+			ServerMetrics.handshake(false);
+			reject(socket);
+			return;
+		}
+
+		try {
+			workers.execute(() -> handshake(socket));
+		} catch (RuntimeException ex) {
+			pending.decrementAndGet();
+			ServerMetrics.handshake(false);
+			reject(socket);
+		}
+	}
+
+	/**
+	 * Runs the handshake on a freshly accepted socket, registers the client and
+	 * hands it over to the session executor.
+	 *
+	 * @param socket Accepted socket.
+	 */
+	private void handshake(Socket socket) {
+		// Closing the socket unblocks whatever read the handshake is stuck on.
+		HashedWheelTimer.Timeout deadline = deadlines.schedule(() -> {
+			LOGGER.log(Level.INFO, "Handshake timed out for {0}", socket.getInetAddress());
+			closeQuietly(socket);
+		}, timeout_millis);
+
+		try {
+			// Create client instance from open socket.
+			ClientInstance client = new ClientInstance(socket);
+
+			if (!deadline.cancel()) {
+				// Deadline fired right as the handshake finished.
+				ServerMetrics.handshake(false);
+				return;
+			}
+
+			// Make sure the connecting client's username is unique.
+			if (ServerApplication.registerClient(client)) {
+				ServerMetrics.handshake(true);
+				sessions.execute(new ServerThread(client));
+				return;
+			}
+
+			// Another client with this username is already connected.
+			LOGGER.log(Level.INFO, "User tried to login with already existing username: {0}", client.username);
+			ServerMetrics.handshake(false);
+			client.writeFrame(Frame.error("This username is already taken."));
+			client.close();
+		} catch (IOException ex) {
+			if (deadline.isExpired()) {
+				// The deadline closed the socket; it has already been logged as a timeout.
+				LOGGER.log(Level.FINE, "Handshake aborted after timing out: {0}", ex.getMessage());
+			} else if (socket.isClosed()) {
+				// We turned the client away ourselves, e.g. for a wrong password.
+				LOGGER.log(Level.INFO, "Rejected client {0}: {1}", new Object[]{socket.getInetAddress(), ex.getMessage()});
+			} else {
+				LOGGER.log(Level.SEVERE, "Failed to open I/O streams after client connected: {0}", ex.getMessage());
+			}
+			ServerMetrics.handshake(false);
+			closeQuietly(socket);
+		} catch (Exception ex) {
+			LOGGER.log(deadline.isExpired() ? Level.FINE : Level.WARNING, "Error during client connection: {0}", ex.getMessage());
+			ServerMetrics.handshake(false);
+			closeQuietly(socket);
+		} finally {
+			deadline.cancel();
+			pending.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Tells a client the server is too busy and closes its socket.
+	 *
+	 * @param socket Socket to reject.
+	 */
+	private static void reject(Socket socket) {
+		try {
+			// The client expects "OK" as the handshake reply; anything else is shown as an error.
+			new DataOutputStream(socket.getOutputStream()).writeUTF("Server is busy, try again later.");
+		} catch (IOException ex) {
+			// Client is already gone
+		}
+		closeQuietly(socket);
+	}
+
+	/**
+	 * Closes a socket, ignoring errors.
+	 *
+	 * @param socket Socket to close.
+	 */
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException ex) {
+			// Nothing else to do
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package ufpb.srjn.socketchat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.*;
+
+/**
+ * A timer for large numbers of coarse timeouts, such as one or two per
+ * connection. Timeouts are hashed into a ring of buckets by the tick they
+ * expire on; a single thread advances one bucket per tick and only looks at
+ * that bucket, so scheduling, cancelling and expiring are all O(1) however
+ * many timeouts are pending. Timeouts further away than one turn of the wheel
+ * just wait a few more turns in their bucket.
+ *
+ * Timeouts fire up to one tick late, and their tasks run on the timer thread
+ * one after the other, every task due on a tick in one batch. Tasks must be
+ * short; anything slow belongs on another executor.
+ *
+ * @author samuel
+ */
+public class HashedWheelTimer {
+
+	// Logger handle
+	private static final Logger LOGGER = Logger.getLogger(HashedWheelTimer.class.getName());
+
+	/**
+	 * A task scheduled on the wheel.
+	 */
+	public static final class Timeout {
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final Runnable task;
+		// When it's due, relative to the timer's start
+		private final long deadline;
+		// Turns of the wheel left before it's due (timer thread only)
+		private long rounds;
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the timeout. A cancelled timeout stays in its bucket until the
+		 * wheel next passes it, but never runs.
+		 *
+		 * @return False if the task already ran or was cancelled before.
+		 */
+		public boolean cancel() {
+			return state.compareAndSet(PENDING, CANCELLED);
+		}
+
+		/**
+		 * Tells whether the task has run or is running.
+		 *
+		 * @return True once the timeout has expired.
+		 */
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+	}
+
+	// Length of a tick and the buckets, one per tick of a turn
+	private final long tick_nanos;
+	private final List<List<Timeout>> wheel = new ArrayList<>();
+	private final int mask;
+
+	// Timeouts scheduled since the last tick, waiting to be put in a bucket
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+
+	// When the wheel started turning; deadlines are relative to it
+	private final long start = System.nanoTime();
+
+	/**
+	 * Constructor. Starts the timer thread.
+	 *
+	 * @param tick_millis Length of a tick, and how late a timeout may fire.
+	 * @param buckets Number of buckets, rounded up to a power of two.
+	 */
+	public HashedWheelTimer(long tick_millis, int buckets) {
+		this.tick_nanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tick_millis));
+
+		int size = Integer.highestOneBit(Math.max(1, buckets - 1)) << 1;
+		for (int i = 0; i < size; i++) {
+			wheel.add(new ArrayList<>());
+		}
+		this.mask = size - 1;
+
+		Thread thread = new Thread(this::run, "timer-wheel");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Schedules a task.
+	 *
+	 * @param task Task to run on the timer thread.
+	 * @param delay_millis How long from now it should run.
+	 * @return Handle to cancel it with.
+	 */
+	public Timeout schedule(Runnable task, long delay_millis) {
+		long deadline = System.nanoTime() - start + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay_millis));
+		Timeout timeout = new Timeout(task, deadline);
+		added.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Timer thread: advances one bucket per tick and runs what's due.
+	 */
+	private void run() {
+		List<Timeout> due = new ArrayList<>();
+		long tick = 0;
+		while (true) {
+			// Sleep until the end of this tick.
+			long wake = start + (tick + 1) * tick_nanos;
+			long now;
+			while ((now = System.nanoTime()) < wake) {
+				LockSupport.parkNanos(wake - now);
+			}
+
+			place(tick);
+			collect(wheel.get((int) (tick & mask)), now - start, due);
+			for (Timeout timeout : due) {
+				try {
+					timeout.task.run();
+				} catch (RuntimeException ex) {
+					LOGGER.log(Level.WARNING, "Timer task failed: {0}", ex.getMessage());
+				}
+			}
+			due.clear();
+			tick++;
+		}
+	}
+
+	/**
+	 * Moves newly scheduled timeouts into their buckets. Timeouts already due
+	 * go in the current bucket.
+	 */
+	private void place(long tick) {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			if (timeout.state.get() == Timeout.CANCELLED) {
+				continue;
+			}
+			long ticks = timeout.deadline / tick_nanos;
+			timeout.rounds = Math.max(0, (ticks - tick) / wheel.size());
+			wheel.get((int) (Math.max(ticks, tick) & mask)).add(timeout);
+		}
+	}
+
+	/**
+	 * Takes whatever is due out of a bucket, dropping cancelled timeouts and
+	 * keeping the ones due on a later turn.
+	 */
+	private static void collect(List<Timeout> bucket, long now, List<Timeout> due) {
+		int kept = 0;
+		for (int i = 0; i < bucket.size(); i++) {
+			Timeout timeout = bucket.get(i);
+			if (timeout.state.get() == Timeout.CANCELLED) {
+				continue;
+			}
+			if (timeout.rounds > 0 || timeout.deadline > now) {
+				if (timeout.rounds > 0) {
+					timeout.rounds--;
+				}
+				bucket.set(kept++, timeout);
+				continue;
+			}
+			if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+				due.add(timeout);
+			}
+		}
+		bucket.subList(kept, bucket.size()).clear();
+	}
+}
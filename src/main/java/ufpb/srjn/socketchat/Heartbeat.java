@@ -0,0 +1,120 @@
+package ufpb.srjn.socketchat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.*;
+
+/**
+ * Finds connections that have gone quiet and drops the dead ones, so half-open
+ * sockets stop costing every broadcast a write. Each logged-in client gets one
+ * check on the shared timer wheel, every socketchat.ping.interval milliseconds
+ * (default 30000). A client that sent nothing in that time is sent a PING,
+ * which it answers with a PONG; one that sent nothing, not even a PONG, for
+ * socketchat.idle.timeout milliseconds (default 90000) is dropped.
+ *
+ * Only clients that offered heartbeats in their handshake are checked, since
+ * for older clients silence just means nobody is typing. Dead clients found
+ * on the same tick are taken off the registry together, and their sockets are
+ * closed afterwards; their readers then clean up as usual.
+ *
+ * @author samuel
+ */
+public class Heartbeat {
+
+	// Logger handle
+	private static final Logger LOGGER = Logger.getLogger(Heartbeat.class.getName());
+
+	// Configuration
+	private static final long PING_MILLIS = Long.getLong("socketchat.ping.interval", 30000L);
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("socketchat.idle.timeout", 90000L));
+
+	// Sent to every quiet client; encrypted once per protocol
+	private static final Frame PING = Frame.of(MessageType.PING, "");
+
+	// Where the checks run, and whom dead clients are removed from
+	private final HashedWheelTimer timer;
+	private final ClientRegistry clients;
+
+	// Dead clients waiting to be dropped, and whether a drop is scheduled
+	private final Queue<ClientInstance> dead = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean reap_scheduled = new AtomicBoolean();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param timer Timer the checks run on.
+	 * @param clients Registry dead clients are removed from.
+	 */
+	public Heartbeat(HashedWheelTimer timer, ClientRegistry clients) {
+		this.timer = timer;
+		this.clients = clients;
+	}
+
+	/**
+	 * Starts checking a client that just logged in, if it answers pings.
+	 *
+	 * @param client Logged-in client.
+	 */
+	public void watch(ClientInstance client) {
+		if (client.pings && PING_MILLIS > 0) {
+			timer.schedule(() -> check(client), PING_MILLIS);
+		}
+	}
+
+	/**
+	 * Pings a quiet client, or marks a silent one as dead. Timer thread only.
+	 */
+	private void check(ClientInstance client) {
+		if (client.closing) {
+			return;
+		}
+
+		long quiet = System.nanoTime() - client.last_read;
+		if (quiet >= IDLE_NANOS) {
+			client.unresponsive = true;
+			dead.add(client);
+			if (reap_scheduled.compareAndSet(false, true)) {
+				// Runs on the next tick, after every check due on this one.
+				timer.schedule(this::reap, 0);
+			}
+			return;
+		}
+
+		if (quiet >= TimeUnit.MILLISECONDS.toNanos(PING_MILLIS)) {
+			try {
+				client.writeFrame(PING);
+			} catch (IOException ex) {
+				// Client is gone already; its reader will clean up.
+				return;
+			}
+		}
+		timer.schedule(() -> check(client), PING_MILLIS);
+	}
+
+	/**
+	 * Drops every client found dead since the last reap. Timer thread only.
+	 */
+	private void reap() {
+		reap_scheduled.set(false);
+
+		// Off the registry first, so broadcasts stop paying for them at once.
+		List<ClientInstance> batch = new ArrayList<>();
+		ClientInstance client;
+		while ((client = dead.poll()) != null) {
+			clients.remove(client);
+			batch.add(client);
+		}
+		for (ClientInstance gone : batch) {
+			gone.abort();
+		}
+
+		if (!batch.isEmpty()) {
+			LOGGER.log(Level.INFO, "Dropped {0} idle connections.", batch.size());
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package ufpb.srjn.socketchat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe log-linear histogram in the style of HdrHistogram. Values below
+ * 128 get a bucket each; above that, every power of two is split into 64
+ * buckets, so any recorded value is reported within about 1.6% of its real
+ * value while the whole long range fits in under 4000 counters. Units are up
+ * to the caller.
+ *
+ * @author samuel
+ */
+public class LatencyHistogram {
+
+	// Bucket layout: SUB_BUCKETS linear buckets, then HALF buckets per power of two
+	private static final int SUB_BUCKETS = 128;
+	private static final int HALF = SUB_BUCKETS / 2;
+	private static final int BUCKETS = SUB_BUCKETS + (63 - 6) * HALF;
+
+	// Counts per bucket
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	// Totals
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value. Negative values are recorded as zero.
+	 *
+	 * @param value Value to record.
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+
+		counts.incrementAndGet(indexOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			// Someone else raised the max; check again.
+		}
+	}
+
+	/**
+	 * Adds every value recorded in another histogram to this one.
+	 *
+	 * @param other Histogram to add.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long n = other.counts.get(i);
+			if (n != 0) {
+				counts.addAndGet(i, n);
+			}
+		}
+		count.addAndGet(other.count.get());
+		sum.addAndGet(other.sum.get());
+
+		long value = other.max.get();
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			// Someone else raised the max; check again.
+		}
+	}
+
+	/**
+	 * Returns how many values were recorded.
+	 * @return Value count.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns the sum of every recorded value.
+	 * @return Sum.
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+
+	/**
+	 * Returns the largest value recorded.
+	 * @return Exact maximum, or 0 if empty.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the mean of every recorded value.
+	 * @return Mean, or 0 if empty.
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Returns the value below which the given percentage of values fall.
+	 *
+	 * @param percentile Percentile, from 0 to 100.
+	 * @return Highest value equivalent to the percentile's bucket, or 0 if empty.
+	 */
+	public long getPercentile(double percentile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+
+		// Rank of the value we're after, at least the first one.
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestIn(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Returns a one-line summary, for reports.
+	 *
+	 * @param unit Unit name appended to the values.
+	 * @return Summary.
+	 */
+	public String summary(String unit) {
+		return String.format("n=%d mean=%.1f p50=%d p90=%d p99=%d p99.9=%d max=%d %s",
+			getCount(), getMean(), getPercentile(50), getPercentile(90),
+			getPercentile(99), getPercentile(99.9), getMax(), unit);
+	}
+
+	/**
+	 * Finds the bucket a value belongs to.
+	 *
+	 * @param value Non-negative value.
+	 * @return Bucket index.
+	 */
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+
+		// Shift the value until it lands in [64, 128).
+		int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+		return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+	}
+
+	/**
+	 * Returns the largest value that falls into a bucket.
+	 *
+	 * @param index Bucket index.
+	 * @return Bucket's upper bound.
+	 */
+	private static long highestIn(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+
+		int shift = (index - SUB_BUCKETS) / HALF + 1;
+		long sub = (index - SUB_BUCKETS) % HALF + HALF;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,407 @@
+package ufpb.srjn.socketchat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load generator for capacity testing. Opens a number of concurrent
+ * sessions to a server using the regular client handshake, drives a mix of
+ * send -all, send -user, list and rename commands at a fixed rate, and reports
+ * connect latency, round-trip percentiles and throughput.
+ *
+ * Round trips are measured from when a command was due to be sent, not from
+ * when it actually went out, so a stalled server or socket shows up in the
+ * percentiles instead of silently lowering the send rate.
+ *
+ * Options are system properties:
+ * socketchat.loadgen.duration (seconds, 30), socketchat.loadgen.rate
+ * (commands per second per session, 10), socketchat.loadgen.mix (weights,
+ * "all=70,user=20,list=5,rename=5"), socketchat.loadgen.size (message length,
+ * 64), socketchat.loadgen.slow (sessions that never read, to reproduce slow
+ * consumers, 0), socketchat.loadgen.connectors (parallel logins, 16) and
+ * socketchat.loadgen.report (seconds between interval reports, 5).
+ *
+ * @author samuel
+ */
+public class LoadGenerator {
+
+	// Configuration
+	private static final int DURATION = Integer.getInteger("socketchat.loadgen.duration", 30);
+	private static final double RATE = Double.parseDouble(System.getProperty("socketchat.loadgen.rate", "10"));
+	private static final String MIX = System.getProperty("socketchat.loadgen.mix", "all=70,user=20,list=5,rename=5");
+	private static final int SIZE = Integer.getInteger("socketchat.loadgen.size", 64);
+	private static final int SLOW = Integer.getInteger("socketchat.loadgen.slow", 0);
+	private static final int CONNECTORS = Integer.getInteger("socketchat.loadgen.connectors", 16);
+	private static final int REPORT = Integer.getInteger("socketchat.loadgen.report", 5);
+
+	/**
+	 * Commands the generator sends.
+	 */
+	private enum Kind { ALL, USER, LIST, RENAME }
+
+	// Round-trip times per command kind, in microseconds
+	private static final LatencyHistogram[] round_trips = new LatencyHistogram[Kind.values().length];
+
+	// Round-trip times since the last interval report, every kind together
+	private static volatile LatencyHistogram interval = new LatencyHistogram();
+
+	// Connect latency, in microseconds
+	private static final LatencyHistogram connects = new LatencyHistogram();
+
+	// Counters
+	private static final LongAdder sent = new LongAdder();
+	private static final LongAdder delivered = new LongAdder();
+	private static final LongAdder errors = new LongAdder();
+	private static final LongAdder dropped = new LongAdder();
+
+	// Cumulative weights for picking a command, indexed by Kind
+	private static final int[] weights = new int[Kind.values().length];
+
+	// Every session, in id order
+	private static final List<Session> sessions = new ArrayList<>();
+
+	// Filler appended to every message to reach the configured size
+	private static String payload;
+
+	/**
+	 * A single simulated user.
+	 */
+	private static final class Session {
+		final int id;
+		final String base_name;
+		final boolean slow;
+		ClientInstance client;
+
+		// Set once the connection is lost or never came up
+		volatile boolean closed;
+
+		// Send times of list and rename commands still waiting for their reply
+		final Queue<Long> pending_lists = new ConcurrentLinkedQueue<>();
+		final Queue<Long> pending_renames = new ConcurrentLinkedQueue<>();
+
+		// When the next command is due, and whether the next rename goes to the alternate name
+		long next_due;
+		boolean alternate;
+
+		Session(int id, boolean slow) {
+			this.id = id;
+			this.base_name = "load" + id;
+			this.slow = slow;
+		}
+
+		/**
+		 * Sends the next command, if it's due. Runs on a sender thread.
+		 *
+		 * @param period Nanoseconds between commands.
+		 */
+		void tick(long period) {
+			long now = System.nanoTime();
+			if (closed || now < next_due) {
+				return;
+			}
+			long due = next_due;
+			next_due += period;
+
+			try {
+				switch (pick()) {
+					case ALL:
+						client.writeOut("send -all #A" + id + ":" + due + "# " + payload);
+						break;
+					case USER:
+						Session target = sessions.get(ThreadLocalRandom.current().nextInt(sessions.size()));
+						if (target == this || target.client == null) {
+							return;
+						}
+						client.writeOut("send -user " + target.client.username + " #U" + id + ":" + due + "# " + payload);
+						break;
+					case LIST:
+						pending_lists.add(due);
+						client.writeOut("list");
+						break;
+					case RENAME:
+						pending_renames.add(due);
+						alternate = !alternate;
+						client.writeOut("rename " + base_name + (alternate ? "b" : ""));
+						break;
+				}
+				sent.increment();
+			} catch (IOException ex) {
+				closed = true;
+				dropped.increment();
+			}
+		}
+
+		/**
+		 * Reads everything the server sends until the connection ends. Runs on
+		 * this session's reader thread.
+		 */
+		void read() {
+			try {
+				while (true) {
+					Frame frame = client.readFrame();
+					long now = System.nanoTime();
+
+					switch (frame.getType()) {
+						case DISCONNECT:
+							closed = true;
+							dropped.increment();
+							return;
+						case RENAME:
+							client.username = frame.getText();
+							complete(Kind.RENAME, pending_renames.poll(), now);
+							break;
+						case TICKET:
+							// Sessions never reconnect, so tickets aren't needed.
+							break;
+						case ERROR:
+							errors.increment();
+							if (frame.getText().startsWith("This username is already taken")) {
+								complete(Kind.RENAME, pending_renames.poll(), now);
+							}
+							break;
+						default:
+							onText(frame.getText(), now);
+					}
+				}
+			} catch (IOException ex) {
+				// Connection closed, either by us at the end of the run or by the server.
+				closed = true;
+			}
+		}
+
+		/**
+		 * Handles a regular message: list replies and chat messages carrying a
+		 * "#<kind><session>:<due>#" marker.
+		 */
+		private void onText(String text, long now) {
+			if (text.startsWith("*** Connected clients:")) {
+				complete(Kind.LIST, pending_lists.poll(), now);
+				return;
+			}
+
+			int marker = text.indexOf('#');
+			int colon = marker < 0 ? -1 : text.indexOf(':', marker);
+			int end = colon < 0 ? -1 : text.indexOf('#', colon);
+			if (end < 0) {
+				// Join, leave and rename announcements.
+				return;
+			}
+
+			delivered.increment();
+			try {
+				// Only the sender's own copy counts as a round trip.
+				if (Integer.parseInt(text.substring(marker + 2, colon)) == id) {
+					Kind kind = text.charAt(marker + 1) == 'U' ? Kind.USER : Kind.ALL;
+					complete(kind, Long.parseLong(text.substring(colon + 1, end)), now);
+				}
+			} catch (NumberFormatException ex) {
+				// Someone typed a '#' of their own.
+			}
+		}
+	}
+
+	/**
+	 * Load generator entry point.
+	 *
+	 * @param args Command-line parameters.
+	 */
+	public static void main(String[] args) throws Exception {
+		// Validate user-supplied command line parameters.
+		if (args.length != 3) {
+			System.out.println("ERROR: Incorrect number of parameters.\nUsage: LoadGenerator [host:port] [password] [sessions]");
+			return;
+		}
+
+		String host;
+		int port;
+		int count;
+		try {
+			host = args[0].split(":")[0];
+			port = Integer.parseInt(args[0].split(":")[1]);
+			count = Integer.parseInt(args[2]);
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+			System.out.println("ERROR: Failed to parse host:port or session count.");
+			return;
+		}
+
+		Authenticator.setPassword(args[1]);
+		parseMix();
+		for (int i = 0; i < round_trips.length; i++) {
+			round_trips[i] = new LatencyHistogram();
+		}
+
+		StringBuilder filler = new StringBuilder(SIZE);
+		for (int i = 0; i < SIZE; i++) {
+			filler.append((char) ('a' + i % 26));
+		}
+		payload = filler.toString();
+
+		// Log in every session, several at a time.
+		System.out.println("Connecting " + count + " sessions (" + Math.min(SLOW, count) + " slow) to " + host + ":" + port + "...");
+		for (int i = 0; i < count; i++) {
+			sessions.add(new Session(i, i < SLOW));
+		}
+
+		ExecutorService connectors = Executors.newFixedThreadPool(CONNECTORS);
+		List<Future<?>> logins = new ArrayList<>();
+		for (Session session : sessions) {
+			logins.add(connectors.submit(() -> connect(session, host, port)));
+		}
+		for (Future<?> login : logins) {
+			login.get();
+		}
+		connectors.shutdown();
+		System.out.println("Connect latency: " + connects.summary("us"));
+
+		// Start reading; slow sessions never read, so the server has to queue for them.
+		for (Session session : sessions) {
+			if (!session.slow && !session.closed) {
+				Thread reader = new Thread(session::read, "reader-" + session.id);
+				reader.setDaemon(true);
+				reader.start();
+			}
+		}
+
+		// Spread every session's commands evenly over the sender threads.
+		long period = (long) (TimeUnit.SECONDS.toNanos(1) / RATE);
+		long start = System.nanoTime();
+		int senders = Runtime.getRuntime().availableProcessors();
+		ScheduledExecutorService sender_pool = Executors.newScheduledThreadPool(senders);
+		for (int t = 0; t < senders; t++) {
+			List<Session> share = new ArrayList<>();
+			for (int i = t; i < sessions.size(); i += senders) {
+				Session session = sessions.get(i);
+				if (!session.slow && !session.closed) {
+					session.next_due = start + ThreadLocalRandom.current().nextLong(period);
+					share.add(session);
+				}
+			}
+			sender_pool.scheduleAtFixedRate(() -> {
+				for (Session session : share) {
+					session.tick(period);
+				}
+			}, 0, Math.max(1, period / 100), TimeUnit.NANOSECONDS);
+		}
+
+		// Report every few seconds until time is up.
+		long last_sent = 0;
+		long last_delivered = 0;
+		for (int elapsed = REPORT; elapsed <= DURATION; elapsed += REPORT) {
+			Thread.sleep(TimeUnit.SECONDS.toMillis(REPORT));
+			LatencyHistogram window = interval;
+			interval = new LatencyHistogram();
+
+			long now_sent = sent.sum();
+			long now_delivered = delivered.sum();
+			System.out.printf("[%3ds] sent %.0f/s, delivered %.0f/s, errors %d, dropped %d, rtt p50=%dus p99=%dus max=%dus%n",
+				elapsed, (now_sent - last_sent) / (double) REPORT, (now_delivered - last_delivered) / (double) REPORT,
+				errors.sum(), dropped.sum(), window.getPercentile(50), window.getPercentile(99), window.getMax());
+			last_sent = now_sent;
+			last_delivered = now_delivered;
+		}
+
+		// Stop sending, give in-flight replies a moment, then print the totals.
+		sender_pool.shutdownNow();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		Thread.sleep(1000);
+
+		System.out.println("Summary:");
+		System.out.println("  connect: " + connects.summary("us"));
+		for (Kind kind : Kind.values()) {
+			System.out.println("  " + kind.name().toLowerCase() + ": " + round_trips[kind.ordinal()].summary("us"));
+		}
+		System.out.printf("  throughput: %.0f commands/s sent, %.0f messages/s delivered%n", sent.sum() / seconds, delivered.sum() / seconds);
+		System.out.println("  errors: " + errors.sum() + ", dropped sessions: " + dropped.sum());
+
+		for (Session session : sessions) {
+			if (session.client == null) {
+				continue;
+			}
+			try {
+				session.client.close();
+			} catch (IOException ex) {
+				// Already gone
+			}
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Logs a session in and records how long it took. Sessions that fail to log
+	 * in are counted as dropped and sit out the run.
+	 */
+	private static void connect(Session session, String host, int port) {
+		long started = System.nanoTime();
+		try {
+			Socket socket = new Socket(host, port);
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), ClientInstance.STREAM_BUFFER));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), ClientInstance.STREAM_BUFFER));
+			session.client = new ClientInstance(socket, in, out, session.base_name);
+			connects.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started));
+		} catch (IOException ex) {
+			System.out.println("Session " + session.id + " failed to connect: " + ex.getMessage());
+			session.closed = true;
+			dropped.increment();
+		}
+	}
+
+	/**
+	 * Records a round trip, if the command's send time is known.
+	 */
+	private static void complete(Kind kind, Long due, long now) {
+		if (due == null) {
+			return;
+		}
+		long micros = TimeUnit.NANOSECONDS.toMicros(now - due);
+		round_trips[kind.ordinal()].record(micros);
+		interval.record(micros);
+	}
+
+	/**
+	 * Parses the command mix into cumulative weights.
+	 */
+	private static void parseMix() {
+		int total = 0;
+		for (String entry : MIX.split(",")) {
+			String[] pair = entry.trim().split("=");
+			Kind kind = Kind.valueOf(pair[0].trim().toUpperCase());
+			weights[kind.ordinal()] = Integer.parseInt(pair[1].trim());
+		}
+		for (int i = 0; i < weights.length; i++) {
+			total += weights[i];
+			weights[i] = total;
+		}
+		if (total == 0) {
+			throw new IllegalArgumentException("socketchat.loadgen.mix must give some command a weight.");
+		}
+	}
+
+	/**
+	 * Picks a command at random according to the mix.
+	 */
+	private static Kind pick() {
+		int roll = ThreadLocalRandom.current().nextInt(weights[weights.length - 1]);
+		for (Kind kind : Kind.values()) {
+			if (roll < weights[kind.ordinal()]) {
+				return kind;
+			}
+		}
+		return Kind.ALL;
+	}
+}
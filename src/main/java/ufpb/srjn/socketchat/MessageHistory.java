@@ -0,0 +1,333 @@
+package ufpb.srjn.socketchat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * In-memory history of recent messages, used to catch clients up on what they
+ * missed. Broadcasts go into one preallocated ring; private messages go into a
+ * smaller ring for each side of the conversation. Recording claims a slot with
+ * a single atomic increment and reading never locks, so serving history never
+ * holds up a live broadcast.
+ *
+ * The rings keep the same Frame objects that were sent live. Their encodings
+ * are already cached, so a replay doesn't encrypt anything again. Each frame
+ * also remembers its sequence number, so a client can tell a replayed message
+ * from one it already got live.
+ *
+ * Users are only known by name, but a name can change hands: once its owner
+ * is gone, anyone may log in as it or rename to it. So private history belongs
+ * to a session, not to a name. It follows renames and ticket resumes, which
+ * prove it's the same session. A fresh login, or a rename onto a name last used
+ * by someone else, starts with an empty private history, so nobody reads
+ * another user's private messages. Everything is forgotten on restart.
+ *
+ * @author samuel
+ */
+public class MessageHistory {
+
+	// Configuration
+	static final int GLOBAL_SIZE = Integer.getInteger("socketchat.history.size", 1024);
+	private static final int PRIVATE_SIZE = Integer.getInteger("socketchat.history.private", 64);
+	private static final int MAX_USERS = Integer.getInteger("socketchat.history.users", 10000);
+
+	// Share of MAX_USERS evicted at once, so the scan is paid once per many new backlogs
+	private static final int EVICT_BATCH = Math.max(1, MAX_USERS / 10);
+
+	/**
+	 * A message and its place in the history.
+	 */
+	private static final class Slot {
+		// Position in its ring, to tell a current slot from one overwritten since
+		final long position;
+		// Order across every ring
+		final long sequence;
+		final Frame frame;
+
+		Slot(long position, long sequence, Frame frame) {
+			this.position = position;
+			this.sequence = sequence;
+			this.frame = frame;
+		}
+	}
+
+	/**
+	 * Fixed-size ring of the most recent messages. Any number of threads may add
+	 * and read at the same time.
+	 */
+	private static final class Ring {
+		private final AtomicReferenceArray<Slot> slots;
+		private final int mask;
+		private final AtomicLong head = new AtomicLong();
+
+		/**
+		 * Constructor.
+		 *
+		 * @param capacity Minimum number of messages kept; rounded up to a power of two.
+		 */
+		Ring(int capacity) {
+			int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+			this.slots = new AtomicReferenceArray<>(size);
+			this.mask = size - 1;
+		}
+
+		/**
+		 * Adds a message, overwriting the oldest one if the ring is full.
+		 */
+		void add(long sequence, Frame frame) {
+			long position = head.getAndIncrement();
+			slots.set((int) (position & mask), new Slot(position, sequence, frame));
+		}
+
+		/**
+		 * Collects the messages in a sequence range. Slots claimed but not filled
+		 * in yet, or overwritten while we read, are skipped.
+		 */
+		void collect(long after, long before, List<Slot> result) {
+			long end = head.get();
+			for (long position = Math.max(0, end - slots.length()); position < end; position++) {
+				Slot slot = slots.get((int) (position & mask));
+				if (slot != null && slot.position == position && slot.sequence > after && slot.sequence < before) {
+					result.add(slot);
+				}
+			}
+		}
+	}
+
+	/**
+	 * What the server remembers about a single user.
+	 */
+	private static final class Backlog {
+		final Ring ring = new Ring(PRIVATE_SIZE);
+		// Sequence number when the user last disconnected, or -1 while online
+		volatile long last_seen = -1;
+		// Last time this backlog was used, for eviction
+		volatile long touched;
+
+		Backlog(long touched) {
+			this.touched = touched;
+		}
+	}
+
+	// Order of every recorded message
+	private final AtomicLong sequence = new AtomicLong();
+
+	// Broadcasts
+	private final Ring global = new Ring(GLOBAL_SIZE);
+
+	// Messages recorded but still being handed to their recipients; a client
+	// that leaves meanwhile may or may not have got them
+	private final ConcurrentSkipListSet<Long> sending = new ConcurrentSkipListSet<>();
+
+	// Private messages and disconnect marks, by username
+	private final Map<String, Backlog> users = new ConcurrentHashMap<>();
+
+	// Whether a thread is already evicting backlogs
+	private final AtomicBoolean evicting = new AtomicBoolean();
+
+	/**
+	 * Records a message sent to everyone.
+	 *
+	 * @param frame Frame that was broadcast.
+	 */
+	public void record(Frame frame) {
+		long seq = sequence.getAndIncrement();
+		frame.setSequence(seq);
+		sending.add(seq);
+		global.add(seq, frame);
+	}
+
+	/**
+	 * Records a message sent to a single user.
+	 *
+	 * @param frame Frame that was sent.
+	 * @param sender Who sent it, or "" for server messages.
+	 * @param recipient Who it was sent to.
+	 */
+	public void record(Frame frame, String sender, String recipient) {
+		long seq = sequence.getAndIncrement();
+		frame.setSequence(seq);
+		sending.add(seq);
+		backlog(recipient).ring.add(seq, frame);
+		if (!sender.isEmpty()) {
+			backlog(sender).ring.add(seq, frame);
+		}
+	}
+
+	/**
+	 * Notes that a recorded message has been handed to every recipient.
+	 *
+	 * @param frame Frame recorded earlier.
+	 */
+	public void sent(Frame frame) {
+		sending.remove(frame.getSequence());
+	}
+
+	/**
+	 * Returns the sequence number the next message will get. Every message
+	 * recorded so far comes before it.
+	 *
+	 * @return Current position in the history.
+	 */
+	public long mark() {
+		return sequence.get();
+	}
+
+	/**
+	 * Returns the most recent messages a user can see: every broadcast and
+	 * their own private messages.
+	 *
+	 * @param username Who is asking.
+	 * @param count How many messages to return, at most.
+	 * @return Frames, oldest first.
+	 */
+	public List<Frame> recent(String username, int count) {
+		return collect(username, -1, Long.MAX_VALUE, count);
+	}
+
+	/**
+	 * Returns what a user missed since they last disconnected.
+	 *
+	 * @param username User logging back in.
+	 * @param before Only messages recorded before this mark are returned.
+	 * @param max How many messages to return, at most; the most recent win.
+	 * @param resumed True if the session was resumed with a ticket; only then
+	 * are private messages included.
+	 * @return Frames, oldest first; empty if the user hasn't been here before.
+	 */
+	public List<Frame> missed(String username, long before, int max, boolean resumed) {
+		Backlog backlog = users.get(username);
+		if (backlog == null || backlog.last_seen < 0) {
+			return new ArrayList<>();
+		}
+
+		long after = backlog.last_seen - 1;
+		backlog.last_seen = -1;
+		return collect(resumed ? username : null, after, before, max);
+	}
+
+	/**
+	 * Notes that a new session, not a resumed one, has taken a username. Private
+	 * messages kept for whoever had the name before are forgotten; where they
+	 * left off is kept, since the broadcasts after it were public anyway.
+	 *
+	 * @param username Username just registered.
+	 */
+	public void claimed(String username) {
+		users.computeIfPresent(username, (name, old) -> {
+			Backlog fresh = new Backlog(sequence.get());
+			fresh.last_seen = old.last_seen;
+			return fresh;
+		});
+	}
+
+	/**
+	 * Remembers where a user left off.
+	 *
+	 * @param username User who disconnected.
+	 * @param from First sequence number the user may not have got.
+	 */
+	public void disconnected(String username, long from) {
+		// Messages still being handed out may not have reached the user.
+		Long oldest = sending.ceiling(Long.MIN_VALUE);
+		if (oldest != null) {
+			from = Math.min(from, oldest);
+		}
+		backlog(username).last_seen = Math.max(0, Math.min(from, sequence.get()));
+	}
+
+	/**
+	 * Moves a user's private history to their new username. Whatever was kept
+	 * for someone who used the new name before is forgotten.
+	 *
+	 * @param old_username Original username.
+	 * @param new_username New username.
+	 */
+	public void renamed(String old_username, String new_username) {
+		users.remove(new_username);
+		Backlog backlog = users.remove(old_username);
+		if (backlog != null) {
+			users.put(new_username, backlog);
+		}
+	}
+
+	/**
+	 * Merges the global ring with a user's own ring, if a username is given.
+	 */
+	private List<Frame> collect(String username, long after, long before, int max) {
+		List<Slot> slots = new ArrayList<>();
+		global.collect(after, before, slots);
+		Backlog backlog = username == null ? null : users.get(username);
+		if (backlog != null) {
+			backlog.ring.collect(after, before, slots);
+		}
+		slots.sort(Comparator.comparingLong((slot) -> slot.sequence));
+
+		// Keep the newest ones.
+		List<Frame> result = new ArrayList<>(Math.min(max, slots.size()));
+		for (int i = Math.max(0, slots.size() - max); i < slots.size(); i++) {
+			result.add(slots.get(i).frame);
+		}
+		return result;
+	}
+
+	/**
+	 * Finds or creates a user's backlog, evicting the least recently used one
+	 * if there are too many.
+	 */
+	private Backlog backlog(String username) {
+		Backlog backlog = users.get(username);
+		if (backlog == null) {
+			backlog = users.computeIfAbsent(username, (name) -> new Backlog(sequence.get()));
+			if (users.size() > MAX_USERS) {
+				evict();
+			}
+		}
+		backlog.touched = sequence.get();
+		return backlog;
+	}
+
+	/**
+	 * Forgets the EVICT_BATCH backlogs that haven't been used for the longest
+	 * time. One thread evicts at a time; others carry on meanwhile.
+	 */
+	private void evict() {
+		if (!evicting.compareAndSet(false, true)) {
+			return;
+		}
+
+		try {
+			// Find the cutoff: the EVICT_BATCH-th oldest touch.
+			long[] touched = new long[users.size()];
+			int count = 0;
+			for (Backlog backlog : users.values()) {
+				if (count == touched.length) {
+					break;
+				}
+				touched[count++] = backlog.touched;
+			}
+			if (count == 0) {
+				return;
+			}
+			Arrays.sort(touched, 0, count);
+			long cutoff = touched[Math.min(count, EVICT_BATCH) - 1];
+
+			int evicted = 0;
+			for (Map.Entry<String, Backlog> entry : users.entrySet()) {
+				if (evicted < EVICT_BATCH && entry.getValue().touched <= cutoff && users.remove(entry.getKey(), entry.getValue())) {
+					evicted++;
+				}
+			}
+		} finally {
+			evicting.set(false);
+		}
+	}
+}
@@ -0,0 +1,775 @@
+package ufpb.srjn.socketchat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.*;
+import java.util.zip.CRC32;
+
+/**
+ * Durable, append-only log of relayed messages.
+ *
+ * Callers only put entries on a bounded queue, so appending never blocks a
+ * broadcast. A single appender thread drains whatever has queued up, writes it
+ * to the active segment in one FileChannel write and forces it to disk once
+ * per batch (group commit). Only what the appender has written is durable: if
+ * it falls so far behind that the queue fills up, new entries are dropped,
+ * counted and logged instead of holding up the broadcast.
+ *
+ * The log is split into segment files named after the sequence number of
+ * their first entry. Every segment has a sparse index file that maps a
+ * sequence number to a file position every few KB. Old segments are deleted
+ * once the log grows past its size limit or they get older than the age
+ * limit. Sealed segments are trusted on startup. Only the tail of the active
+ * segment, past its last index entry, is scanned and checked, so recovery
+ * time doesn't depend on how big the log is.
+ *
+ * Record layout: int payload length, int CRC32 of the payload, then the
+ * payload: long sequence, long time, byte type, sender and recipient as
+ * UTF-8 with an unsigned short length (cut short past 65535 bytes), and the
+ * text as UTF-8 up to the end.
+ *
+ * @author samuel
+ */
+public class MessageJournal implements Closeable {
+
+	// Logger handle
+	private static final Logger LOGGER = Logger.getLogger(MessageJournal.class.getName());
+
+	// Configuration
+	private static final long SEGMENT_BYTES = Long.getLong("socketchat.journal.segment", 64L << 20);
+	private static final long RETENTION_BYTES = Long.getLong("socketchat.journal.retention.bytes", 1L << 30);
+	private static final long RETENTION_MILLIS = TimeUnit.HOURS.toMillis(Long.getLong("socketchat.journal.retention.hours", 168));
+	private static final int INDEX_INTERVAL = Integer.getInteger("socketchat.journal.index.interval", 4096);
+	private static final int QUEUE_CAPACITY = Integer.getInteger("socketchat.journal.queue", 65536);
+	private static final boolean SYNC = !"false".equals(System.getProperty("socketchat.journal.sync"));
+
+	// Most entries handed to a single write
+	private static final int MAX_BATCH = 4096;
+
+	// Record header: payload length and CRC
+	private static final int HEADER = 8;
+
+	// Index entry: long sequence and int position
+	private static final int INDEX_ENTRY = 12;
+
+	// Smallest payload: sequence, time, type and two empty strings
+	private static final int MIN_PAYLOAD = 8 + 8 + 1 + 2 + 2;
+
+	// Longest sender or recipient that fits its length prefix, in bytes
+	private static final int MAX_NAME = 0xffff;
+
+	/**
+	 * A single journaled message.
+	 */
+	public static final class Entry {
+		final long sequence;
+		final long time;
+		final MessageType type;
+		final String sender;
+		final String recipient;
+		final String text;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param sequence Sequence number, or -1 until it's written.
+		 * @param time When the message was sent, in epoch millis.
+		 * @param type Message type.
+		 * @param sender Username of the sender, or "" for server messages.
+		 * @param recipient Username of the recipient, or "" for broadcasts.
+		 * @param text Message body.
+		 */
+		Entry(long sequence, long time, MessageType type, String sender, String recipient, String text) {
+			this.sequence = sequence;
+			this.time = time;
+			this.type = type;
+			this.sender = sender;
+			this.recipient = recipient;
+			this.text = text;
+		}
+
+		/**
+		 * @return Sequence number.
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * @return When the message was sent, in epoch millis.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * @return Message type.
+		 */
+		public MessageType getType() {
+			return type;
+		}
+
+		/**
+		 * @return Username of the sender, or "" for server messages.
+		 */
+		public String getSender() {
+			return sender;
+		}
+
+		/**
+		 * @return Username of the recipient, or "" for broadcasts.
+		 */
+		public String getRecipient() {
+			return recipient;
+		}
+
+		/**
+		 * @return Message body.
+		 */
+		public String getText() {
+			return text;
+		}
+	}
+
+	/**
+	 * One log file and its sparse index.
+	 */
+	private static final class Segment {
+		final long base;
+		final Path log;
+		final Path index;
+
+		// Bytes written and forced so far; readers never go past this.
+		volatile long size;
+
+		// Sparse index, in sequence order
+		long[] index_sequences = new long[64];
+		int[] index_positions = new int[64];
+		volatile int index_count;
+
+		// Index entries not yet written to the index file (appender only)
+		int index_written;
+
+		Segment(Path directory, long base) {
+			this.base = base;
+			this.log = directory.resolve(String.format("%020d.log", base));
+			this.index = directory.resolve(String.format("%020d.idx", base));
+		}
+
+		/**
+		 * Adds an index entry. Appender thread only.
+		 */
+		void addIndex(long sequence, int position) {
+			int count = index_count;
+			if (count == index_sequences.length) {
+				index_sequences = Arrays.copyOf(index_sequences, count * 2);
+				index_positions = Arrays.copyOf(index_positions, count * 2);
+			}
+			index_sequences[count] = sequence;
+			index_positions[count] = position;
+			index_count = count + 1;
+		}
+
+		/**
+		 * Returns the position to start scanning from to find a sequence number.
+		 */
+		long positionFor(long sequence) {
+			// Count first: reading it makes the entries it covers visible.
+			int count = index_count;
+			long[] sequences = index_sequences;
+			int[] positions = index_positions;
+			int low = 0;
+			// The arrays may be swapped for bigger ones while we look; either copy is valid.
+			int high = Math.min(count, Math.min(sequences.length, positions.length)) - 1;
+			int found = -1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				if (sequences[middle] <= sequence) {
+					found = middle;
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+			return found < 0 ? 0 : positions[found];
+		}
+	}
+
+	// Where the segments live
+	private final Path directory;
+
+	// Every segment, oldest first; the last one is being appended to.
+	private final List<Segment> segments = new CopyOnWriteArrayList<>();
+
+	// Entries waiting for the appender
+	private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	private final LongAdder dropped = new LongAdder();
+
+	// Whether entries are being dropped right now; logged once per stretch
+	private final AtomicBoolean dropping = new AtomicBoolean();
+
+	// Appender state
+	private final Thread appender;
+	private volatile boolean running = true;
+	private FileChannel active_channel;
+	private FileChannel active_index;
+	private long next_sequence;
+	private long next_index_position;
+	private ByteBuffer write_buffer = ByteBuffer.allocate(64 * 1024);
+	private final CRC32 crc = new CRC32();
+
+	// Last sequence number that reached the disk
+	private volatile long durable_sequence;
+
+	/**
+	 * Opens the journal in a directory, recovering whatever is already there,
+	 * and starts the appender thread.
+	 *
+	 * @param directory Directory holding the segments; created if missing.
+	 * @throws IOException If the directory or the active segment can't be opened.
+	 */
+	public MessageJournal(Path directory) throws IOException {
+		this.directory = directory;
+		Files.createDirectories(directory);
+
+		long started = System.nanoTime();
+		recover();
+		applyRetention();
+		LOGGER.log(Level.INFO, "Journal recovered {0} segments in {1} ms, next sequence {2}", new Object[]{
+			segments.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started), Long.toString(next_sequence)
+		});
+
+		appender = new Thread(this::appendLoop, "journal-appender");
+		appender.setDaemon(true);
+		appender.start();
+	}
+
+	/**
+	 * Queues a message to be journaled. Never blocks: if the appender has
+	 * fallen too far behind, the message is counted as dropped instead.
+	 *
+	 * @param type Message type.
+	 * @param sender Username of the sender, or "" for server messages.
+	 * @param recipient Username of the recipient, or "" for broadcasts.
+	 * @param text Message body.
+	 */
+	public void append(MessageType type, String sender, String recipient, String text) {
+		if (!running || !queue.offer(new Entry(-1, System.currentTimeMillis(), type, sender, recipient, text))) {
+			dropped.increment();
+			if (running && dropping.compareAndSet(false, true)) {
+				LOGGER.log(Level.WARNING, "Journal queue is full, dropping messages until it catches up");
+			}
+		}
+	}
+
+	/**
+	 * Returns how many messages could not be journaled because the queue was full.
+	 *
+	 * @return Dropped message count.
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Returns the sequence number of the last entry that reached the disk.
+	 *
+	 * @return Sequence number, or -1 if the journal is empty.
+	 */
+	public long getLastSequence() {
+		return durable_sequence;
+	}
+
+	/**
+	 * Reads durable entries in sequence order.
+	 *
+	 * @param from First sequence number wanted.
+	 * @param max Most entries to return.
+	 * @return Entries from the given sequence number on; fewer than max if the
+	 * log ends first.
+	 */
+	public List<Entry> read(long from, int max) {
+		List<Entry> result = new ArrayList<>(Math.min(max, 1024));
+		List<Segment> snapshot = new ArrayList<>(segments);
+
+		// Start at the last segment that begins at or before the wanted entry.
+		int first = 0;
+		for (int i = 0; i < snapshot.size(); i++) {
+			if (snapshot.get(i).base <= from) {
+				first = i;
+			}
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		for (int i = first; i < snapshot.size() && result.size() < max; i++) {
+			Segment segment = snapshot.get(i);
+			long limit = segment.size;
+			try (FileChannel channel = FileChannel.open(segment.log, StandardOpenOption.READ)) {
+				long position = segment.positionFor(from);
+				while (position + HEADER <= limit && result.size() < max) {
+					header.clear();
+					readFully(channel, header, position);
+					int length = header.getInt(0);
+					ByteBuffer payload = ByteBuffer.allocate(length);
+					readFully(channel, payload, position + HEADER);
+					position += HEADER + length;
+
+					Entry entry = decode(payload);
+					if (entry.sequence >= from) {
+						result.add(entry);
+					}
+				}
+			} catch (NoSuchFileException ex) {
+				// Segment was removed by retention while we were reading.
+			} catch (IOException ex) {
+				LOGGER.log(Level.WARNING, "Failed reading journal segment {0}: {1}", new Object[]{segment.log, ex.getMessage()});
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Reads the most recent durable entries.
+	 *
+	 * @param count How many entries to return, at most.
+	 * @return Entries in sequence order.
+	 */
+	public List<Entry> tail(int count) {
+		long last = durable_sequence;
+		if (last < 0 || count <= 0) {
+			return new ArrayList<>();
+		}
+		return read(Math.max(0, last - count + 1), count);
+	}
+
+	/**
+	 * Stops accepting entries, writes everything still queued and closes the
+	 * active segment.
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		try {
+			appender.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Appender thread: writes queued entries in batches until closed.
+	 */
+	private void appendLoop() {
+		List<Entry> batch = new ArrayList<>(MAX_BATCH);
+		try {
+			while (running || !queue.isEmpty()) {
+				Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+
+				batch.add(first);
+				queue.drainTo(batch, MAX_BATCH - 1);
+				try {
+					write(batch);
+				} catch (IOException ex) {
+					LOGGER.log(Level.SEVERE, "Failed writing to journal, {0} messages lost: {1}", new Object[]{batch.size(), ex.getMessage()});
+					dropped.add(batch.size());
+				}
+				batch.clear();
+
+				if (queue.isEmpty() && dropping.compareAndSet(true, false)) {
+					LOGGER.log(Level.INFO, "Journal caught up; {0} messages dropped so far", dropped.sum());
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try {
+				Segment active = segments.get(segments.size() - 1);
+				writeIndex(active);
+				active_channel.close();
+				active_index.close();
+			} catch (IOException ex) {
+				LOGGER.log(Level.WARNING, "Failed closing journal: {0}", ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Writes a batch of entries with a single write and a single force,
+	 * rolling to a new segment first whenever the active one is full.
+	 */
+	private void write(List<Entry> batch) throws IOException {
+		Segment active = segments.get(segments.size() - 1);
+		write_buffer.clear();
+		long position = active.size;
+
+		for (Entry entry : batch) {
+			byte[] sender = name(entry.sender);
+			byte[] recipient = name(entry.recipient);
+			byte[] text = entry.text.getBytes(StandardCharsets.UTF_8);
+			int length = 8 + 8 + 1 + 2 + sender.length + 2 + recipient.length + text.length;
+
+			// Segment is full: commit what we have and start a new one.
+			if (position + write_buffer.position() > 0 && position + write_buffer.position() + HEADER + length > SEGMENT_BYTES) {
+				commit(active);
+				active = roll();
+				position = 0;
+			}
+
+			if (write_buffer.remaining() < HEADER + length) {
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(write_buffer.capacity() * 2, write_buffer.position() + HEADER + length));
+				write_buffer.flip();
+				write_buffer = bigger.put(write_buffer);
+			}
+
+			// Index the first record past every interval boundary.
+			long record_position = position + write_buffer.position();
+			long sequence = next_sequence++;
+			if (record_position >= next_index_position) {
+				active.addIndex(sequence, (int) record_position);
+				next_index_position = record_position + INDEX_INTERVAL;
+			}
+
+			int start = write_buffer.position();
+			write_buffer.putInt(length).putInt(0)
+				.putLong(sequence)
+				.putLong(entry.time)
+				.put((byte) entry.type.getCode())
+				.putShort((short) sender.length).put(sender)
+				.putShort((short) recipient.length).put(recipient)
+				.put(text);
+
+			crc.reset();
+			crc.update(write_buffer.array(), start + HEADER, length);
+			write_buffer.putInt(start + 4, (int) crc.getValue());
+		}
+
+		commit(active);
+	}
+
+	/**
+	 * Encodes a sender or recipient, cutting it short at a character boundary if
+	 * it doesn't fit its length prefix.
+	 */
+	private static byte[] name(String name) {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length <= MAX_NAME) {
+			return bytes;
+		}
+
+		int length = MAX_NAME;
+		while ((bytes[length] & 0xc0) == 0x80) {
+			length--;
+		}
+		return Arrays.copyOf(bytes, length);
+	}
+
+	/**
+	 * Writes and forces the buffered records to a segment, then publishes them
+	 * to readers.
+	 */
+	private void commit(Segment segment) throws IOException {
+		if (write_buffer.position() == 0) {
+			return;
+		}
+
+		write_buffer.flip();
+		long position = segment.size;
+		while (write_buffer.hasRemaining()) {
+			position += active_channel.write(write_buffer, position);
+		}
+		if (SYNC) {
+			active_channel.force(false);
+		}
+		write_buffer.clear();
+
+		segment.size = position;
+		durable_sequence = next_sequence - 1;
+
+		// Index entries only go out once their records are on disk.
+		writeIndex(segment);
+	}
+
+	/**
+	 * Seals the active segment and starts a new one at the next sequence number.
+	 */
+	private Segment roll() throws IOException {
+		Segment old = segments.get(segments.size() - 1);
+		writeIndex(old);
+		active_channel.close();
+		active_index.close();
+
+		Segment segment = new Segment(directory, next_sequence);
+		active_channel = FileChannel.open(segment.log, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+		active_index = openIndex(segment);
+		next_index_position = 0;
+		segments.add(segment);
+
+		applyRetention();
+		return segment;
+	}
+
+	/**
+	 * Opens a segment's index file for appending.
+	 */
+	private static FileChannel openIndex(Segment segment) throws IOException {
+		return FileChannel.open(segment.index, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Appends index entries that aren't in the active segment's index file yet.
+	 * They are not forced: a lost index entry only means a longer scan on
+	 * recovery.
+	 */
+	private void writeIndex(Segment segment) throws IOException {
+		int count = segment.index_count;
+		if (segment.index_written == count) {
+			return;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate((count - segment.index_written) * INDEX_ENTRY);
+		for (int i = segment.index_written; i < count; i++) {
+			buffer.putLong(segment.index_sequences[i]).putInt(segment.index_positions[i]);
+		}
+		buffer.flip();
+
+		while (buffer.hasRemaining()) {
+			active_index.write(buffer);
+		}
+		segment.index_written = count;
+	}
+
+	/**
+	 * Deletes the oldest sealed segments while the log is too big or they are
+	 * too old. The active segment is never deleted.
+	 */
+	private void applyRetention() {
+		long total = 0;
+		for (Segment segment : segments) {
+			total += segment.size;
+		}
+
+		long cutoff = System.currentTimeMillis() - RETENTION_MILLIS;
+		while (segments.size() > 1) {
+			Segment oldest = segments.get(0);
+			boolean expired;
+			try {
+				expired = Files.getLastModifiedTime(oldest.log).toMillis() < cutoff;
+			} catch (IOException ex) {
+				expired = true;
+			}
+			if (total <= RETENTION_BYTES && !expired) {
+				break;
+			}
+
+			segments.remove(0);
+			total -= oldest.size;
+			try {
+				Files.deleteIfExists(oldest.log);
+				Files.deleteIfExists(oldest.index);
+			} catch (IOException ex) {
+				LOGGER.log(Level.WARNING, "Failed deleting journal segment {0}: {1}", new Object[]{oldest.log, ex.getMessage()});
+			}
+		}
+	}
+
+	/**
+	 * Loads every segment and index, then checks the active segment's tail,
+	 * truncating it after the last complete, intact record.
+	 */
+	private void recover() throws IOException {
+		List<Long> bases = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.log")) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					bases.add(Long.parseLong(name.substring(0, name.length() - 4)));
+				} catch (NumberFormatException ex) {
+					// Not one of ours
+				}
+			}
+		}
+		bases.sort(null);
+
+		for (long base : bases) {
+			Segment segment = new Segment(directory, base);
+			segment.size = Files.size(segment.log);
+			loadIndex(segment);
+			segments.add(segment);
+		}
+
+		if (segments.isEmpty()) {
+			segments.add(new Segment(directory, 0));
+		}
+
+		Segment active = segments.get(segments.size() - 1);
+		active_channel = FileChannel.open(active.log, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+
+		// Scan forward from the last indexed record, the only part that can be torn.
+		// If even that record is damaged, everything before it still counts.
+		int last_index = active.index_count - 1;
+		next_sequence = last_index < 0 ? active.base : active.index_sequences[last_index];
+		long position = last_index < 0 ? 0 : active.index_positions[last_index];
+		long file_size = active_channel.size();
+		next_index_position = position;
+
+		// Read in big chunks, refilling from the current record whenever it doesn't fit.
+		ByteBuffer chunk = ByteBuffer.allocate(1 << 20);
+		long chunk_position = position;
+		chunk.limit(0);
+		while (position + HEADER <= file_size) {
+			int offset = (int) (position - chunk_position);
+			if (chunk.limit() - offset < HEADER) {
+				chunk_position = position;
+				offset = 0;
+				fillChunk(active_channel, chunk, chunk_position);
+			}
+
+			int length = chunk.getInt(offset);
+			if (length < MIN_PAYLOAD || position + HEADER + length > file_size) {
+				break;
+			}
+
+			if (chunk.limit() - offset < HEADER + length) {
+				if (chunk.capacity() < HEADER + length) {
+					chunk = ByteBuffer.allocate(HEADER + length);
+				}
+				chunk_position = position;
+				offset = 0;
+				fillChunk(active_channel, chunk, chunk_position);
+				if (chunk.limit() < HEADER + length) {
+					break;
+				}
+			}
+
+			crc.reset();
+			crc.update(chunk.array(), offset + HEADER, length);
+			if ((int) crc.getValue() != chunk.getInt(offset + 4)) {
+				break;
+			}
+
+			long sequence = chunk.getLong(offset + HEADER);
+			if (position >= next_index_position) {
+				if (active.index_count == 0 || active.index_sequences[active.index_count - 1] != sequence) {
+					active.addIndex(sequence, (int) position);
+				}
+				next_index_position = position + INDEX_INTERVAL;
+			}
+			next_sequence = sequence + 1;
+			position += HEADER + length;
+		}
+
+		if (position < file_size) {
+			LOGGER.log(Level.WARNING, "Truncating torn journal tail: {0} bytes", file_size - position);
+			active_channel.truncate(position);
+		}
+		active.size = position;
+
+		// The index file may be missing entries we just rebuilt, or hold entries past the tail.
+		rewriteIndex(active);
+		durable_sequence = next_sequence - 1;
+	}
+
+	/**
+	 * Loads a segment's index file, ignoring a partial last entry.
+	 */
+	private static void loadIndex(Segment segment) throws IOException {
+		if (!Files.exists(segment.index)) {
+			return;
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segment.index));
+		while (buffer.remaining() >= INDEX_ENTRY) {
+			long sequence = buffer.getLong();
+			int position = buffer.getInt();
+			if (position > segment.size) {
+				break;
+			}
+			segment.addIndex(sequence, position);
+		}
+		segment.index_written = segment.index_count;
+	}
+
+	/**
+	 * Replaces a segment's index file with its in-memory index.
+	 */
+	private void rewriteIndex(Segment segment) throws IOException {
+		int count = segment.index_count;
+		while (count > 0 && segment.index_positions[count - 1] >= segment.size) {
+			count--;
+		}
+		segment.index_count = count;
+
+		Files.deleteIfExists(segment.index);
+		segment.index_written = 0;
+		active_index = openIndex(segment);
+		writeIndex(segment);
+	}
+
+	/**
+	 * Decodes a record's payload.
+	 */
+	private static Entry decode(ByteBuffer payload) {
+		long sequence = payload.getLong();
+		long time = payload.getLong();
+		MessageType type = MessageType.fromCode(payload.get());
+		String sender = readString(payload, payload.getShort() & 0xffff);
+		String recipient = readString(payload, payload.getShort() & 0xffff);
+		String text = readString(payload, payload.remaining());
+		return new Entry(sequence, time, type == null ? MessageType.TEXT : type, sender, recipient, text);
+	}
+
+	/**
+	 * Reads length bytes of UTF-8 text from a buffer.
+	 */
+	private static String readString(ByteBuffer buffer, int length) {
+		String text = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + length);
+		return text;
+	}
+
+	/**
+	 * Reads as much as fits into a buffer from a channel at a given position,
+	 * stopping early only at the end of the file, and flips it.
+	 */
+	private static void fillChunk(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		buffer.clear();
+		while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+			// Keep reading until the buffer is full or the file ends.
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Fills a buffer from a channel at a given position.
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0) {
+				throw new IOException("Unexpected end of journal segment.");
+			}
+		}
+		buffer.flip();
+	}
+}
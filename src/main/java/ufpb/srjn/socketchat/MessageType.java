@@ -0,0 +1,75 @@
+package ufpb.srjn.socketchat;
+
+/**
+ * Kinds of messages the server and clients exchange. Protocol v1 marks them
+ * with text prefixes; protocol v2 sends the code as a byte in front of the
+ * cipher text.
+ *
+ * @author samuel
+ */
+public enum MessageType {
+	// A chat line from the server, or a command from the client.
+	TEXT(0, ""),
+	// The client's username was changed; the body is the new username.
+	RENAME(1, "RENAME "),
+	// The client must disconnect; no body.
+	DISCONNECT(2, "DISCONNECT"),
+	// Something the client asked for went wrong; the body is the reason.
+	ERROR(3, "ERROR: "),
+	// A session ticket the client can reconnect with; the body is the ticket.
+	TICKET(4, "TICKET "),
+	// A group key for broadcasts; the body is "<id> <key>". Never sent in v1.
+	KEY(5, "KEY "),
+	// Asks the other side to show it's alive; no body.
+	PING(6, "PING"),
+	// Answer to a PING; no body.
+	PONG(7, "PONG");
+
+	// Wire code used by protocol v2
+	private final int code;
+
+	// Text prefix used by protocol v1
+	private final String prefix;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param code Wire code used by protocol v2.
+	 * @param prefix Text prefix used by protocol v1.
+	 */
+	MessageType(int code, String prefix) {
+		this.code = code;
+		this.prefix = prefix;
+	}
+
+	/**
+	 * Returns the protocol v2 wire code.
+	 * @return Wire code.
+	 */
+	public int getCode() {
+		return code;
+	}
+
+	/**
+	 * Returns the protocol v1 text prefix.
+	 * @return Text prefix.
+	 */
+	public String getPrefix() {
+		return prefix;
+	}
+
+	/**
+	 * Looks up a message type by its protocol v2 wire code.
+	 *
+	 * @param code Wire code.
+	 * @return The message type, or null if the code is unknown.
+	 */
+	public static MessageType fromCode(int code) {
+		for (MessageType type : values()) {
+			if (type.code == code) {
+				return type;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,489 @@
+package ufpb.srjn.socketchat;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.*;
+
+/**
+ * A client connection served by a NioEventLoop. It speaks the same protocol
+ * versions as the blocking ClientInstance, but parses frames
+ * out of its own read buffer and its event loop drains the outbound queue
+ * instead of a writer thread.
+ *
+ * @author samuel
+ */
+public class NioClientInstance extends ClientInstance {
+
+	// Logger handle
+	private static final Logger LOGGER = Logger.getLogger(NioClientInstance.class.getName());
+
+	// Initial size of the read buffer; grows up to one full frame if needed.
+	private static final int INITIAL_READ_BUFFER = 8192;
+
+	// How many queued frames to hand to a single gathering write.
+	private static final int WRITE_BATCH = Integer.getInteger("socketchat.write.batch", 16);
+
+	// Handshake progress.
+	private enum State { HASH, RENAME, ACTIVE, CLOSED }
+
+	// Loop that owns this connection
+	private final NioEventLoop loop;
+
+	// Underlying channel
+	private final SocketChannel channel;
+
+	// Selection key, set by the event loop after registering
+	SelectionKey key;
+
+	// Bytes read from the channel but not yet parsed (loop thread only)
+	private ByteBuffer read_buffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+
+	// Frames taken off the queue but not fully written yet (loop thread only)
+	private final ArrayDeque<ByteBuffer> unwritten = new ArrayDeque<>();
+	private final ByteBuffer[] write_batch = new ByteBuffer[WRITE_BATCH];
+
+	// Whether a flush has already been submitted to the loop
+	private final AtomicBoolean flush_scheduled = new AtomicBoolean();
+
+	// Handshake state and command handler (loop thread only)
+	private State state = State.HASH;
+	private int requested_protocol = Protocol.V1;
+	private boolean requested_compress;
+	private String requested_key;
+	private ServerThread handler;
+
+	// Closes the connection if the handshake takes too long
+	private HashedWheelTimer.Timeout deadline;
+
+	// Whether this connection still holds one of the loop's pending handshake slots (loop thread only)
+	private boolean handshaking = true;
+
+	// Message held back by the rate limits while reads are paused (loop thread only)
+	private String paused;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param loop Loop that owns this connection.
+	 * @param channel Accepted, non-blocking channel.
+	 */
+	public NioClientInstance(NioEventLoop loop, SocketChannel channel) {
+		this.loop = loop;
+		this.channel = channel;
+		this.socket = channel.socket();
+	}
+
+	/**
+	 * Gives the client a limited time to complete its handshake. Loop thread
+	 * only.
+	 *
+	 * @param timeout_millis How long the client has.
+	 */
+	void startDeadline(long timeout_millis) {
+		deadline = ServerApplication.getTimer().schedule(() -> loop.execute(() -> {
+			if (state == State.HASH || state == State.RENAME) {
+				LOGGER.log(Level.INFO, "Handshake timed out for {0}", socket.getInetAddress());
+				ServerMetrics.handshake(false);
+				closeNow();
+			}
+		}), timeout_millis);
+	}
+
+	/**
+	 * NIO connections are read by their event loop, never by the caller.
+	 * @return Nothing.
+	 * @throws IOException Always.
+	 */
+	@Override
+	public String readIn() throws IOException {
+		throw new IOException("NIO connections can't be read from directly.");
+	}
+
+	/**
+	 * Makes sure the event loop will flush this connection soon.
+	 */
+	@Override
+	protected void signalWriter() {
+		if (flush_scheduled.compareAndSet(false, true)) {
+			loop.execute(this::flush);
+		}
+	}
+
+	/**
+	 * Drops the connection on its event loop, discarding anything still queued.
+	 */
+	@Override
+	protected void abort() {
+		closing = true;
+		outbound.clear();
+		loop.execute(this::closeNow);
+	}
+
+	/**
+	 * Writes as many queued frames as the socket accepts. If the socket is full,
+	 * waits for OP_WRITE instead of blocking. Loop thread only.
+	 */
+	void flush() {
+		flush_scheduled.set(false);
+		if (state == State.CLOSED) {
+			outbound.clear();
+			return;
+		}
+
+		try {
+			while (true) {
+				// Move newly queued frames behind the ones still being written.
+				Frame frame;
+				while (unwritten.size() < WRITE_BATCH && (frame = outbound.poll()) != null) {
+					// Frames too big for this client's protocol are skipped.
+					Frame.Encoding encoding = encode(frame);
+					if (encoding != null) {
+						unwritten.add(ByteBuffer.wrap(encoding.bytes, encoding.offset, encoding.length()));
+					}
+				}
+
+				if (unwritten.isEmpty()) {
+					break;
+				}
+
+				int count = 0;
+				for (ByteBuffer buffer : unwritten) {
+					write_batch[count++] = buffer;
+					if (count == WRITE_BATCH) {
+						break;
+					}
+				}
+				long written = channel.write(write_batch, 0, count);
+
+				int completed = 0;
+				while (!unwritten.isEmpty() && !unwritten.peek().hasRemaining()) {
+					unwritten.poll();
+					completed++;
+				}
+				WriteStats.record(completed, written);
+
+				// Socket buffer is full, wait until it drains.
+				if (!unwritten.isEmpty()) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			if (closing) {
+				closeNow();
+			}
+		} catch (IOException ex) {
+			LOGGER.log(Level.INFO, "Failed writing to client, closing connection: {0}", ex.getMessage());
+			closeNow();
+		}
+	}
+
+	/**
+	 * Reads whatever the socket has and handles every complete frame. Loop
+	 * thread only.
+	 */
+	void onReadable() {
+		// Stop reading from connections that are on their way out.
+		if (closing) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			return;
+		}
+
+		int read;
+		try {
+			read = channel.read(read_buffer);
+		} catch (IOException ex) {
+			read = -1;
+		}
+
+		if (read < 0) {
+			closeNow();
+			return;
+		}
+		ServerMetrics.bytesIn(read);
+		last_read = System.nanoTime();
+
+		handleFrames();
+	}
+
+	/**
+	 * Handles every complete frame in the read buffer, stopping early if the
+	 * client goes over its rate limits. Loop thread only.
+	 */
+	private void handleFrames() {
+		read_buffer.flip();
+		byte[] array = read_buffer.array();
+		int needed = 0;
+		while (read_buffer.hasRemaining()) {
+			int start = read_buffer.position();
+			int header;
+			int length;
+			String message = null;
+
+			try {
+				// Find out how long the next frame is, if its header is all here.
+				if (protocol == Protocol.V2) {
+					long varint = Protocol.peekVarint(array, start, read_buffer.limit());
+					if (varint < 0) {
+						break;
+					}
+					header = (int) (varint >>> 32);
+					length = (int) varint;
+					if (length < 1 || length > Protocol.MAX_FRAME) {
+						throw new IOException("Invalid frame length: " + length);
+					}
+				} else {
+					if (read_buffer.remaining() < 2) {
+						break;
+					}
+					header = 2;
+					length = read_buffer.getShort(start) & 0xffff;
+				}
+
+				if (read_buffer.remaining() < header + length) {
+					needed = header + length;
+					break;
+				}
+
+				if (state == State.HASH) {
+					// The HASH command is the only one sent in plain text.
+					message = new DataInputStream(new ByteArrayInputStream(array, start, header + length)).readUTF();
+				} else if (protocol == Protocol.V2) {
+					// Clients only ever send text; anything else is ignored.
+					int code = array[start + header] & 0xff;
+					boolean text = (code & ~Protocol.COMPRESSED) == MessageType.TEXT.getCode()
+						&& (compress || (code & Protocol.COMPRESSED) == 0);
+					if (session != null) {
+						// Every sealed frame is opened, even ignored ones, to keep the nonces in step.
+						byte[] body = open(code, array, start + header + 1, length - 1);
+						if (text) {
+							message = Frame.decodeV2(code, body).getText();
+						}
+					} else if (code == MessageType.TEXT.getCode()) {
+						message = Authenticator.decryptRaw(array, start + header + 1, length - 1);
+					} else if (text) {
+						message = FrameCompressor.decompress(Authenticator.decryptRawBytes(array, start + header + 1, length - 1));
+					}
+				} else {
+					message = Authenticator.decrypt(array, start + header, length);
+				}
+			} catch (IOException | GeneralSecurityException ex) {
+				LOGGER.log(Level.WARNING, "Malformed frame received: {0}", ex.getMessage());
+				closeNow();
+				return;
+			}
+			read_buffer.position(start + header + length);
+
+			if (message != null) {
+				long wait = state == State.ACTIVE ? handler.admit(message) : 0;
+				if (wait > 0) {
+					// Frames behind it stay in the buffer until the pause ends.
+					ServerMetrics.throttled();
+					pause(message, wait);
+					break;
+				}
+				handleMessage(message);
+			}
+			if (closing) {
+				return;
+			}
+		}
+		read_buffer.compact();
+
+		// Grow the buffer if the next frame doesn't fit in it.
+		if (needed > read_buffer.capacity()) {
+			read_buffer.flip();
+			read_buffer = ByteBuffer.allocate(needed).put(read_buffer);
+		}
+	}
+
+	/**
+	 * Stops reading from a client over its rate limits until it may send its
+	 * next message. Loop thread only.
+	 *
+	 * @param message Message to handle once the pause ends.
+	 * @param wait_nanos How long to pause for.
+	 */
+	private void pause(String message, long wait_nanos) {
+		paused = message;
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		ServerApplication.getTimer().schedule(() -> loop.execute(this::resume), TimeUnit.NANOSECONDS.toMillis(wait_nanos));
+	}
+
+	/**
+	 * Handles the message held back by a pause, then whatever arrived behind
+	 * it, and starts reading again unless the client is still over its limits.
+	 * Loop thread only.
+	 */
+	private void resume() {
+		if (state != State.ACTIVE || closing) {
+			return;
+		}
+
+		String message = paused;
+		paused = null;
+		long wait = handler.admit(message);
+		if (wait > 0) {
+			pause(message, wait);
+			return;
+		}
+		handleMessage(message);
+		if (closing) {
+			return;
+		}
+
+		handleFrames();
+		if (paused == null && !closing) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Handles a single frame according to the handshake state.
+	 *
+	 * @param message Frame contents, already decrypted past the HASH state.
+	 */
+	private void handleMessage(String message) {
+		if (closing) {
+			return;
+		}
+
+		try {
+			switch (state) {
+				case HASH:
+					requested_protocol = Protocol.negotiate(message);
+					requested_compress = Protocol.negotiateCompression(message);
+					resumable = Protocol.negotiateResume(message);
+					pings = Protocol.negotiatePing(message);
+					requested_key = Protocol.negotiateKey(message);
+					
+					// A valid ticket skips the password and the RENAME step.
+					if (isResume(message)) {
+						resumed = checkResume(message);
+						if (resumed == null) {
+							ServerMetrics.handshake(false);
+							writeFrame(Frame.plain("Invalid ticket."));
+							close();
+							return;
+						}
+						username = resumed.username;
+						login();
+						return;
+					}
+					
+					// Retrieve hash and test against server password.
+					if (!checkHash(message)) {
+						ServerMetrics.handshake(false);
+						writeFrame(Frame.plain("Invalid password."));
+						close();
+						return;
+					}
+					state = State.RENAME;
+					break;
+				case RENAME:
+					// Retrieve client's username
+					username = parseRename(message);
+					login();
+					break;
+				case ACTIVE:
+					handler.handle(message);
+					break;
+				default:
+					break;
+			}
+		} catch (IOException ex) {
+			LOGGER.log(Level.WARNING, "I/O exception while handling message from client: {0}", ex.getMessage());
+			closeNow();
+		} catch (Exception ex) {
+			LOGGER.log(Level.WARNING, "Error during client connection: {0}", ex.getMessage());
+			closeNow();
+		}
+	}
+
+	/**
+	 * Answers OK in the negotiated framing and registers the client. Loop
+	 * thread only.
+	 *
+	 * @throws IOException If the reply can't be queued.
+	 */
+	private void login() throws IOException {
+		endHandshake();
+
+		// Frames after OK use the negotiated framing and keys.
+		writeFrame(Frame.plain(Protocol.accept(requested_protocol, requested_compress, agreeKeys(requested_key))));
+		protocol = requested_protocol;
+		compress = requested_compress;
+		state = State.ACTIVE;
+
+		// Make sure the connecting client's username is unique.
+		if (!ServerApplication.registerClient(this)) {
+			LOGGER.log(Level.INFO, "User tried to login with already existing username: {0}", username);
+			ServerMetrics.handshake(false);
+			writeFrame(Frame.error("This username is already taken."));
+			close();
+			return;
+		}
+
+		ServerMetrics.handshake(true);
+		handler = new ServerThread(this);
+		handler.onConnect();
+	}
+
+	/**
+	 * Stops the handshake deadline and gives back the pending handshake slot
+	 * taken when the connection was registered. Only the first call counts.
+	 * Loop thread only.
+	 */
+	private void endHandshake() {
+		if (!handshaking) {
+			return;
+		}
+
+		handshaking = false;
+		if (deadline != null) {
+			deadline.cancel();
+		}
+		loop.handshakeFinished();
+	}
+
+	/**
+	 * Closes the channel right away and removes the client from the server.
+	 * Loop thread only.
+	 */
+	private void closeNow() {
+		endHandshake();
+		if (!channel.isOpen()) {
+			return;
+		}
+
+		state = State.CLOSED;
+		closing = true;
+		outbound.clear();
+		unwritten.clear();
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException ex) {
+			// Nothing else to do
+		}
+
+		if (handler != null) {
+			ServerThread disconnected = handler;
+			handler = null;
+			try {
+				disconnected.onDisconnect();
+			} catch (RuntimeException ex) {
+				// Client was already removed from the server.
+			}
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package ufpb.srjn.socketchat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.*;
+
+/**
+ * A single selector thread. Every connection registered here is only ever
+ * touched by this thread; other threads talk to it by submitting tasks.
+ *
+ * @author samuel
+ */
+public class NioEventLoop implements Runnable {
+
+	// Logger handle
+	private static final Logger LOGGER = Logger.getLogger(NioEventLoop.class.getName());
+
+	// Selector for all connections owned by this loop
+	private final Selector selector;
+
+	// Tasks submitted by other threads, run between selects
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+	// Thread running this loop
+	private volatile Thread thread;
+
+	// Handshakes not finished yet, shared by every loop of the server
+	private final AtomicInteger pending;
+	private final int max_pending;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param pending Counter of unfinished handshakes, shared by every loop.
+	 * @param max_pending Maximum number of handshakes in progress at once.
+	 * @throws IOException If the selector could not be opened.
+	 */
+	public NioEventLoop(AtomicInteger pending, int max_pending) throws IOException {
+		this.selector = Selector.open();
+		this.pending = pending;
+		this.max_pending = max_pending;
+	}
+
+	/**
+	 * Hands a freshly accepted connection over to this loop. The connection
+	 * must finish its handshake before ServerApplication.HANDSHAKE_MILLIS, and
+	 * is turned away right now if too many handshakes are already in progress.
+	 *
+	 * @param channel Accepted connection.
+	 */
+	public void register(SocketChannel channel) {
+		// Too many logins in flight: turn this one away instead of serving it.
+		if (pending.incrementAndGet() > max_pending) {
+			pending.decrementAndGet();
+			LOGGER.log(Level.WARNING, "Too many pending handshakes, rejecting connection from {0}", channel.socket().getInetAddress());
+			ServerMetrics.handshake(false);
+			reject(channel);
+			return;
+		}
+
+		execute(() -> {
+			try {
+				channel.configureBlocking(false);
+				NioClientInstance client = new NioClientInstance(this, channel);
+				client.key = channel.register(selector, SelectionKey.OP_READ, client);
+				client.startDeadline(ServerApplication.HANDSHAKE_MILLIS);
+			} catch (IOException ex) {
+				LOGGER.log(Level.SEVERE, "Failed to register client connection: {0}", ex.getMessage());
+				handshakeFinished();
+				closeQuietly(channel);
+			}
+		});
+	}
+
+	/**
+	 * Frees the slot a connection took in register(), once its handshake has
+	 * ended one way or another. Called exactly once per registered connection.
+	 */
+	void handshakeFinished() {
+		pending.decrementAndGet();
+	}
+
+	/**
+	 * Tells a client the server is too busy and closes its channel. The channel
+	 * is still blocking, and the reply fits in any send buffer.
+	 *
+	 * @param channel Channel to reject.
+	 */
+	private static void reject(SocketChannel channel) {
+		try {
+			// Same bytes DataOutputStream.writeUTF sends: the client expects "OK", anything else is shown as an error.
+			byte[] text = "Server is busy, try again later.".getBytes(StandardCharsets.UTF_8);
+			ByteBuffer reply = ByteBuffer.allocate(2 + text.length);
+			reply.putShort((short) text.length).put(text).flip();
+			while (reply.hasRemaining()) {
+				channel.write(reply);
+			}
+		} catch (IOException ex) {
+			// Client is already gone
+		}
+		closeQuietly(channel);
+	}
+
+	/**
+	 * Closes a channel, ignoring errors.
+	 *
+	 * @param channel Channel to close.
+	 */
+	private static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException ex) {
+			// Nothing else to do
+		}
+	}
+
+	/**
+	 * Runs a task on this loop's thread.
+	 *
+	 * @param task Task to run.
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+
+		if (Thread.currentThread() != thread) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Event loop entry point.
+	 */
+	@Override
+	public void run() {
+		thread = Thread.currentThread();
+
+		while (true) {
+			try {
+				// Don't block if there's already work waiting.
+				if (tasks.isEmpty()) {
+					selector.select();
+				} else {
+					selector.selectNow();
+				}
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+
+					NioClientInstance client = (NioClientInstance) key.attachment();
+					if (key.isValid() && key.isReadable()) {
+						client.onReadable();
+					}
+					if (key.isValid() && key.isWritable()) {
+						client.flush();
+					}
+				}
+
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+			} catch (IOException ex) {
+				LOGGER.log(Level.SEVERE, "Selector failure: {0}", ex.getMessage());
+			} catch (RuntimeException ex) {
+				// Never let a single misbehaving connection kill the whole loop.
+				LOGGER.log(Level.WARNING, "Unexpected error in event loop: {0}", ex.toString());
+			}
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package ufpb.srjn.socketchat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.*;
+
+/**
+ * Non-blocking server engine. A single acceptor thread hands every new
+ * connection to one of a small, fixed set of event loops, which then do all of
+ * that connection's reads, writes and command handling without blocking.
+ *
+ * @author samuel
+ */
+public class NioServer {
+
+	// Logger handle
+	private static final Logger LOGGER = Logger.getLogger(NioServer.class.getName());
+
+	// Port to listen on
+	private final int port;
+
+	// Event loops that serve the accepted connections
+	private final NioEventLoop[] loops;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param port Port to listen on.
+	 * @param loop_count How many event-loop threads to run.
+	 * @param max_pending Maximum number of handshakes in progress at once, over all loops.
+	 * @throws IOException If a selector could not be opened.
+	 */
+	public NioServer(int port, int loop_count, int max_pending) throws IOException {
+		this.port = port;
+		this.loops = new NioEventLoop[Math.max(1, loop_count)];
+
+		AtomicInteger pending = new AtomicInteger();
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new NioEventLoop(pending, max_pending);
+		}
+	}
+
+	/**
+	 * Starts the event loops and accepts connections forever.
+	 *
+	 * @throws IOException If the server socket could not be opened.
+	 */
+	public void run() throws IOException {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port));
+
+		for (int i = 0; i < loops.length; i++) {
+			Thread thread = new Thread(loops[i], "nio-loop-" + i);
+			thread.start();
+		}
+		LOGGER.log(Level.INFO, "Serving clients on {0} event loops.", loops.length);
+
+		// Spread connections over the event loops in round-robin order.
+		int next = 0;
+		while (true) {
+			try {
+				SocketChannel channel = server.accept();
+				loops[next].register(channel);
+				next = (next + 1) % loops.length;
+			} catch (IOException ex) {
+				LOGGER.log(Level.SEVERE, "Failed to accept client connection: {0}", ex.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package ufpb.srjn.socketchat;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of frames waiting to be written to a single client. Any number
+ * of threads may offer frames; a single writer drains them. When the queue is
+ * full, the configured overflow policy decides what happens.
+ *
+ * @author samuel
+ */
+public class OutboundQueue {
+
+	/**
+	 * What to do when a client's queue is full.
+	 */
+	public enum OverflowPolicy {
+		// Discard the oldest queued frame to make room for the new one.
+		DROP_OLDEST,
+		// Discard the new frame.
+		DROP_NEWEST,
+		// Give up on the client altogether.
+		DISCONNECT
+	}
+
+	// Defaults, configurable through system properties
+	private static final int DEFAULT_CAPACITY = Integer.getInteger("socketchat.outbound.capacity", 1024);
+	private static final OverflowPolicy DEFAULT_POLICY = OverflowPolicy.valueOf(
+		System.getProperty("socketchat.outbound.policy", "DISCONNECT").toUpperCase()
+	);
+
+	// Queued frames
+	private final Queue<Frame> frames = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger size = new AtomicInteger();
+
+	// Limits
+	private final int capacity;
+	private final OverflowPolicy policy;
+
+	// Oldest history message discarded without being written
+	private final AtomicLong lowest_dropped = new AtomicLong(Long.MAX_VALUE);
+
+	/**
+	 * Constructor using the configured capacity and policy.
+	 */
+	public OutboundQueue() {
+		this(DEFAULT_CAPACITY, DEFAULT_POLICY);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity Maximum number of queued frames.
+	 * @param policy What to do when the queue is full.
+	 */
+	public OutboundQueue(int capacity, OverflowPolicy policy) {
+		this.capacity = capacity;
+		this.policy = policy;
+	}
+
+	/**
+	 * Queues a frame, applying the overflow policy if the queue is full.
+	 *
+	 * @param frame Frame to queue.
+	 * @return False if the client should be disconnected.
+	 */
+	public boolean offer(Frame frame) {
+		if (size.incrementAndGet() > capacity) {
+			switch (policy) {
+				case DROP_OLDEST:
+					// Make room by discarding the oldest frame.
+					Frame oldest = frames.poll();
+					if (oldest != null) {
+						size.decrementAndGet();
+						dropped(oldest);
+					}
+					break;
+				case DROP_NEWEST:
+					size.decrementAndGet();
+					dropped(frame);
+					return true;
+				default:
+					size.decrementAndGet();
+					dropped(frame);
+					return false;
+			}
+		}
+
+		frames.add(frame);
+		return true;
+	}
+
+	/**
+	 * Takes the next frame off the queue.
+	 *
+	 * @return Next frame, or null if the queue is empty.
+	 */
+	public Frame poll() {
+		Frame frame = frames.poll();
+		if (frame != null) {
+			size.decrementAndGet();
+		}
+		return frame;
+	}
+
+	/**
+	 * Checks whether there's anything left to write.
+	 *
+	 * @return True if the queue is empty.
+	 */
+	public boolean isEmpty() {
+		return frames.isEmpty();
+	}
+
+	/**
+	 * Returns how many frames are currently queued.
+	 *
+	 * @return Queue depth.
+	 */
+	public int size() {
+		return Math.max(0, size.get());
+	}
+
+	/**
+	 * Discards every queued frame.
+	 */
+	public void clear() {
+		Frame frame;
+		while ((frame = poll()) != null) {
+			dropped(frame);
+		}
+	}
+
+	/**
+	 * Returns the oldest message from the history that this queue discarded
+	 * instead of writing.
+	 *
+	 * @return Its sequence number, or Long.MAX_VALUE if none was.
+	 */
+	public long lowestDropped() {
+		return lowest_dropped.get();
+	}
+
+	/**
+	 * Notes a frame discarded without being written.
+	 */
+	private void dropped(Frame frame) {
+		long sequence = frame.getSequence();
+		if (sequence >= 0) {
+			lowest_dropped.accumulateAndGet(sequence, Math::min);
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package ufpb.srjn.socketchat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Announces connects, disconnects and renames to everyone, folding bursts of
+ * them into a single message. The first event after a quiet spell goes out
+ * right away, exactly as before. Events arriving within the next
+ * socketchat.presence.window milliseconds (default 250) are held and sent
+ * together when the window closes, as one summary per kind of event:
+ * "*** 312 users connected: ...".
+ *
+ * During a reconnect storm this sends one broadcast per window instead of one
+ * per user, so the number of writes grows with the number of users instead of
+ * with its square. A window of 0 announces every event on its own.
+ *
+ * @author samuel
+ */
+public class PresenceAnnouncer {
+
+	// Configuration
+	private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("socketchat.presence.window", 250L));
+	private static final int MAX_NAMES = Integer.getInteger("socketchat.presence.names", 50);
+
+	/**
+	 * Events of one kind held for the current window.
+	 */
+	private static final class Pending {
+		// Wording for a summary, e.g. "connected"
+		final String verb;
+		// How many events, and the names of the first MAX_NAMES
+		int count;
+		final List<String> names = new ArrayList<>();
+
+		Pending(String verb) {
+			this.verb = verb;
+		}
+
+		void add(String name) {
+			if (count++ < MAX_NAMES) {
+				names.add(name);
+			}
+		}
+	}
+
+	// Sends the held events once the window closes
+	private final ScheduledThreadPoolExecutor flusher = new ScheduledThreadPoolExecutor(1, (runnable) -> {
+		Thread thread = new Thread(runnable, "presence-announcer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// Held events (guarded by this)
+	private final Pending connected = new Pending("connected");
+	private final Pending disconnected = new Pending("disconnected from the server");
+	private final Pending renamed = new Pending("changed username");
+
+	// Exact text of the only held event, used as is if no other one joins it
+	private String single;
+
+	// Whether a flush is scheduled, and when the last announcement went out
+	private boolean scheduled;
+	private long last_sent = System.nanoTime() - WINDOW_NANOS;
+
+	/**
+	 * Announces a client that logged in.
+	 *
+	 * @param username Username.
+	 */
+	public void connected(String username) {
+		announce(connected, username, "*** " + username + " has connected.");
+	}
+
+	/**
+	 * Announces a client that left.
+	 *
+	 * @param username Username.
+	 */
+	public void disconnected(String username) {
+		announce(disconnected, username, "*** " + username + " has disconnected from the server.");
+	}
+
+	/**
+	 * Announces a client that changed names.
+	 *
+	 * @param old_username Original username.
+	 * @param new_username New username.
+	 */
+	public void renamed(String old_username, String new_username) {
+		announce(renamed, old_username + " to " + new_username, "*** " + old_username + " changed username to " + new_username);
+	}
+
+	/**
+	 * Sends an event right away after a quiet spell, or holds it for the
+	 * current window.
+	 */
+	private void announce(Pending kind, String name, String text) {
+		synchronized (this) {
+			long now = System.nanoTime();
+			long waited = now - last_sent;
+			if (scheduled || waited < WINDOW_NANOS) {
+				kind.add(name);
+				single = connected.count + disconnected.count + renamed.count == 1 ? text : null;
+				if (!scheduled) {
+					scheduled = true;
+					flusher.schedule(this::flush, WINDOW_NANOS - waited, TimeUnit.NANOSECONDS);
+				}
+				return;
+			}
+			last_sent = now;
+		}
+
+		ServerApplication.sendGlobally(text);
+	}
+
+	/**
+	 * Sends everything held during the window as one message.
+	 */
+	private void flush() {
+		String text;
+		synchronized (this) {
+			scheduled = false;
+			last_sent = System.nanoTime();
+			if (single != null) {
+				text = single;
+			} else {
+				StringBuilder summary = new StringBuilder();
+				summarize(summary, connected);
+				summarize(summary, disconnected);
+				summarize(summary, renamed);
+				text = summary.toString();
+			}
+			single = null;
+			clear(connected);
+			clear(disconnected);
+			clear(renamed);
+		}
+
+		if (!text.isEmpty()) {
+			ServerApplication.sendGlobally(text);
+		}
+	}
+
+	/**
+	 * Appends one line about a kind of event, if any happened.
+	 */
+	private static void summarize(StringBuilder summary, Pending kind) {
+		if (kind.count == 0) {
+			return;
+		}
+		if (summary.length() > 0) {
+			summary.append('\n');
+		}
+
+		summary.append("*** ").append(kind.count).append(kind.count == 1 ? " user " : " users ")
+			.append(kind.verb).append(": ").append(String.join(", ", kind.names));
+		if (kind.count > kind.names.size()) {
+			summary.append(" and ").append(kind.count - kind.names.size()).append(" more");
+		}
+		summary.append('.');
+	}
+
+	/**
+	 * Forgets the events of one kind.
+	 */
+	private static void clear(Pending kind) {
+		kind.count = 0;
+		kind.names.clear();
+	}
+}
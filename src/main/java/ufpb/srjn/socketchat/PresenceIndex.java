@@ -0,0 +1,277 @@
+package ufpb.srjn.socketchat;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Who is online, across the whole cluster, kept up to date one change at a
+ * time instead of being rebuilt for every list command. Every change bumps a
+ * version number and is kept in a short log, so a client that already knows
+ * the list at some version only needs the changes since.
+ *
+ * The full list is turned into a frame at most once per version, and that
+ * same frame goes to everyone who asks until the next change. Pages and prefix
+ * searches use a binary search on the same sorted snapshot.
+ *
+ * Clients can also watch the list: they get the current one, and then every
+ * change as it happens, in version order.
+ *
+ * @author samuel
+ */
+public class PresenceIndex {
+
+	// Configuration
+	private static final int PAGE_SIZE = Integer.getInteger("socketchat.list.page", 100);
+	private static final int MAX_CHANGES = Integer.getInteger("socketchat.presence.history", 1024);
+
+	/**
+	 * The list as of one version, with its frames built on first use.
+	 */
+	private static final class Snapshot {
+		final long version;
+		// Usernames in sorted order
+		final String[] usernames;
+		// Answer to a plain list command
+		volatile Frame list;
+		// Full list for watchers and clients too far behind for changes
+		volatile Frame full;
+
+		Snapshot(long version, String[] usernames) {
+			this.version = version;
+			this.usernames = usernames;
+		}
+	}
+
+	/**
+	 * One change to the list: "+username" or "-username".
+	 */
+	private static final class Change {
+		final long version;
+		final String text;
+
+		Change(long version, String text) {
+			this.version = version;
+			this.text = text;
+		}
+	}
+
+	// Online usernames and the latest changes (guarded by this)
+	private final TreeSet<String> usernames = new TreeSet<>();
+	private final ArrayDeque<Change> changes = new ArrayDeque<>();
+
+	// Current version; only changed while holding the lock
+	private volatile long version;
+
+	// Latest snapshot taken; rebuilt once the version moves past it
+	private volatile Snapshot snapshot = new Snapshot(0, new String[0]);
+
+	// Clients watching for changes
+	private final Set<ClientInstance> watchers = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Adds a user to the list.
+	 *
+	 * @param username User who logged in, here or on another node.
+	 */
+	public synchronized void joined(String username) {
+		if (usernames.add(username)) {
+			changed("+" + username);
+		}
+	}
+
+	/**
+	 * Removes a user from the list.
+	 *
+	 * @param username User who left, here or on another node.
+	 */
+	public synchronized void left(String username) {
+		if (usernames.remove(username)) {
+			changed("-" + username);
+		}
+	}
+
+	/**
+	 * Moves a user to a new name, as a single version.
+	 *
+	 * @param old_username Original username.
+	 * @param new_username New username.
+	 */
+	public synchronized void renamed(String old_username, String new_username) {
+		boolean removed = usernames.remove(old_username);
+		boolean added = usernames.add(new_username);
+		if (removed && added) {
+			changed("-" + old_username + " +" + new_username);
+		} else if (removed) {
+			changed("-" + old_username);
+		} else if (added) {
+			changed("+" + new_username);
+		}
+	}
+
+	/**
+	 * Returns the answer to a plain list command.
+	 *
+	 * @return Shared frame listing everyone online.
+	 */
+	public Frame list() {
+		Snapshot current = current();
+		Frame frame = current.list;
+		if (frame == null) {
+			StringBuilder text = new StringBuilder("*** Connected clients: ");
+			for (String username : current.usernames) {
+				text.append(username).append(' ');
+			}
+			// Built twice on a race at worst; both are the same.
+			frame = Frame.of(text.toString());
+			current.list = frame;
+		}
+		return frame;
+	}
+
+	/**
+	 * Returns one page of the users whose names start with a prefix.
+	 *
+	 * @param prefix Prefix to match; "" matches everyone.
+	 * @param page Page number, from 1.
+	 * @return Frame listing that page, or an error past the last page.
+	 */
+	public Frame page(String prefix, int page) {
+		String[] sorted = current().usernames;
+		int from = lowerBound(sorted, prefix);
+		int to = prefix.isEmpty() ? sorted.length : lowerBound(sorted, prefix + Character.MAX_VALUE);
+		int pages = Math.max(1, (to - from + PAGE_SIZE - 1) / PAGE_SIZE);
+		if (page > pages) {
+			return Frame.error("There is no page " + page + ", only " + pages + ".");
+		}
+
+		StringBuilder text = new StringBuilder("*** Connected clients");
+		if (!prefix.isEmpty()) {
+			text.append(" starting with ").append(prefix);
+		}
+		text.append(" (page ").append(page).append(" of ").append(pages).append("): ");
+		int start = from + (page - 1) * PAGE_SIZE;
+		for (int i = start; i < Math.min(to, start + PAGE_SIZE); i++) {
+			text.append(sorted[i]).append(' ');
+		}
+		return Frame.of(text.toString());
+	}
+
+	/**
+	 * Returns the changes since a version the client already has, or the full
+	 * list if they're no longer kept.
+	 *
+	 * @param since Version the client has.
+	 * @return Frame with the changes or the full list.
+	 */
+	public Frame since(long since) {
+		StringBuilder text = new StringBuilder();
+		synchronized (this) {
+			Change oldest = changes.peekFirst();
+			boolean complete = since == version || (oldest != null && since >= oldest.version - 1 && since <= version);
+			if (complete) {
+				text.append("*** Presence v").append(version).append(':');
+				for (Change change : changes) {
+					if (change.version > since) {
+						text.append(' ').append(change.text);
+					}
+				}
+			}
+		}
+		return text.length() > 0 ? Frame.of(text.toString()) : full();
+	}
+
+	/**
+	 * Starts sending a client every change, after the full list.
+	 *
+	 * @param client Client that asked.
+	 * @throws IOException If writing to the client fails.
+	 */
+	public void watch(ClientInstance client) throws IOException {
+		// Taken together, so no change falls between the list and the first update.
+		synchronized (this) {
+			watchers.add(client);
+			client.writeFrame(full());
+		}
+	}
+
+	/**
+	 * Stops sending a client changes.
+	 *
+	 * @param client Client that asked, or that left.
+	 * @return False if the client wasn't watching.
+	 */
+	public boolean unwatch(ClientInstance client) {
+		return watchers.remove(client);
+	}
+
+	/**
+	 * Returns the full list with its version, the way watchers first get it.
+	 */
+	private Frame full() {
+		Snapshot current = current();
+		Frame frame = current.full;
+		if (frame == null) {
+			StringBuilder text = new StringBuilder("*** Presence v").append(current.version).append(" (full):");
+			for (String username : current.usernames) {
+				text.append(' ').append(username);
+			}
+			frame = Frame.of(text.toString());
+			current.full = frame;
+		}
+		return frame;
+	}
+
+	/**
+	 * Returns a snapshot of the latest version, taking a new one if needed.
+	 */
+	private Snapshot current() {
+		Snapshot current = snapshot;
+		if (current.version == version) {
+			return current;
+		}
+
+		synchronized (this) {
+			if (snapshot.version != version) {
+				snapshot = new Snapshot(version, usernames.toArray(new String[0]));
+			}
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Records a change and sends it to every watcher. Caller holds the lock, so
+	 * watchers get changes in version order.
+	 */
+	private void changed(String text) {
+		version++;
+		changes.addLast(new Change(version, text));
+		if (changes.size() > MAX_CHANGES) {
+			changes.pollFirst();
+		}
+
+		if (watchers.isEmpty()) {
+			return;
+		}
+		Frame frame = Frame.of("*** Presence v" + version + ": " + text);
+		for (ClientInstance watcher : watchers) {
+			try {
+				watcher.writeFrame(frame);
+			} catch (IOException ex) {
+				// Client is gone; its reader will clean up.
+				watchers.remove(watcher);
+			}
+		}
+	}
+
+	/**
+	 * Finds the first index in a sorted array whose entry isn't less than a key.
+	 */
+	private static int lowerBound(String[] sorted, String key) {
+		int index = Arrays.binarySearch(sorted, key);
+		return index >= 0 ? index : -index - 1;
+	}
+}
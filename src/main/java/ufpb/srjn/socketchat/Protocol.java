@@ -0,0 +1,256 @@
+package ufpb.srjn.socketchat;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * Wire protocol versions and the helpers shared by every engine.
+ *
+ * Version 1 is the original protocol: every frame is a writeUTF string holding
+ * Base64 cipher text, and message types are text prefixes.
+ *
+ * Version 2 is negotiated by appending " V2" to the HASH command and is
+ * confirmed by the server answering "OK V2" instead of "OK". Every frame after
+ * that is a varint length, one message type byte and the raw cipher text. There
+ * is no Base64 step and no 64 KB limit.
+ *
+ * Version 2 clients may also append " Z" to offer compression, which the server
+ * accepts by answering "OK V2 Z". Either side may then send large bodies
+ * deflated before encryption, with the high bit of the type byte set. The
+ * deflated body starts with the varint length of the original UTF-8 text and
+ * uses FrameCompressor's preset dictionary.
+ *
+ * Version 2 clients may also offer a key agreement with " K=<public key>",
+ * after Z if present. The server answers with its own public key the same way,
+ * and from then on every frame is sealed with AES-GCM under keys only that
+ * connection has (see SessionKeys). Broadcasts are sealed once under a group
+ * key instead (see GroupKey): the type byte gets GROUP set and the body starts
+ * with the key id and nonce. Unlike session-sealed frames, these are not
+ * protected against replay. Group keys reach clients in KEY messages sealed
+ * under their session keys.
+ *
+ * Clients in any version may append " R" last to ask for session tickets. The
+ * server then sends a TICKET message after logging them in, and a client that
+ * reconnects within the ticket's lifetime can send "RESUME <ticket>" followed
+ * by the same tokens instead of HASH and RENAME.
+ *
+ * Clients that answer PING messages with PONG say so with " P", before R.
+ * The server pings them when they go quiet and drops them if they stay silent
+ * (see Heartbeat).
+ *
+ * @author samuel
+ */
+public final class Protocol {
+
+	// Protocol versions
+	public static final int V1 = 1;
+	public static final int V2 = 2;
+
+	// Token appended to HASH and OK to negotiate version 2
+	static final String V2_TOKEN = "V2";
+
+	// Whether this side offers/accepts version 2
+	static final boolean V2_ENABLED = !"1".equals(System.getProperty("socketchat.protocol"));
+
+	// Token appended after V2 to negotiate compression
+	static final String Z_TOKEN = "Z";
+
+	// Whether this side offers/accepts compression
+	static final boolean Z_ENABLED = !"false".equals(System.getProperty("socketchat.compress"));
+
+	// Prefix of the token carrying a public key for the key agreement
+	static final String KEY_TOKEN = "K=";
+
+	// Whether this side offers/accepts per-connection keys
+	static final boolean KEYS_ENABLED = !"false".equals(System.getProperty("socketchat.keys"));
+
+	// Token offered by clients that answer PING with PONG
+	static final String PING_TOKEN = "P";
+
+	// Token appended last to ask for session tickets
+	static final String RESUME_TOKEN = "R";
+
+	// First word of the handshake message that redeems a ticket
+	static final String RESUME_COMMAND = "RESUME";
+
+	// Set on the type byte of a compressed version 2 frame
+	static final int COMPRESSED = 0x80;
+
+	// Set on the type byte of a frame sealed under a group key
+	static final int GROUP = 0x40;
+
+	// Largest version 2 frame accepted, to keep a client from exhausting memory
+	static final int MAX_FRAME = Integer.getInteger("socketchat.protocol.maxframe", 16 * 1024 * 1024);
+
+	// Largest version 2 header: five varint bytes plus the type byte
+	static final int MAX_HEADER = 6;
+
+	/**
+	 * Utility class.
+	 */
+	private Protocol() {
+	}
+
+	/**
+	 * Checks which protocol version a client asked for in its HASH command.
+	 *
+	 * @param hash_message Plain text HASH message.
+	 * @return The highest version both sides support.
+	 */
+	static int negotiate(String hash_message) {
+		String[] words = hash_message.split(" ");
+		if (V2_ENABLED && words.length >= 3 && V2_TOKEN.equals(words[2])) {
+			return V2;
+		}
+		return V1;
+	}
+
+	/**
+	 * Checks whether a client offered compression in its HASH command.
+	 *
+	 * @param hash_message Plain text HASH message.
+	 * @return True if both sides support compression and version 2 was negotiated.
+	 */
+	static boolean negotiateCompression(String hash_message) {
+		String[] words = hash_message.split(" ");
+		return Z_ENABLED && negotiate(hash_message) == V2 && words.length >= 4 && Z_TOKEN.equals(words[3]);
+	}
+
+	/**
+	 * Checks whether a client asked for session tickets in its HASH or RESUME
+	 * command.
+	 *
+	 * @param hash_message Plain text HASH or RESUME message.
+	 * @return True if the client will accept a TICKET message.
+	 */
+	static boolean negotiateResume(String hash_message) {
+		String[] words = hash_message.split(" ");
+		return words.length >= 3 && RESUME_TOKEN.equals(words[words.length - 1]);
+	}
+
+	/**
+	 * Tells whether a client answers heartbeats.
+	 *
+	 * @param hash_message Plain text HASH or RESUME message.
+	 * @return True if the client offered P.
+	 */
+	static boolean negotiatePing(String hash_message) {
+		String[] words = hash_message.split(" ");
+		for (int i = 2; i < words.length; i++) {
+			if (PING_TOKEN.equals(words[i])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Finds the public key a client offered for the key agreement.
+	 *
+	 * @param hash_message Plain text HASH or RESUME message.
+	 * @return Encoded public key, or null if there is none or version 2 wasn't
+	 * negotiated.
+	 */
+	static String negotiateKey(String hash_message) {
+		if (!KEYS_ENABLED || negotiate(hash_message) != V2) {
+			return null;
+		}
+		String[] words = hash_message.split(" ");
+		for (int i = 3; i < words.length; i++) {
+			if (words[i].startsWith(KEY_TOKEN)) {
+				return words[i].substring(KEY_TOKEN.length());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Builds the server's answer to a successful handshake.
+	 *
+	 * @param protocol Negotiated protocol version.
+	 * @param compress Whether compression was negotiated.
+	 * @param key Server's encoded public key, or null without a key agreement.
+	 * @return OK followed by whatever was agreed on.
+	 */
+	static String accept(int protocol, boolean compress, String key) {
+		if (protocol != V2) {
+			return "OK";
+		}
+		return "OK " + V2_TOKEN + (compress ? " " + Z_TOKEN : "") + (key != null ? " " + KEY_TOKEN + key : "");
+	}
+
+	/**
+	 * Returns how many bytes a value takes as a varint.
+	 *
+	 * @param value Non-negative value.
+	 * @return Encoded size, 1 to 5 bytes.
+	 */
+	static int varintSize(int value) {
+		int size = 1;
+		while ((value >>>= 7) != 0) {
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Writes a varint into an array.
+	 *
+	 * @param value Non-negative value.
+	 * @param dst Destination array.
+	 * @param offset Where to start writing.
+	 * @return Offset right after the varint.
+	 */
+	static int writeVarint(int value, byte[] dst, int offset) {
+		while ((value & ~0x7f) != 0) {
+			dst[offset++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		dst[offset++] = (byte) value;
+		return offset;
+	}
+
+	/**
+	 * Reads a varint from a stream.
+	 *
+	 * @param in Stream to read from.
+	 * @return Decoded value.
+	 * @throws IOException If the stream fails or the varint is malformed.
+	 */
+	static int readVarint(DataInput in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed frame length.");
+	}
+
+	/**
+	 * Reads a varint from an array, if it's all there.
+	 *
+	 * @param src Array to read from.
+	 * @param offset Where the varint starts.
+	 * @param limit End of the readable bytes.
+	 * @return The value in the low 32 bits and the encoded size in the high 32
+	 * bits, or -1 if the varint is incomplete.
+	 * @throws IOException If the varint is malformed.
+	 */
+	static long peekVarint(byte[] src, int offset, int limit) throws IOException {
+		int value = 0;
+		for (int i = 0; i < 5; i++) {
+			if (offset + i >= limit) {
+				return -1;
+			}
+			int b = src[offset + i] & 0xff;
+			value |= (b & 0x7f) << (7 * i);
+			if ((b & 0x80) == 0) {
+				return ((long) (i + 1) << 32) | (value & 0xffffffffL);
+			}
+		}
+		throw new IOException("Malformed frame length.");
+	}
+}
@@ -0,0 +1,118 @@
+package ufpb.srjn.socketchat;
+
+/**
+ * Decides how fast clients may send commands. Every client has a budget for
+ * commands of any kind, plus separate, smaller budgets for broadcasts (to
+ * everyone or to a room) and for private messages, since a broadcast costs a
+ * write to every recipient. Broadcasts also share a budget across the whole
+ * server, so many clients together can't flood everyone either.
+ *
+ * Budgets are token buckets: socketchat.rate.commands (default 20),
+ * socketchat.rate.broadcasts (default 5), socketchat.rate.private (default 10)
+ * and socketchat.rate.global (default 200) per second, each allowing a burst of
+ * socketchat.rate.burst seconds' worth (default 2). A rate of 0 turns that
+ * budget off.
+ *
+ * A client over budget isn't refused; the caller waits before handling its
+ * message and stops reading from it in the meantime, so a fast sender is
+ * slowed down by TCP itself.
+ *
+ * @author samuel
+ */
+public class RateLimiter {
+
+	// Configuration
+	private static final int COMMAND_RATE = Integer.getInteger("socketchat.rate.commands", 20);
+	private static final int BROADCAST_RATE = Integer.getInteger("socketchat.rate.broadcasts", 5);
+	private static final int PRIVATE_RATE = Integer.getInteger("socketchat.rate.private", 10);
+	private static final int GLOBAL_RATE = Integer.getInteger("socketchat.rate.global", 200);
+	private static final int BURST_SECONDS = Integer.getInteger("socketchat.rate.burst", 2);
+
+	/**
+	 * One client's budgets. Buckets that are turned off are null.
+	 */
+	public static final class Budget {
+		final TokenBucket commands = bucket(COMMAND_RATE);
+		final TokenBucket broadcasts = bucket(BROADCAST_RATE);
+		final TokenBucket privates = bucket(PRIVATE_RATE);
+	}
+
+	// Broadcasts by every client on this server
+	private final TokenBucket global = bucket(GLOBAL_RATE);
+
+	/**
+	 * Creates the budgets for a new client.
+	 *
+	 * @return Full budgets.
+	 */
+	public Budget budget() {
+		return new Budget();
+	}
+
+	/**
+	 * Charges a command to a client's budgets. If any of them is spent, nothing
+	 * is charged.
+	 *
+	 * @param budget Client's budgets.
+	 * @param incoming Decrypted command.
+	 * @return 0 if the command may be handled now, otherwise how many
+	 * nanoseconds to wait before asking again.
+	 */
+	public long acquire(Budget budget, String incoming) {
+		// Matched the way CommandLine splits words, without parsing the line twice.
+		TokenBucket kind = null;
+		boolean broadcast = false;
+		if (isCommand(incoming, "send -all") || isCommand(incoming, "send -room")) {
+			kind = budget.broadcasts;
+			broadcast = true;
+		} else if (isCommand(incoming, "send -user")) {
+			kind = budget.privates;
+		}
+
+		long wait = take(budget.commands);
+		if (wait > 0) {
+			return wait;
+		}
+		wait = take(kind);
+		if (wait > 0) {
+			refund(budget.commands);
+			return wait;
+		}
+		wait = broadcast ? take(global) : 0;
+		if (wait > 0) {
+			refund(budget.commands);
+			refund(kind);
+		}
+		return wait;
+	}
+
+	/**
+	 * Takes a token from a bucket that may be turned off.
+	 */
+	private static long take(TokenBucket bucket) {
+		return bucket == null ? 0 : bucket.acquire();
+	}
+
+	/**
+	 * Gives back a token to a bucket that may be turned off.
+	 */
+	private static void refund(TokenBucket bucket) {
+		if (bucket != null) {
+			bucket.refund();
+		}
+	}
+
+	/**
+	 * Tells whether a line starts with the given words.
+	 */
+	private static boolean isCommand(String incoming, String words) {
+		return incoming.startsWith(words) && (incoming.length() == words.length() || incoming.charAt(words.length()) == ' ');
+	}
+
+	/**
+	 * Creates a bucket for a rate, or none if the rate is turned off.
+	 */
+	private static TokenBucket bucket(int per_second) {
+		return per_second > 0 ? new TokenBucket(per_second, per_second * BURST_SECONDS) : null;
+	}
+}
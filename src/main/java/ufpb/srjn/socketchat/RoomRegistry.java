@@ -0,0 +1,117 @@
+package ufpb.srjn.socketchat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of chat rooms and who is in them. Each room has its own concurrent
+ * set of members, so a room message only walks that room. Joining and leaving
+ * lock just the room's bin in the underlying ConcurrentHashMap, and sending
+ * locks nothing, so unrelated rooms never contend with each other. Rooms are
+ * created by their first member and removed when their last member leaves.
+ *
+ * @author samuel
+ */
+public class RoomRegistry {
+
+	// Room name to its members
+	private final Map<String, Set<ClientInstance>> rooms = new ConcurrentHashMap<>();
+
+	/**
+	 * Normalizes a room name as typed by a client, so "#dev" and "dev" are the
+	 * same room.
+	 *
+	 * @param name Room name.
+	 * @return Name without its leading '#'.
+	 */
+	public static String normalize(String name) {
+		return name.startsWith("#") ? name.substring(1) : name;
+	}
+
+	/**
+	 * Adds a client to a room, creating the room if needed.
+	 *
+	 * @param name Room name.
+	 * @param client Client joining.
+	 * @return False if the client was already in the room.
+	 */
+	public boolean join(String name, ClientInstance client) {
+		boolean[] added = new boolean[1];
+		// Done inside compute so a room can't be removed while someone joins it.
+		rooms.compute(name, (key, members) -> {
+			if (members == null) {
+				members = ConcurrentHashMap.newKeySet();
+			}
+			added[0] = members.add(client);
+			return members;
+		});
+
+		if (added[0]) {
+			client.rooms.add(name);
+		}
+		return added[0];
+	}
+
+	/**
+	 * Removes a client from a room, removing the room if it's now empty.
+	 *
+	 * @param name Room name.
+	 * @param client Client leaving.
+	 * @return False if the client wasn't in the room.
+	 */
+	public boolean leave(String name, ClientInstance client) {
+		boolean[] removed = new boolean[1];
+		rooms.computeIfPresent(name, (key, members) -> {
+			removed[0] = members.remove(client);
+			return members.isEmpty() ? null : members;
+		});
+
+		client.rooms.remove(name);
+		return removed[0];
+	}
+
+	/**
+	 * Removes a client from every room it's in.
+	 *
+	 * @param client Client leaving.
+	 */
+	public void leaveAll(ClientInstance client) {
+		for (String name : client.rooms) {
+			leave(name, client);
+		}
+	}
+
+	/**
+	 * Returns the members of a room. Iteration is weakly consistent and never
+	 * blocks joins or leaves.
+	 *
+	 * @param name Room name.
+	 * @return Members, or an empty set if the room doesn't exist.
+	 */
+	public Set<ClientInstance> members(String name) {
+		Set<ClientInstance> members = rooms.get(name);
+		return members == null ? Collections.emptySet() : Collections.unmodifiableSet(members);
+	}
+
+	/**
+	 * Returns a snapshot of every room name.
+	 *
+	 * @return List of room names.
+	 */
+	public List<String> names() {
+		return new ArrayList<>(rooms.keySet());
+	}
+
+	/**
+	 * Returns how many rooms exist.
+	 *
+	 * @return Room count.
+	 */
+	public int size() {
+		return rooms.size();
+	}
+}
@@ -1,12 +1,12 @@
 package ufpb.srjn.socketchat;
 
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.concurrent.*;
 import java.util.logging.*;
@@ -23,8 +23,52 @@ public class ServerApplication {
 	// Logger handle
 	private static final Logger LOGGER = Logger.getLogger(ServerApplication.class.getName());
 
-	// List of open client sockets
-	private static Map<String, ClientInstance> clients = new HashMap();
+	// Registry of logged-in clients
+	private static final ClientRegistry clients = new ClientRegistry();
+	
+	// Durable log of relayed messages, or null if journaling is off
+	private static volatile MessageJournal journal;
+	
+	// This server's place in a cluster, or null when running alone
+	private static volatile ClusterNode cluster;
+	
+	// Chat rooms and their members
+	private static final RoomRegistry rooms = new RoomRegistry();
+	
+	// How many rooms a single client may be in
+	private static final int MAX_ROOMS = Integer.getInteger("socketchat.rooms.max", 32);
+	
+	// Recent messages, replayed to clients that ask for them
+	private static final MessageHistory history = new MessageHistory();
+	
+	// Whether clients logging back in get what they missed, and how much of it at most
+	private static final boolean REPLAY = Boolean.getBoolean("socketchat.history.replay");
+	static final int MAX_REPLAY = Integer.getInteger("socketchat.history.max", 200);
+	
+	// Tickets that let clients resume their session after a reconnect
+	private static final SessionTickets tickets = new SessionTickets();
+	
+	// Keys broadcasts are sealed under, for clients with session keys
+	private static final GroupKeys keys = new GroupKeys(clients, rooms);
+	
+	// Who is online across the cluster, for the list command
+	private static final PresenceIndex presence = new PresenceIndex();
+	
+	// Connect, disconnect and rename announcements, folded together in bursts
+	private static final PresenceAnnouncer announcer = new PresenceAnnouncer();
+	
+	// One timer for every handshake deadline and heartbeat check
+	private static final HashedWheelTimer timer = new HashedWheelTimer(
+		Long.getLong("socketchat.timer.tick", 100L), Integer.getInteger("socketchat.timer.buckets", 512));
+	
+	// How long a client has to complete its handshake
+	static final long HANDSHAKE_MILLIS = Long.getLong("socketchat.handshake.timeout", 10000L);
+	
+	// How many handshakes may be in progress at once before new connections are turned away
+	private static final int HANDSHAKE_PENDING = Integer.getInteger("socketchat.handshake.pending", 1024);
+	
+	// Pings quiet clients and drops dead ones
+	private static final Heartbeat heartbeat = new Heartbeat(timer, clients);
 	
 	/**
 	 * Server entry point.
@@ -32,17 +76,15 @@ public class ServerApplication {
 	 * @param args Command-line parameters.
 	 */
 	public static void main(String[] args) {
-		// Create thread pool to handle multiple clients.
-		ExecutorService executor = Executors.newCachedThreadPool();
-
 		// Validate user-supplied command line parameters.
-		if (args.length != 2) {
-			System.out.println("ERROR: Incorrect number of parameters.\nUsage: ServerApplication [port] [password]");
+		if (args.length < 2 || args.length > 3) {
+			System.out.println("ERROR: Incorrect number of parameters.\nUsage: ServerApplication [port] [password] [engine]\nEngines: threads (default), virtual, nio");
 			return;
 		}
 		
 		Integer port;
 		String password;
+		String engine = args.length == 3 ? args[2] : "threads";
 		
 		try {
 			port = Integer.parseInt(args[0]);
@@ -52,58 +94,252 @@ public class ServerApplication {
 			return;
 		}
 		
+		// Create thread pools to handle handshakes and multiple clients.
+		ExecutorService executor;
+		ExecutorService handshake_executor;
+		switch (engine) {
+			case "threads":
+				executor = Executors.newCachedThreadPool();
+				handshake_executor = Executors.newFixedThreadPool(Integer.getInteger("socketchat.handshake.workers", 16));
+				ClientInstance.setWriterExecutor(Executors.newCachedThreadPool());
+				break;
+			case "virtual":
+				executor = newVirtualThreadExecutor();
+				if (executor == null) {
+					System.out.println("ERROR: The virtual engine requires Java 21 or newer.");
+					return;
+				}
+				handshake_executor = executor;
+				ClientInstance.setWriterExecutor(executor);
+				break;
+			case "nio":
+				executor = null;
+				handshake_executor = null;
+				break;
+			default:
+				System.out.println("ERROR: Unknown engine: " + engine);
+				return;
+		}
+		
 		try {
 			// Start TCP server on specified port, initialize authenticator class.
-			LOGGER.log(Level.INFO, "Starting server on port {0}...", port.toString());
-			ServerSocket server = new ServerSocket(port);
+			LOGGER.log(Level.INFO, "Starting {0} server on port {1}...", new Object[]{engine, port.toString()});
 			Authenticator.setPassword(password);
+			ServerMetrics.start(clients);
+			
+			// Keep a durable log of relayed messages if a directory was given.
+			String journal_dir = System.getProperty("socketchat.journal.dir");
+			if (journal_dir != null) {
+				journal = new MessageJournal(Paths.get(journal_dir));
+				
+				// Start the history off with the end of the journal. Room
+				// messages are left out; they're only for the room's members.
+				for (MessageJournal.Entry entry : journal.tail(MessageHistory.GLOBAL_SIZE)) {
+					Frame frame = Frame.of(entry.getType(), entry.getText());
+					if (entry.getRecipient().isEmpty()) {
+						history.record(frame);
+					} else if (!entry.getRecipient().startsWith("#")) {
+						history.record(frame, entry.getSender(), entry.getRecipient());
+					}
+					// Nothing to hand out; these were delivered before the restart.
+					history.sent(frame);
+				}
+				Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+					try {
+						journal.close();
+					} catch (IOException ex) {
+						System.out.println("Failed to close journal: " + ex.getMessage());
+					}
+				}));
+			}
+			
+			// Join a cluster if a peer port was given.
+			Integer cluster_port = Integer.getInteger("socketchat.cluster.port");
+			if (cluster_port != null) {
+				ClusterNode node = new ClusterNode(clients, cluster_port,
+					System.getProperty("socketchat.cluster.address", "127.0.0.1:" + cluster_port));
+				node.start(Arrays.asList(System.getProperty("socketchat.cluster.peers", "").split(",")));
+				cluster = node;
+			}
+			
+			// Report how well outbound writes were batched when the server stops.
+			// (Printed directly: the logging framework shuts its handlers down in its own hook.)
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println("Outbound writes: " + WriteStats.summary())));
+			
+			// Event-loop engine: a few selector threads serve every client.
+			if ("nio".equals(engine)) {
+				int loops = Integer.getInteger("socketchat.nio.loops", Runtime.getRuntime().availableProcessors());
+				new NioServer(port, loops, HANDSHAKE_PENDING).run();
+				return;
+			}
+			
+			ServerSocket server = new ServerSocket(port);
+			HandshakeStage handshakes = new HandshakeStage(
+				handshake_executor,
+				executor,
+				timer,
+				HANDSHAKE_PENDING,
+				HANDSHAKE_MILLIS
+			);
 
-			// Wait for incoming user connections.
+			// Wait for incoming user connections. This loop only ever accepts;
+			// handshakes happen on their own workers.
 			while (true) {
 				try {
-					// Create client instance from open socket.
-					Socket socket = server.accept();
-					ClientInstance client = new ClientInstance(socket);
-					
-					// Make sure the connecting client's username is unique.
-					if (!clients.containsKey(client.username)) {
-						clients.put(client.username, client);
-						executor.execute(new ServerThread(client));
-					} else {
-						// Another client with this username is already connected.
-						LOGGER.log(Level.INFO, "User tried to login with already existing username: {0}", client.username);
-						client.writeOut("ERROR: This username is already taken.");
-						client.close();
-					}
+					handshakes.submit(server.accept());
 				} catch (IOException ex) {
-					LOGGER.log(Level.SEVERE, "Failed to open I/O streams after client connected: {0}", ex.getMessage());
-				} catch (Exception ex) {
-					LOGGER.log(Level.WARNING, "Error during client connection: {0}", ex.getMessage());
+					LOGGER.log(Level.SEVERE, "Failed to accept client connection: {0}", ex.getMessage());
 				}
 			}
 		} catch (IOException ex) {
 			LOGGER.log(Level.SEVERE, "Failed to start server: {0}", ex.getMessage());
 		}
 	}
+	
+	/**
+	 * Creates an executor that starts a new virtual thread for each task.
+	 * Looked up reflectively so the project still builds on older JDKs.
+	 * 
+	 * @return The executor, or null if this JVM has no virtual threads.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException ex) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Adds a client that has just completed its handshake to the server.
+	 * 
+	 * @param client Client to add.
+	 * @return False if another client with this username is already connected.
+	 */
+	public static boolean registerClient(ClientInstance client) {
+		// Resumed sessions always catch up; that's what they reconnected for.
+		boolean catch_up = REPLAY || client.resumed != null;
+		if (catch_up) {
+			client.startCatchUp();
+		}
+		client.delivered.set(history.mark() - 1);
+		client.heard = client.delivered.get();
+		
+		// A resumed session may find its old connection still registered, if the
+		// server hasn't noticed it died. The ticket proves it's the same user, so
+		// the new connection takes its place and its rooms.
+		List<String> rejoin = client.resumed != null ? client.resumed.rooms : new ArrayList<>();
+		ClientInstance stale = client.resumed != null ? clients.get(client.username) : null;
+		if (stale != null) {
+			// Its reader won't clean up, so note here what it never got.
+			stale.unresponsive = true;
+			history.disconnected(stale.username, stale.undelivered());
+			stale.replaced = true;
+			rejoin = new ArrayList<>(stale.rooms);
+			leaveRooms(stale);
+			clients.remove(stale);
+			stale.abort();
+		}
+		
+		ClusterNode node = cluster;
+		if ((node != null && node.locate(client.username) != null) || !clients.register(client)) {
+			return false;
+		}
+		if (node != null) {
+			node.userJoined(client.username);
+		}
+		if (client.resumed == null) {
+			// Whatever the last holder of the name left behind isn't ours.
+			history.claimed(client.username);
+			tickets.claimed(client.username);
+		}
+		presence.joined(client.username);
+		heartbeat.watch(client);
+		keys.joined(client);
+		for (String room : rejoin) {
+			rooms.join(room, client);
+			keys.joinedRoom(room, client);
+		}
+		
+		if (client.resumable) {
+			try {
+				client.writeFrame(Frame.of(MessageType.TICKET, tickets.issue(client.username)));
+			} catch (IOException ex) {
+				// Client is gone already; its reader will clean up.
+			}
+		}
+		
+		// Messages are recorded before they go out, so anything recorded after
+		// this point reaches the client live. Anything before it is replayed,
+		// unless the client already got it live.
+		if (catch_up) {
+			long mark = history.mark();
+			List<Frame> missed = client.finishCatchUp(history.missed(client.username, mark, MAX_REPLAY, client.resumed != null), mark);
+			if (!missed.isEmpty()) {
+				// Until the catch-up is written, the session starts where it does.
+				client.delivered.accumulateAndGet(missed.get(0).getSequence() - 1, Math::min);
+				missed.add(0, Frame.of("*** You missed " + missed.size() + " messages while away:"));
+				try {
+					client.writeFrames(missed);
+				} catch (IOException ex) {
+					// Client is gone already; its reader will clean up.
+				}
+			}
+		}
+		return true;
+	}
 
 	/**
 	 * Sends a UTF-8 message to all connected clients.
 	 * 
 	 * @param msg Message that will be sent.
 	 */
-	public synchronized static void sendGlobally(String msg) {
-		Iterator it = clients.entrySet().iterator();
+	public static void sendGlobally(String msg) {
+		// Encrypt once per protocol version, then write the same frame to everyone.
+		sendGlobally(Frame.of(msg));
+	}
 
-		while (it.hasNext()) {
-			Map.Entry pair = (Map.Entry) it.next();
+	/**
+	 * Sends an already-encrypted frame to all connected clients, on this node
+	 * and every other node in the cluster.
+	 * 
+	 * @param frame Frame that will be sent.
+	 */
+	public static void sendGlobally(Frame frame) {
+		deliverGlobally(frame);
+		
+		ClusterNode node = cluster;
+		if (node != null) {
+			node.publishGlobal(frame);
+		}
+	}
+	
+	/**
+	 * Sends an already-encrypted frame to the clients connected to this node.
+	 * 
+	 * @param frame Frame that will be sent.
+	 */
+	static void deliverGlobally(Frame frame) {
+		long started = System.nanoTime();
+		frame.share(keys.global());
+		history.record(frame);
+		for (ClientInstance client : clients.clients()) {
 			try {
-				ClientInstance client = (ClientInstance) pair.getValue();
-				client.writeOut(msg);
+				client.writeFrame(frame);
 			} catch (IOException e) {
 				LOGGER.log(Level.INFO, "Tried sending message to unreachable socket. Client is probably disconnected, removing from list...");
-				clients.remove((String) pair.getKey());
+				clients.remove(client);
 			}
 		}
+		history.sent(frame);
+		ServerMetrics.broadcast(started);
+		
+		// Only queues the entry; the journal writes it on its own thread.
+		MessageJournal log = journal;
+		if (log != null) {
+			log.append(frame.getType(), "", "", frame.getText());
+		}
 	}
 	
 	/**
@@ -113,78 +349,329 @@ public class ServerApplication {
 	 * @param username Which user to send the message to.
 	 * @throws java.io.IOException
 	 */
-	public synchronized static void sendToClient(String msg, String username) throws IOException {
-		// Check if desired user exists before trying to send.
-		if (!ServerApplication.clients.containsKey(username)) {
+	public static void sendToClient(String msg, String username) throws IOException {
+		sendToClient(Frame.of(msg), username, "");
+	}
+	
+	/**
+	 * Sends an already-encrypted frame to a specific client.
+	 * 
+	 * @param frame Frame that will be sent.
+	 * @param username Which user to send the frame to.
+	 * @param sender Who sent it, for the journal; "" for server messages.
+	 * @throws java.io.IOException
+	 */
+	public static void sendToClient(Frame frame, String username, String sender) throws IOException {
+		// Send to desired client, here or on whichever node it's on.
+		ClientInstance client = clients.get(username);
+		ClusterNode node = cluster;
+		if (client == null && (node == null || node.locate(username) == null)) {
 			throw new NoSuchElementException("The username " + username + " does not exist.");
 		}
-
-		// Send to desired client.
-		clients.get(username).writeOut(msg);
+		
+		// Recorded first, so a recipient logging in meanwhile gets it one way or the other.
+		recordPrivate(frame, username, sender);
+		try {
+			if (client != null) {
+				client.writeFrame(frame);
+			} else if (!node.publishPrivate(frame, sender, username)) {
+				throw new NoSuchElementException("The username " + username + " does not exist.");
+			}
+		} finally {
+			history.sent(frame);
+		}
 	}
 	
 	/**
-	 * Removes a client from the server.
+	 * Sends a private message relayed by another node to a client on this one.
+	 * Messages for users that have left are dropped.
 	 * 
-	 * @param username Client to remove.
+	 * @param frame Frame that will be sent.
+	 * @param username Which user to send the frame to.
+	 * @param sender Who sent it; "" for server messages.
+	 * @throws java.io.IOException
 	 */
-	public synchronized static void removeClient(String username) {
-		// Check if client exists first
+	static void deliverToClient(Frame frame, String username, String sender) throws IOException {
 		ClientInstance client = clients.get(username);
 		if (client == null) {
-			throw new NoSuchElementException("Username does not exist on the server.");
+			LOGGER.log(Level.INFO, "Dropped relayed message for {0}, who is no longer here.", username);
+			return;
+		}
+		
+		recordPrivate(frame, username, sender);
+		try {
+			client.writeFrame(frame);
+		} finally {
+			history.sent(frame);
+		}
+	}
+	
+	/**
+	 * Keeps a private message in the history and the journal.
+	 */
+	private static void recordPrivate(Frame frame, String username, String sender) {
+		history.record(frame, sender, username);
+		
+		MessageJournal log = journal;
+		if (log != null) {
+			log.append(frame.getType(), sender, username, frame.getText());
+		}
+	}
+	
+	/**
+	 * Sends an already-encrypted frame to every member of a room, on this node
+	 * and every other node in the cluster.
+	 * 
+	 * @param frame Frame that will be sent.
+	 * @param room Room name.
+	 * @param sender Who sent it, for the journal; "" for server messages.
+	 */
+	public static void sendToRoom(Frame frame, String room, String sender) {
+		deliverToRoom(frame, room, sender);
+		
+		ClusterNode node = cluster;
+		if (node != null) {
+			node.publishRoom(frame, room, sender);
+		}
+	}
+	
+	/**
+	 * Sends an already-encrypted frame to the members of a room connected to
+	 * this node. Only the room's members are visited, however many clients are
+	 * connected.
+	 * 
+	 * @param frame Frame that will be sent.
+	 * @param room Room name.
+	 * @param sender Who sent it, for the journal; "" for server messages.
+	 */
+	static void deliverToRoom(Frame frame, String room, String sender) {
+		frame.share(keys.room(room));
+		for (ClientInstance client : rooms.members(room)) {
+			try {
+				client.writeFrame(frame);
+			} catch (IOException e) {
+				LOGGER.log(Level.INFO, "Tried sending message to unreachable socket. Client is probably disconnected, removing from list...");
+				clients.remove(client);
+				leaveRooms(client);
+			}
+		}
+		
+		MessageJournal log = journal;
+		if (log != null) {
+			log.append(frame.getType(), sender, "#" + room, frame.getText());
+		}
+	}
+	
+	/**
+	 * Adds a client to a room and announces it to the room.
+	 * 
+	 * @param client Client joining.
+	 * @param room Room name, without its leading '#'.
+	 * @throws java.io.IOException
+	 */
+	public static void joinRoom(ClientInstance client, String room) throws IOException {
+		if (client.rooms.size() >= MAX_ROOMS) {
+			client.writeFrame(Frame.error("You can't be in more than " + MAX_ROOMS + " rooms."));
+			return;
+		}
+		
+		if (!rooms.join(room, client)) {
+			client.writeFrame(Frame.error("You are already in #" + room + "."));
+			return;
+		}
+		keys.joinedRoom(room, client);
+		
+		sendToRoom(Frame.of("*** " + client.username + " joined #" + room + "."), room, "");
+	}
+	
+	/**
+	 * Removes a client from a room and announces it to whoever is left.
+	 * 
+	 * @param client Client leaving.
+	 * @param room Room name, without its leading '#'.
+	 * @throws java.io.IOException
+	 */
+	public static void leaveRoom(ClientInstance client, String room) throws IOException {
+		if (!rooms.leave(room, client)) {
+			client.writeFrame(Frame.error("You are not in #" + room + "."));
+			return;
+		}
+		keys.leftRoom(room);
+		
+		Frame frame = Frame.of("*** " + client.username + " left #" + room + ".");
+		client.writeFrame(frame);
+		sendToRoom(frame, room, "");
+	}
+	
+	/**
+	 * Redeems a session ticket sent by a reconnecting client.
+	 * 
+	 * @param ticket Ticket id.
+	 * @return The session to resume, or null if the ticket is unknown or expired.
+	 */
+	static SessionTickets.Ticket redeemTicket(String ticket) {
+		return tickets.redeem(ticket);
+	}
+	
+	/**
+	 * Keeps a disconnected client's session around for a while, so it can be
+	 * resumed with its ticket.
+	 * 
+	 * @param client Client that disconnected.
+	 */
+	public static void suspendSession(ClientInstance client) {
+		tickets.disconnected(client.username, new ArrayList<>(client.rooms));
+	}
+	
+	/**
+	 * Removes a client from every room it's in, without announcing it.
+	 * 
+	 * @param client Client leaving.
+	 */
+	public static void leaveRooms(ClientInstance client) {
+		List<String> left = new ArrayList<>(client.rooms);
+		rooms.leaveAll(client);
+		for (String room : left) {
+			keys.leftRoom(room);
+		}
+	}
+	
+	/**
+	 * Removes a connection from the server, and its user with it unless the
+	 * username already belongs to another connection, such as the same user
+	 * logging back in before this one was noticed dead.
+	 * 
+	 * @param client Connection to remove.
+	 * @return False if the username belongs to another connection by now.
+	 */
+	public static boolean removeClient(ClientInstance client) {
+		clients.remove(client);
+		String username = client.username;
+		boolean gone = clients.get(username) == null;
+		
+		if (gone) {
+			// Remember where this user left off, so they can catch up later.
+			history.disconnected(username, client.undelivered());
+			
+			// Tell the other nodes, unless someone elsewhere took the name in the meantime.
+			ClusterNode node = cluster;
+			if (node == null || node.locate(username) == null) {
+				presence.left(username);
+				if (node != null) {
+					node.userLeft(username);
+				}
+			}
 		}
 		
 		try {
 			// Tell client to disconnect and close his socket, incase he's still here.
-			client.writeOut("DISCONNECT");
+			client.writeFrame(Frame.disconnect());
 			client.close();
 		} catch (IOException ex) {
 			// Error while telling client to disconnect, he's probably already gone.
 		}
-		
-		// Remove from server's client list.
-		clients.remove(username);
+		return gone;
 	}
 	
 	/**
 	 * Renames a client in the server.
 	 * 
-	 * @param old_username Original username.
+	 * @param client Client to rename.
 	 * @param new_username New username.
 	 * @throws java.io.IOException
 	 */
-	public synchronized static void renameClient(String old_username, String new_username) throws IOException {
-		ClientInstance client = clients.get(old_username);
+	public static void renameClient(ClientInstance client, String new_username) throws IOException {
+		String old_username = client.username;
 		
-		if (ServerApplication.clients.containsKey(new_username)) {
-			client.writeOut("ERROR: This username is already taken.");
+		// Reserve the new username and release the old one in one step.
+		ClusterNode node = cluster;
+		try {
+			if ((node != null && node.locate(new_username) != null) || !clients.rename(client, new_username)) {
+				client.writeFrame(Frame.error("This username is already taken."));
+				return;
+			}
+		} catch (NoSuchElementException ex) {
+			// Client was removed in the meantime; its reader will clean up.
 			return;
 		}
+		if (node != null) {
+			node.userRenamed(old_username, new_username);
+		}
+		presence.renamed(old_username, new_username);
 
-		// Send username update to client
-		client.writeOut("RENAME " + new_username);
-		client.username = new_username;
+		// Private history and the session ticket follow the user.
+		history.renamed(old_username, new_username);
+		tickets.renamed(old_username, new_username);
 
-		// Update username on server's HashMap
-		clients.remove(old_username);
-		clients.put(client.username, client);
+		// Send username update to client
+		client.writeFrame(Frame.rename(new_username));
 		
 		// Announce username change to everyone
-		sendGlobally("*** " + old_username + " changed username to " + new_username);
+		announcer.renamed(old_username, new_username);
 	}
 	
 	/**
-	 * Returns a list of all usernames currently connected.
-	 * @return List of usernames.
+	 * Returns the most recent messages a user can see.
+	 * 
+	 * @param username Who is asking.
+	 * @param count How many messages to return, at most.
+	 * @return Frames, oldest first.
 	 */
-	public synchronized static List<String> getUsernameList() {
-		List<String> list = new ArrayList<>();
-		
-		clients.keySet().forEach((username) -> {
-			list.add(username);
-		});
-		
-		return list;
+	public static List<Frame> getHistory(String username, int count) {
+		return history.recent(username, count);
+	}
+	
+	/**
+	 * Notes that a client was just heard from, so what it was sent until now
+	 * most likely reached it.
+	 * 
+	 * @param client Client that sent something.
+	 */
+	static void heardFrom(ClientInstance client) {
+		client.heard = history.mark() - 1;
+	}
+	
+	/**
+	 * Returns who is online across the cluster.
+	 * @return Presence index.
+	 */
+	public static PresenceIndex getPresence() {
+		return presence;
+	}
+	
+	/**
+	 * Returns the timer for handshake deadlines and heartbeats.
+	 * @return Shared timer wheel.
+	 */
+	static HashedWheelTimer getTimer() {
+		return timer;
+	}
+	
+	/**
+	 * Returns what announces connects, disconnects and renames.
+	 * @return Presence announcer.
+	 */
+	public static PresenceAnnouncer getAnnouncer() {
+		return announcer;
+	}
+	
+	/**
+	 * Disconnects a client that lost its username to a client on another node.
+	 * 
+	 * @param client Client to disconnect.
+	 */
+	static void evict(ClientInstance client) {
+		// Its reader must not announce a departure or park a ticket for the name.
+		client.evicted = true;
+		clients.remove(client);
+		presence.left(client.username);
+		presence.unwatch(client);
+		leaveRooms(client);
+		try {
+			client.writeFrame(Frame.error("This username is already taken."));
+			client.close();
+		} catch (IOException ex) {
+			// Client is gone already.
+		}
 	}
 }
@@ -0,0 +1,432 @@
+package ufpb.srjn.socketchat;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.*;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Runtime instrumentation for the server. Recording is a LongAdder increment
+ * or a striped histogram update, cheap enough to leave on all the time; gauges
+ * such as queue depths are only computed when someone reads them.
+ *
+ * Metrics are published as an MXBean under
+ * "ufpb.srjn.socketchat:type=ServerMetrics" and, if socketchat.metrics.port
+ * is set, as plain text at http://127.0.0.1:PORT/metrics.
+ *
+ * @author samuel
+ */
+public final class ServerMetrics implements ServerMetricsMXBean {
+
+	// Logger handle
+	private static final Logger LOGGER = Logger.getLogger(ServerMetrics.class.getName());
+
+	// Scrape endpoint port; disabled when not set
+	private static final int PORT = Integer.getInteger("socketchat.metrics.port", -1);
+
+	// Handshakes
+	private static final LongAdder handshakes_completed = new LongAdder();
+	private static final LongAdder handshakes_failed = new LongAdder();
+
+	// Commands in, by name, and frames out, by type
+	private static final Map<String, LongAdder> messages_in = new ConcurrentHashMap<>();
+	private static final LongAdder[] messages_out = new LongAdder[MessageType.values().length];
+
+	// Bytes read from clients; bytes written are counted by WriteStats.
+	private static final LongAdder bytes_in = new LongAdder();
+
+	// Frame bodies before and after compression
+	private static final LongAdder compressed_in = new LongAdder();
+	private static final LongAdder compressed_out = new LongAdder();
+
+	// Times a client had to wait for its rate limit
+	private static final LongAdder throttled = new LongAdder();
+
+	// Timings, in microseconds
+	private static final StripedHistogram broadcast_time = new StripedHistogram();
+	private static final StripedHistogram encrypt_time = new StripedHistogram();
+	private static final StripedHistogram decrypt_time = new StripedHistogram();
+	private static final StripedHistogram lock_wait = new StripedHistogram();
+
+	// Depth of a client's outbound queue, sampled every time a frame joins it
+	private static final StripedHistogram queue_depth = new StripedHistogram();
+
+	// Registry whose clients the gauges look at
+	private static volatile ClientRegistry registry;
+
+	static {
+		for (int i = 0; i < messages_out.length; i++) {
+			messages_out[i] = new LongAdder();
+		}
+	}
+
+	private ServerMetrics() {
+	}
+
+	/**
+	 * Publishes the metrics over JMX and, if configured, starts the scrape
+	 * endpoint. Failures are logged and otherwise ignored; metrics are never
+	 * worth keeping the server down.
+	 *
+	 * @param clients Registry of logged-in clients.
+	 */
+	public static void start(ClientRegistry clients) {
+		registry = clients;
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+				new ServerMetrics(), new ObjectName("ufpb.srjn.socketchat:type=ServerMetrics")
+			);
+		} catch (JMException ex) {
+			LOGGER.log(Level.WARNING, "Failed to register metrics MBean: {0}", ex.getMessage());
+		}
+
+		if (PORT < 0) {
+			return;
+		}
+
+		try {
+			// Loopback only: the endpoint has no authentication.
+			HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT), 0);
+			http.createContext("/metrics", (exchange) -> {
+				byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			});
+			http.start();
+			LOGGER.log(Level.INFO, "Metrics available at http://127.0.0.1:{0}/metrics", Integer.toString(PORT));
+		} catch (IOException ex) {
+			LOGGER.log(Level.WARNING, "Failed to start metrics endpoint: {0}", ex.getMessage());
+		}
+	}
+
+	/**
+	 * Counts a finished handshake.
+	 *
+	 * @param success True if the client ended up logged in.
+	 */
+	static void handshake(boolean success) {
+		(success ? handshakes_completed : handshakes_failed).increment();
+	}
+
+	/**
+	 * Counts a command received from a client.
+	 *
+	 * @param command Command name, or "unknown".
+	 */
+	static void messageIn(String command) {
+		LongAdder counter = messages_in.get(command);
+		if (counter == null) {
+			counter = messages_in.computeIfAbsent(command, (name) -> new LongAdder());
+		}
+		counter.increment();
+	}
+
+	/**
+	 * Counts a frame queued for a client.
+	 *
+	 * @param type Frame type.
+	 */
+	static void messageOut(MessageType type) {
+		messages_out[type.ordinal()].increment();
+	}
+
+	/**
+	 * Counts bytes read from a client.
+	 *
+	 * @param count Byte count.
+	 */
+	static void bytesIn(long count) {
+		bytes_in.add(count);
+	}
+
+	/**
+	 * Counts a frame body that was compressed.
+	 *
+	 * @param before Length of the original text.
+	 * @param after Length of the compressed body.
+	 */
+	static void compressed(long before, long after) {
+		compressed_in.add(before);
+		compressed_out.add(after);
+	}
+
+	/**
+	 * Counts a client that went over its rate limit and was paused.
+	 */
+	static void throttled() {
+		throttled.increment();
+	}
+
+	/**
+	 * Records how long a broadcast took.
+	 *
+	 * @param started System.nanoTime() when it began.
+	 */
+	static void broadcast(long started) {
+		broadcast_time.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started));
+	}
+
+	/**
+	 * Records how long encoding a frame took.
+	 *
+	 * @param started System.nanoTime() when it began.
+	 */
+	static void encrypted(long started) {
+		encrypt_time.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started));
+	}
+
+	/**
+	 * Records how long decrypting a frame took.
+	 *
+	 * @param started System.nanoTime() when it began.
+	 */
+	static void decrypted(long started) {
+		decrypt_time.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started));
+	}
+
+	/**
+	 * Records how deep a client's outbound queue was right after a frame was
+	 * added to it.
+	 *
+	 * @param depth Frames in the queue, including the new one.
+	 */
+	static void queued(int depth) {
+		queue_depth.record(depth);
+	}
+
+	/**
+	 * Records how long a thread waited for a client's registry lock.
+	 *
+	 * @param started System.nanoTime() right before asking for the lock.
+	 */
+	static void lockWait(long started) {
+		lock_wait.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started));
+	}
+
+	@Override
+	public int getConnectedClients() {
+		ClientRegistry clients = registry;
+		return clients == null ? 0 : clients.size();
+	}
+
+	@Override
+	public long getHandshakesCompleted() {
+		return handshakes_completed.sum();
+	}
+
+	@Override
+	public long getHandshakesFailed() {
+		return handshakes_failed.sum();
+	}
+
+	@Override
+	public Map<String, Long> getMessagesIn() {
+		Map<String, Long> result = new LinkedHashMap<>();
+		messages_in.forEach((name, counter) -> result.put(name, counter.sum()));
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getMessagesOut() {
+		Map<String, Long> result = new LinkedHashMap<>();
+		for (MessageType type : MessageType.values()) {
+			result.put(type.name().toLowerCase(), messages_out[type.ordinal()].sum());
+		}
+		return result;
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytes_in.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return WriteStats.getBytes();
+	}
+
+	@Override
+	public long getCompressedBytesIn() {
+		return compressed_in.sum();
+	}
+
+	@Override
+	public long getCompressedBytesOut() {
+		return compressed_out.sum();
+	}
+
+	@Override
+	public long getThrottled() {
+		return throttled.sum();
+	}
+
+	@Override
+	public double getFramesPerWrite() {
+		return WriteStats.getFramesPerWrite();
+	}
+
+	@Override
+	public long getQueueDepthTotal() {
+		return queueDepth(false);
+	}
+
+	@Override
+	public long getQueueDepthMax() {
+		return queueDepth(true);
+	}
+
+	@Override
+	public Map<String, Long> getQueueDepth() {
+		return summarize(queue_depth.snapshot());
+	}
+
+	@Override
+	public Map<String, Long> getBroadcastMicros() {
+		return summarize(broadcast_time.snapshot());
+	}
+
+	@Override
+	public Map<String, Long> getEncryptMicros() {
+		return summarize(encrypt_time.snapshot());
+	}
+
+	@Override
+	public Map<String, Long> getDecryptMicros() {
+		return summarize(decrypt_time.snapshot());
+	}
+
+	@Override
+	public Map<String, Long> getRegistryLockWaitMicros() {
+		return summarize(lock_wait.snapshot());
+	}
+
+	/**
+	 * Walks every client's outbound queue.
+	 *
+	 * @param max True for the deepest queue, false for the total.
+	 * @return Queue depth.
+	 */
+	private static long queueDepth(boolean max) {
+		ClientRegistry clients = registry;
+		if (clients == null) {
+			return 0;
+		}
+
+		long result = 0;
+		for (ClientInstance client : clients.clients()) {
+			int depth = client.outbound.size();
+			result = max ? Math.max(result, depth) : result + depth;
+		}
+		return result;
+	}
+
+	/**
+	 * Turns a histogram into the map shown over JMX.
+	 *
+	 * @param histogram Histogram snapshot.
+	 * @return Count, mean and percentiles.
+	 */
+	private static Map<String, Long> summarize(LatencyHistogram histogram) {
+		Map<String, Long> result = new LinkedHashMap<>();
+		result.put("count", histogram.getCount());
+		result.put("mean", Math.round(histogram.getMean()));
+		result.put("p50", histogram.getPercentile(50));
+		result.put("p90", histogram.getPercentile(90));
+		result.put("p99", histogram.getPercentile(99));
+		result.put("max", histogram.getMax());
+		return result;
+	}
+
+	/**
+	 * Renders every metric in the Prometheus text format.
+	 *
+	 * @return Metrics page.
+	 */
+	static String scrape() {
+		ServerMetrics metrics = new ServerMetrics();
+		StringBuilder page = new StringBuilder(2048);
+
+		gauge(page, "socketchat_connected_clients", "Clients currently logged in.", metrics.getConnectedClients());
+
+		page.append("# HELP socketchat_handshakes_total Finished handshakes, by result.\n");
+		page.append("# TYPE socketchat_handshakes_total counter\n");
+		page.append("socketchat_handshakes_total{result=\"ok\"} ").append(metrics.getHandshakesCompleted()).append('\n');
+		page.append("socketchat_handshakes_total{result=\"failed\"} ").append(metrics.getHandshakesFailed()).append('\n');
+
+		page.append("# HELP socketchat_messages_in_total Commands received, by command.\n");
+		page.append("# TYPE socketchat_messages_in_total counter\n");
+		metrics.getMessagesIn().forEach((name, count) ->
+			page.append("socketchat_messages_in_total{command=\"").append(name).append("\"} ").append(count).append('\n'));
+
+		page.append("# HELP socketchat_messages_out_total Frames queued for clients, by type.\n");
+		page.append("# TYPE socketchat_messages_out_total counter\n");
+		metrics.getMessagesOut().forEach((name, count) ->
+			page.append("socketchat_messages_out_total{type=\"").append(name).append("\"} ").append(count).append('\n'));
+
+		counter(page, "socketchat_bytes_in_total", "Bytes read from clients.", metrics.getBytesIn());
+		counter(page, "socketchat_bytes_out_total", "Bytes written to clients.", metrics.getBytesOut());
+		counter(page, "socketchat_compressed_in_total", "Characters of message text that were compressed.", metrics.getCompressedBytesIn());
+		counter(page, "socketchat_compressed_out_total", "Bytes that text was compressed down to.", metrics.getCompressedBytesOut());
+		counter(page, "socketchat_throttled_total", "Times a client was paused for going over its rate limit.", metrics.getThrottled());
+		counter(page, "socketchat_frames_written_total", "Frames written to clients.", WriteStats.getFrames());
+		counter(page, "socketchat_writes_total", "Socket writes carrying those frames.", WriteStats.getWrites());
+
+		gauge(page, "socketchat_queue_depth_total", "Frames waiting in every outbound queue.", metrics.getQueueDepthTotal());
+		gauge(page, "socketchat_queue_depth_max", "Deepest single outbound queue.", metrics.getQueueDepthMax());
+		summary(page, "socketchat_queue_depth", "Depth of a client's outbound queue each time a frame is queued.", queue_depth.snapshot());
+
+		summary(page, "socketchat_broadcast_micros", "Time to hand a broadcast to every client.", broadcast_time.snapshot());
+		summary(page, "socketchat_encrypt_micros", "Time to encrypt and encode a frame.", encrypt_time.snapshot());
+		summary(page, "socketchat_decrypt_micros", "Time to decrypt an incoming frame.", decrypt_time.snapshot());
+		summary(page, "socketchat_registry_lock_wait_micros", "Time spent waiting for a client's registry lock to rename or remove it.", lock_wait.snapshot());
+
+		return page.toString();
+	}
+
+	/**
+	 * Appends a counter to the metrics page.
+	 */
+	private static void counter(StringBuilder page, String name, String help, long value) {
+		page.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		page.append("# TYPE ").append(name).append(" counter\n");
+		page.append(name).append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Appends a gauge to the metrics page.
+	 */
+	private static void gauge(StringBuilder page, String name, String help, long value) {
+		page.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		page.append("# TYPE ").append(name).append(" gauge\n");
+		page.append(name).append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Appends a histogram to the metrics page as a summary with quantiles.
+	 */
+	private static void summary(StringBuilder page, String name, String help, LatencyHistogram histogram) {
+		page.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		page.append("# TYPE ").append(name).append(" summary\n");
+		for (double quantile : new double[]{0.5, 0.9, 0.99, 0.999}) {
+			page.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+				.append(histogram.getPercentile(quantile * 100)).append('\n');
+		}
+		page.append(name).append("_sum ").append(histogram.getSum()).append('\n');
+		page.append(name).append("_count ").append(histogram.getCount()).append('\n');
+	}
+}
@@ -0,0 +1,103 @@
+package ufpb.srjn.socketchat;
+
+import java.util.Map;
+
+/**
+ * JMX view of the server's runtime metrics. Histograms are reported as maps
+ * with count, mean, p50, p90, p99 and max; timings are in microseconds.
+ *
+ * @author samuel
+ */
+public interface ServerMetricsMXBean {
+
+	/**
+	 * @return Clients currently logged in.
+	 */
+	int getConnectedClients();
+
+	/**
+	 * @return Handshakes that ended with the client logged in.
+	 */
+	long getHandshakesCompleted();
+
+	/**
+	 * @return Handshakes that failed, timed out or were turned away.
+	 */
+	long getHandshakesFailed();
+
+	/**
+	 * @return Commands received, by command name.
+	 */
+	Map<String, Long> getMessagesIn();
+
+	/**
+	 * @return Frames queued for clients, by message type.
+	 */
+	Map<String, Long> getMessagesOut();
+
+	/**
+	 * @return Bytes read from clients.
+	 */
+	long getBytesIn();
+
+	/**
+	 * @return Bytes written to clients.
+	 */
+	long getBytesOut();
+
+	/**
+	 * @return Characters of message text that were compressed.
+	 */
+	long getCompressedBytesIn();
+
+	/**
+	 * @return Bytes that text was compressed down to, before encryption.
+	 */
+	long getCompressedBytesOut();
+
+	/**
+	 * @return Times a client was paused for going over its rate limit.
+	 */
+	long getThrottled();
+
+	/**
+	 * @return Average frames carried by each socket write.
+	 */
+	double getFramesPerWrite();
+
+	/**
+	 * @return Frames waiting in every client's outbound queue.
+	 */
+	long getQueueDepthTotal();
+
+	/**
+	 * @return Deepest outbound queue of any single client.
+	 */
+	long getQueueDepthMax();
+
+	/**
+	 * @return Depth of a client's outbound queue each time a frame is queued.
+	 */
+	Map<String, Long> getQueueDepth();
+
+	/**
+	 * @return Time to hand a broadcast to every client.
+	 */
+	Map<String, Long> getBroadcastMicros();
+
+	/**
+	 * @return Time to encrypt and encode a frame.
+	 */
+	Map<String, Long> getEncryptMicros();
+
+	/**
+	 * @return Time to decrypt an incoming frame.
+	 */
+	Map<String, Long> getDecryptMicros();
+
+	/**
+	 * @return Time spent waiting for a client's registry lock to rename or
+	 * remove it.
+	 */
+	Map<String, Long> getRegistryLockWaitMicros();
+}
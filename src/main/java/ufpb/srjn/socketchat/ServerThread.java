@@ -1,9 +1,7 @@
 package ufpb.srjn.socketchat;
 
 import java.io.*;
-import java.time.LocalDateTime;
-import java.util.Arrays;
-import java.util.NoSuchElementException;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.*;
 
 /**
@@ -18,9 +16,21 @@ public class ServerThread implements Runnable {
 	// Logger handle
 	private static final Logger LOGGER = Logger.getLogger(ServerThread.class.getName());
 
+	// Command table shared by every connection
+	private static final CommandDispatcher COMMANDS = new CommandDispatcher();
+
+	// Rate limits, with the broadcast budget shared by every connection
+	private static final RateLimiter LIMITS = new RateLimiter();
+
 	// Connected client instance
 	private final ClientInstance client;
 
+	// Reused to tokenize every command this client sends
+	private final CommandLine line = new CommandLine();
+
+	// This client's share of the rate limits
+	private final RateLimiter.Budget budget = LIMITS.budget();
+
 	/**
 	 * Constructor.
 	 * 
@@ -35,108 +45,101 @@ public class ServerThread implements Runnable {
 	 */
 	@Override
 	public void run() {
-		// Announce new connection
-		LOGGER.info("New incoming connection...");
-		ServerApplication.sendGlobally("*** " + client.username + " has connected.");
+		onConnect();
 		
 		// Client-handling loop.
 		try {
 			while (true) {
-				// Read incoming data from client and split by spaces.
 				String incoming = client.readIn();
-				String[] words = incoming.split(" ");
-
-				// Switch based on which command the client sent.
-				switch (words[0]) {
-					case "bye":
-						// Malformed command.
-						if (words.length != 1) {
-							client.writeOut("ERROR: bye does not take any extra parameters.");
-							break;
-						}
-						
-						// Client wants to disconnect.
-						client.writeOut("DISCONNECT");
-						break;
-					case "send":
-						// Client wants to send a message.
-						try {
-							// Message format: <IP>:<PORT>/~<username> : <message> <hour-date>
-							if ("-all".equals(words[1])) {
-								// Send to all users.
-								String message_contents = String.join(" ", Arrays.copyOfRange(words, 2, words.length));
-								String message = client.socket.getInetAddress() + ":" + client.socket.getPort() + "/~" + client.username + ": " + message_contents + " " + LocalDateTime.now();
+				pace(incoming);
+				handle(incoming);
+			}
+		} catch (IOException ex) {
+			LOGGER.log(Level.WARNING, "I/O exception while listening for incoming messages from client: {0}", ex.getMessage());
+			onDisconnect();
+		} catch (RuntimeException ex) {
+			// A bug in one command mustn't leave the client registered forever.
+			LOGGER.log(Level.SEVERE, "Unexpected error while handling client, disconnecting: {0}", ex.toString());
+			client.abort();
+			onDisconnect();
+		}
+	}
 
-								ServerApplication.sendGlobally(message);
-							} else if ("-user".equals(words[1])) {
-								// Send to a specific user.
-								String desired_user = words[2];
-								
-								// Make sure client is not sending himself a message.
-								if (client.username.equals(desired_user)) {
-									client.writeOut("ERROR: You can't send a private message to yourself.");
-									break;
-								}
+	/**
+	 * Announces a newly connected client to everyone.
+	 */
+	public void onConnect() {
+		LOGGER.info("New incoming connection...");
+		ServerApplication.getAnnouncer().connected(client.username);
+	}
 
-								String message_contents = String.join(" ", Arrays.copyOfRange(words, 3, words.length));
-								String message = client.socket.getInetAddress() + ":" + client.socket.getPort() + "/~" + client.username + " to " + desired_user + " (private): " + message_contents + " " + LocalDateTime.now();
+	/**
+	 * Removes the client from the server and announces its departure.
+	 */
+	public void onDisconnect() {
+		// A resumed session took over; it's the same user, so say nothing. An
+		// evicted client was already cleaned up, and its name is someone else's now.
+		if (client.replaced || client.evicted) {
+			return;
+		}
+		
+		// Only this connection goes if the user is already back on another one.
+		boolean gone = ServerApplication.removeClient(client);
+		if (gone) {
+			ServerApplication.suspendSession(client);
+		}
+		ServerApplication.leaveRooms(client);
+		ServerApplication.getPresence().unwatch(client);
+		if (gone) {
+			ServerApplication.getAnnouncer().disconnected(client.username);
+		}
+	}
 
-								try {
-									// Send to desired client...
-									ServerApplication.sendToClient(message, desired_user);
-									
-									// ...and echo back to the client that sent it
-									client.writeOut(message);
-								} catch (NoSuchElementException ex) {
-									client.writeOut("ERROR: The username " + desired_user + " does not exist.");
-								}
-							} else {
-								// Second parameter was neither -all nor -user, throw exception.
-								throw new Exception("Missing or wrong parameters for send command.");
-							}
-						} catch (ArrayIndexOutOfBoundsException ex) {
-							// Some parameters were missing from the command.
-							client.writeOut("ERROR: Malformed command.");
-						} catch (Exception ex) {
-							client.writeOut("ERROR: " + ex.getMessage());
-						}
-						break;
-					case "list":
-						// Malformed command.
-						if (words.length != 1) {
-							client.writeOut("ERROR: list does not take any extra parameters.");
-							break;
-						}
-						
-						// Client asked for a list of connected clients.
-						String message = "*** Connected clients: ";
-						for (String username : ServerApplication.getUsernameList()) {
-							message += username + " ";
-						}
-						client.writeOut(message);
+	/**
+	 * Blocks until the client may send a message. The socket isn't read in the
+	 * meantime, so a client over its budget is held back by TCP.
+	 *
+	 * @param incoming Decrypted incoming message.
+	 */
+	private void pace(String incoming) {
+		long wait = admit(incoming);
+		if (wait > 0) {
+			ServerMetrics.throttled();
+		}
+		while (wait > 0) {
+			LockSupport.parkNanos(wait);
+			wait = admit(incoming);
+		}
+	}
 
-						break;
-					case "rename":
-						// Malformed command.
-						if (words.length != 2) {
-							client.writeOut("ERROR: Malformed command. Proper syntax is: rename <new name>");
-							break;
-						}
+	/**
+	 * Charges a message to the client's rate limits.
+	 *
+	 * @param incoming Decrypted incoming message.
+	 * @return 0 if it may be handled now, otherwise how many nanoseconds to
+	 * wait before asking again.
+	 */
+	public long admit(String incoming) {
+		// Heartbeat answers don't count against the budget.
+		if (incoming.equals(MessageType.PONG.getPrefix())) {
+			return 0;
+		}
+		return LIMITS.acquire(budget, incoming);
+	}
 
-						// Client requested a rename.
-						String new_username = words[1];
-						String old_username = client.username;
-						ServerApplication.renameClient(old_username, new_username);					
-						break;
-					default:
-						// Client sent some other command.
-						client.writeOut("ERROR: Unknown command.");
-				}
-			}
-		} catch (IOException ex) {
-			LOGGER.log(Level.WARNING, "I/O exception while listening for incoming messages from client: {0}", ex.getMessage());
-			ServerApplication.removeClient(client.username);
-			ServerApplication.sendGlobally("*** " + client.username + " has disconnected from the server.");
+	/**
+	 * Handles a single decrypted message sent by the client.
+	 * 
+	 * @param incoming Decrypted incoming message.
+	 * @throws IOException If writing back to the client fails.
+	 */
+	public void handle(String incoming) throws IOException {
+		ServerApplication.heardFrom(client);
+		
+		// Answers to heartbeats only matter for having arrived.
+		if (incoming.equals(MessageType.PONG.getPrefix())) {
+			return;
 		}
+		COMMANDS.dispatch(client, line.parse(incoming));
 	}
 }
@@ -0,0 +1,178 @@
+package ufpb.srjn.socketchat;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Keys agreed on by one client and the server during the handshake. Each side
+ * sends an ephemeral X25519 public key; the shared secret is mixed with the
+ * password-derived key, so nobody without the password can complete the
+ * agreement in the middle, and split into one AES-GCM key per direction.
+ *
+ * Frames are sealed in the order they're written and opened in the order
+ * they're read, so each direction's nonce is simply a counter that neither side
+ * has to send. A frame sealed with these keys that's replayed, dropped or
+ * reordered fails to open. Broadcasts sealed under a group key don't get that
+ * protection (see GroupKey).
+ *
+ * The JDK's GCM implementation runs on AES-NI and carry-less multiply where the
+ * CPU has them, and needs no padding, so sealing never copies the message.
+ *
+ * @author samuel
+ */
+final class SessionKeys {
+
+	// GCM authentication tag size
+	static final int TAG_BYTES = 16;
+
+	// Encryption state per direction; each side only ever seals or opens one
+	// frame at a time in each direction.
+	private final SecretKeySpec send_key;
+	private final SecretKeySpec receive_key;
+	private final Cipher encryptor;
+	private final Cipher decryptor;
+	private long send_counter;
+	private long receive_counter;
+
+	// Reused nonce buffers
+	private final byte[] send_nonce = new byte[12];
+	private final byte[] receive_nonce = new byte[12];
+
+	/**
+	 * Constructor.
+	 *
+	 * @param send_key Key for frames this side writes.
+	 * @param receive_key Key for frames this side reads.
+	 * @throws GeneralSecurityException If GCM is unavailable.
+	 */
+	private SessionKeys(SecretKeySpec send_key, SecretKeySpec receive_key) throws GeneralSecurityException {
+		this.send_key = send_key;
+		this.receive_key = receive_key;
+		this.encryptor = Cipher.getInstance("AES/GCM/NoPadding");
+		this.decryptor = Cipher.getInstance("AES/GCM/NoPadding");
+	}
+
+	/**
+	 * Generates a fresh key pair for one handshake.
+	 *
+	 * @return X25519 key pair.
+	 * @throws GeneralSecurityException If X25519 is unavailable.
+	 */
+	static KeyPair generate() throws GeneralSecurityException {
+		return KeyPairGenerator.getInstance("X25519").generateKeyPair();
+	}
+
+	/**
+	 * Encodes a public key for the handshake.
+	 *
+	 * @param key Public key.
+	 * @return Base64 text without spaces.
+	 */
+	static String encode(PublicKey key) {
+		return Base64.getEncoder().encodeToString(key.getEncoded());
+	}
+
+	/**
+	 * Completes the key agreement.
+	 *
+	 * @param mine This side's key pair.
+	 * @param peer The other side's encoded public key.
+	 * @param client True on the client side, which decides the direction of each key.
+	 * @return Keys for the connection.
+	 * @throws GeneralSecurityException If the peer's key is malformed.
+	 */
+	static SessionKeys agree(KeyPair mine, String peer, boolean client) throws GeneralSecurityException {
+		PublicKey peer_key;
+		try {
+			peer_key = KeyFactory.getInstance("X25519").generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(peer)));
+		} catch (IllegalArgumentException ex) {
+			throw new GeneralSecurityException("Malformed public key.", ex);
+		}
+
+		KeyAgreement agreement = KeyAgreement.getInstance("X25519");
+		agreement.init(mine.getPrivate());
+		agreement.doPhase(peer_key, true);
+		byte[] shared = agreement.generateSecret();
+
+		// Both sides hash the public keys in the same order: client first.
+		byte[] client_public = client ? mine.getPublic().getEncoded() : peer_key.getEncoded();
+		byte[] server_public = client ? peer_key.getEncoded() : mine.getPublic().getEncoded();
+
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(Authenticator.getKeyBytes(), "HmacSHA256"));
+		mac.update(shared);
+		mac.update(client_public);
+		byte[] master = mac.doFinal(server_public);
+
+		SecretKeySpec to_server = derive(master, "client to server");
+		SecretKeySpec to_client = derive(master, "server to client");
+		return client ? new SessionKeys(to_server, to_client) : new SessionKeys(to_client, to_server);
+	}
+
+	/**
+	 * Derives a 128-bit AES key for one purpose from the master secret.
+	 */
+	private static SecretKeySpec derive(byte[] master, String label) throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(master, "HmacSHA256"));
+		byte[] key = mac.doFinal(label.getBytes(StandardCharsets.US_ASCII));
+		return new SecretKeySpec(Arrays.copyOf(key, 16), "AES");
+	}
+
+	/**
+	 * Seals a frame body into a new array, leaving room for the frame header.
+	 *
+	 * @param body Plain body.
+	 * @param length How many bytes of body to seal, from index 0.
+	 * @param header Bytes to leave free at the start of the array.
+	 * @return Array holding the header space followed by the cipher text and tag.
+	 * @throws GeneralSecurityException If encryption fails.
+	 */
+	synchronized byte[] seal(byte[] body, int length, int header) throws GeneralSecurityException {
+		nonce(send_nonce, send_counter++);
+		encryptor.init(Cipher.ENCRYPT_MODE, send_key, new GCMParameterSpec(TAG_BYTES * 8, send_nonce));
+
+		byte[] result = new byte[header + length + TAG_BYTES];
+		encryptor.doFinal(body, 0, length, result, header);
+		return result;
+	}
+
+	/**
+	 * Opens the next frame read from the peer.
+	 *
+	 * @param src Array holding the cipher text and tag.
+	 * @param offset Where the cipher text starts.
+	 * @param length Length of the cipher text and tag.
+	 * @return Plain body.
+	 * @throws GeneralSecurityException If the frame was tampered with or is out of order.
+	 */
+	synchronized byte[] open(byte[] src, int offset, int length) throws GeneralSecurityException {
+		nonce(receive_nonce, receive_counter++);
+		decryptor.init(Cipher.DECRYPT_MODE, receive_key, new GCMParameterSpec(TAG_BYTES * 8, receive_nonce));
+		return decryptor.doFinal(src, offset, length);
+	}
+
+	/**
+	 * Writes a 96-bit GCM nonce: four zero bytes and a big-endian counter.
+	 *
+	 * @param nonce Nonce buffer.
+	 * @param counter Frame counter.
+	 */
+	static void nonce(byte[] nonce, long counter) {
+		for (int i = 0; i < 8; i++) {
+			nonce[11 - i] = (byte) (counter >>> (8 * i));
+		}
+	}
+}
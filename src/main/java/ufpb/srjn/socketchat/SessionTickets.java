@@ -0,0 +1,161 @@
+package ufpb.srjn.socketchat;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Session tickets issued to logged-in clients, so they can reconnect after a
+ * network blip without going through the whole handshake again. A ticket is a
+ * random 128-bit value that stands for the user's session: who they are and
+ * which rooms they were in. Each user holds at most one ticket and each ticket
+ * works once; resuming hands out a fresh one.
+ *
+ * A ticket belongs to a session, not to a name. When someone else takes the
+ * name, by logging in or renaming to it, the previous holder's ticket is
+ * revoked, so it can't be used to take over the new session.
+ *
+ * A ticket never expires while its session is alive, since the server may not
+ * have noticed the old connection is dead yet. It expires a short while after
+ * the server sees the disconnect.
+ *
+ * Tickets only live in this server's memory, so they don't survive a restart
+ * and can't be used on other nodes of a cluster. Clients fall back to a full
+ * login in both cases.
+ *
+ * @author samuel
+ */
+public class SessionTickets {
+
+	// Configuration
+	private static final long TTL_MILLIS = Long.getLong("socketchat.ticket.ttl", 120000L);
+
+	// How many tickets are issued between sweeps for expired ones
+	private static final int SWEEP_INTERVAL = 1024;
+
+	/**
+	 * A session a client can resume.
+	 */
+	static final class Ticket {
+		final String id;
+		// Current username; follows renames
+		volatile String username;
+		// Rooms the user was in when the session was last seen
+		volatile List<String> rooms = new ArrayList<>();
+		// When the ticket stops working, or Long.MAX_VALUE while the session is alive
+		volatile long expires = Long.MAX_VALUE;
+
+		Ticket(String id, String username) {
+			this.id = id;
+			this.username = username;
+		}
+	}
+
+	// Tickets by id and by username
+	private final Map<String, Ticket> by_id = new ConcurrentHashMap<>();
+	private final Map<String, Ticket> by_username = new ConcurrentHashMap<>();
+
+	// Source of ticket ids
+	private final SecureRandom random = new SecureRandom();
+
+	// Tickets issued since the last sweep
+	private final AtomicInteger issued = new AtomicInteger();
+
+	/**
+	 * Issues a ticket for a user who just logged in, replacing any they had.
+	 *
+	 * @param username User logging in.
+	 * @return Ticket id to send to the client.
+	 */
+	public String issue(String username) {
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		Ticket ticket = new Ticket(HexFormat.of().formatHex(bytes), username);
+
+		by_id.put(ticket.id, ticket);
+		Ticket old = by_username.put(username, ticket);
+		if (old != null) {
+			by_id.remove(old.id);
+		}
+
+		if (issued.incrementAndGet() % SWEEP_INTERVAL == 0) {
+			sweep();
+		}
+		return ticket.id;
+	}
+
+	/**
+	 * Uses up a ticket.
+	 *
+	 * @param id Ticket id sent by the client.
+	 * @return The session it stands for, or null if it's unknown or expired.
+	 */
+	public Ticket redeem(String id) {
+		Ticket ticket = by_id.remove(id);
+		if (ticket == null) {
+			return null;
+		}
+		by_username.remove(ticket.username, ticket);
+		return ticket.expires > System.currentTimeMillis() ? ticket : null;
+	}
+
+	/**
+	 * Starts the clock on a user's ticket once their connection is gone.
+	 *
+	 * @param username User who disconnected.
+	 * @param rooms Rooms they were in, to rejoin on resume.
+	 */
+	public void disconnected(String username, List<String> rooms) {
+		Ticket ticket = by_username.get(username);
+		if (ticket != null) {
+			ticket.rooms = rooms;
+			ticket.expires = System.currentTimeMillis() + TTL_MILLIS;
+		}
+	}
+
+	/**
+	 * Revokes the ticket of whoever held a username before, now that a new
+	 * session, not a resumed one, has taken it.
+	 *
+	 * @param username Username just registered.
+	 */
+	public void claimed(String username) {
+		Ticket ticket = by_username.remove(username);
+		if (ticket != null) {
+			by_id.remove(ticket.id);
+		}
+	}
+
+	/**
+	 * Moves a user's ticket to their new username, revoking the ticket of
+	 * whoever held that name before.
+	 *
+	 * @param old_username Original username.
+	 * @param new_username New username.
+	 */
+	public void renamed(String old_username, String new_username) {
+		claimed(new_username);
+		Ticket ticket = by_username.remove(old_username);
+		if (ticket != null) {
+			ticket.username = new_username;
+			by_username.put(new_username, ticket);
+		}
+	}
+
+	/**
+	 * Drops every expired ticket.
+	 */
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		for (Ticket ticket : by_id.values()) {
+			if (ticket.expires <= now) {
+				by_id.remove(ticket.id);
+				by_username.remove(ticket.username, ticket);
+			}
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package ufpb.srjn.socketchat;
+
+/**
+ * A LatencyHistogram split into stripes, so threads recording at the same time
+ * mostly update different counters. Each thread always records into the same
+ * stripe; reads merge every stripe into a snapshot.
+ *
+ * @author samuel
+ */
+public class StripedHistogram {
+
+	// Stripe count, a power of two no larger than 16
+	private static final int STRIPES = Math.min(16, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)));
+
+	private final LatencyHistogram[] stripes = new LatencyHistogram[STRIPES];
+
+	/**
+	 * Constructor.
+	 */
+	public StripedHistogram() {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Records a value into the calling thread's stripe.
+	 *
+	 * @param value Value to record.
+	 */
+	public void record(long value) {
+		stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)].record(value);
+	}
+
+	/**
+	 * Merges every stripe into a new histogram. Values recorded while the
+	 * snapshot is taken may or may not be included.
+	 *
+	 * @return Merged copy.
+	 */
+	public LatencyHistogram snapshot() {
+		LatencyHistogram merged = new LatencyHistogram();
+		for (LatencyHistogram stripe : stripes) {
+			merged.add(stripe);
+		}
+		return merged;
+	}
+}
@@ -0,0 +1,56 @@
+package ufpb.srjn.socketchat;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * Millisecond-resolution clock for message timestamps. Formatting a
+ * LocalDateTime for every message is one of the most expensive parts of
+ * relaying it, so the formatted text is cached and only rebuilt when the
+ * millisecond changes; during a burst, every message sent in the same
+ * millisecond shares one string.
+ *
+ * @author samuel
+ */
+public final class TimestampClock {
+
+	/**
+	 * A formatted timestamp and the millisecond it belongs to.
+	 */
+	private static final class Tick {
+		final long millis;
+		final String text;
+
+		Tick(long millis, String text) {
+			this.millis = millis;
+			this.text = text;
+		}
+	}
+
+	// Time zone used for formatting, looked up once
+	private static final ZoneId ZONE = ZoneId.systemDefault();
+
+	// Last formatted timestamp
+	private static volatile Tick last = new Tick(Long.MIN_VALUE, "");
+
+	private TimestampClock() {
+	}
+
+	/**
+	 * Returns the current local date and time, formatted like
+	 * LocalDateTime.toString() with millisecond precision.
+	 *
+	 * @return Formatted timestamp.
+	 */
+	public static String now() {
+		long millis = System.currentTimeMillis();
+		Tick tick = last;
+		if (tick.millis != millis) {
+			// Racing threads may both format the same millisecond; either result is fine.
+			tick = new Tick(millis, LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZONE).toString());
+			last = tick;
+		}
+		return tick.text;
+	}
+}
@@ -0,0 +1,65 @@
+package ufpb.srjn.socketchat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket kept in a single number, so it can be checked on every
+ * message without a lock. Instead of counting tokens, the bucket stores the
+ * time at which it would be back to empty if nothing else were taken: each
+ * token taken pushes that time one interval further, and a token may be taken
+ * as long as the time is no more than a full burst ahead of now. Refilling is
+ * just time passing, so there's nothing to update in between.
+ *
+ * @author samuel
+ */
+public final class TokenBucket {
+
+	// Time one token takes to refill, and how far ahead a full burst reaches
+	private final long interval;
+	private final long tolerance;
+
+	// When every token taken so far will have refilled
+	private final AtomicLong refilled = new AtomicLong(System.nanoTime());
+
+	/**
+	 * Constructor. The bucket starts full.
+	 *
+	 * @param per_second Tokens refilled per second.
+	 * @param burst Tokens that can be taken at once after a quiet spell.
+	 */
+	public TokenBucket(double per_second, int burst) {
+		this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / per_second));
+		this.tolerance = interval * (Math.max(1, burst) - 1);
+	}
+
+	/**
+	 * Takes a token if there is one.
+	 *
+	 * @return 0 if a token was taken, otherwise how many nanoseconds until one
+	 * will be available.
+	 */
+	public long acquire() {
+		while (true) {
+			long now = System.nanoTime();
+			long current = refilled.get();
+			long from = current - now > 0 ? current : now;
+
+			long wait = from - now - tolerance;
+			if (wait > 0) {
+				return wait;
+			}
+			if (refilled.compareAndSet(current, from + interval)) {
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Puts back a token taken by acquire(), when what it was taken for didn't
+	 * happen after all.
+	 */
+	public void refund() {
+		refilled.addAndGet(-interval);
+	}
+}
@@ -0,0 +1,76 @@
+package ufpb.srjn.socketchat;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide counters for outbound writes, used to tune write coalescing.
+ * Every flush of a blocking connection and every gathering write of an NIO
+ * connection counts as one write; the ratio of frames to writes shows how
+ * well messages are being batched.
+ *
+ * @author samuel
+ */
+public final class WriteStats {
+
+	// Counters; LongAdder so writers on different threads don't contend.
+	private static final LongAdder frames = new LongAdder();
+	private static final LongAdder writes = new LongAdder();
+	private static final LongAdder bytes = new LongAdder();
+
+	private WriteStats() {
+	}
+
+	/**
+	 * Records one write to a socket.
+	 *
+	 * @param frame_count How many frames were completed by this write.
+	 * @param byte_count How many bytes were written.
+	 */
+	static void record(int frame_count, long byte_count) {
+		frames.add(frame_count);
+		writes.increment();
+		bytes.add(byte_count);
+	}
+
+	/**
+	 * Returns how many frames have been written.
+	 * @return Frame count.
+	 */
+	public static long getFrames() {
+		return frames.sum();
+	}
+
+	/**
+	 * Returns how many socket writes have been made.
+	 * @return Write count.
+	 */
+	public static long getWrites() {
+		return writes.sum();
+	}
+
+	/**
+	 * Returns how many bytes have been written.
+	 * @return Byte count.
+	 */
+	public static long getBytes() {
+		return bytes.sum();
+	}
+
+	/**
+	 * Returns the average number of frames carried by each write.
+	 * @return Frames per write, or 0 if nothing was written yet.
+	 */
+	public static double getFramesPerWrite() {
+		long write_count = writes.sum();
+		return write_count == 0 ? 0 : (double) frames.sum() / write_count;
+	}
+
+	/**
+	 * Returns a one-line summary of the counters, for logging.
+	 * @return Summary.
+	 */
+	public static String summary() {
+		return String.format("%d frames in %d writes (%.2f frames/write, %d bytes)",
+			getFrames(), getWrites(), getFramesPerWrite(), getBytes());
+	}
+}
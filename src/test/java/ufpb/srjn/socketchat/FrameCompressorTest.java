@@ -0,0 +1,104 @@
+package ufpb.srjn.socketchat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for FrameCompressor and for Frame.decodeV2, which undoes it.
+ *
+ * @author samuel
+ */
+public class FrameCompressorTest {
+
+	private static final String LONG_TEXT = "would you like to know what they think about this? ".repeat(20);
+
+	@Test
+	public void leavesShortTextAlone() {
+		assertNull(FrameCompressor.compress("x".repeat(FrameCompressor.THRESHOLD - 1)));
+	}
+
+	@Test
+	public void roundTripsLongText() throws IOException {
+		byte[] compressed = FrameCompressor.compress(LONG_TEXT);
+		assertNotNull(compressed);
+		assertTrue(compressed.length < LONG_TEXT.length());
+		assertEquals(LONG_TEXT, FrameCompressor.decompress(compressed));
+	}
+
+	@Test
+	public void roundTripsMultibyteText() throws IOException {
+		String text = "olá, você já viu isso? ✓ ".repeat(40);
+		assertEquals(text, FrameCompressor.decompress(FrameCompressor.compress(text)));
+	}
+
+	@Test
+	public void rejectsLengthOverTheFrameLimit() {
+		// A few bytes claiming to inflate past the frame limit are refused before anything is allocated.
+		byte[] bomb = new byte[8];
+		Protocol.writeVarint(Protocol.MAX_FRAME + 1, bomb, 0);
+		IOException ex = assertThrows(IOException.class, () -> FrameCompressor.decompress(bomb));
+		assertTrue(ex.getMessage().startsWith("Invalid uncompressed length"));
+	}
+
+	@Test
+	public void rejectsTruncatedLength() {
+		assertThrows(IOException.class, () -> FrameCompressor.decompress(new byte[0]));
+		assertThrows(IOException.class, () -> FrameCompressor.decompress(new byte[]{(byte) 0x80}));
+	}
+
+	@Test
+	public void rejectsWrongLength() {
+		byte[] compressed = FrameCompressor.compress(LONG_TEXT);
+		int header = Protocol.varintSize(LONG_TEXT.length());
+
+		// Same deflated text, but claiming to be one byte longer than it is.
+		byte[] lying = new byte[compressed.length - header + Protocol.varintSize(LONG_TEXT.length() + 1)];
+		int offset = Protocol.writeVarint(LONG_TEXT.length() + 1, lying, 0);
+		System.arraycopy(compressed, header, lying, offset, compressed.length - header);
+		assertThrows(IOException.class, () -> FrameCompressor.decompress(lying));
+
+		// Cut short: the stream never finishes.
+		byte[] cut = Arrays.copyOf(compressed, compressed.length - 4);
+		assertThrows(IOException.class, () -> FrameCompressor.decompress(cut));
+	}
+
+	@Test
+	public void rejectsGarbage() {
+		byte[] garbage = new byte[64];
+		Arrays.fill(garbage, (byte) 0x5a);
+		garbage[0] = 100;
+		assertThrows(IOException.class, () -> FrameCompressor.decompress(garbage));
+	}
+
+	@Test
+	public void decodesPlainAndCompressedBodies() throws IOException {
+		Frame plain = Frame.decodeV2(MessageType.ERROR.getCode(), "nope".getBytes(StandardCharsets.UTF_8));
+		assertEquals(MessageType.ERROR, plain.getType());
+		assertEquals("nope", plain.getText());
+
+		// The group bit only says which key sealed the frame.
+		Frame group = Frame.decodeV2(MessageType.TEXT.getCode() | Protocol.GROUP, "hi".getBytes(StandardCharsets.UTF_8));
+		assertEquals(MessageType.TEXT, group.getType());
+		assertEquals("hi", group.getText());
+
+		Frame compressed = Frame.decodeV2(MessageType.TEXT.getCode() | Protocol.COMPRESSED, FrameCompressor.compress(LONG_TEXT));
+		assertEquals(MessageType.TEXT, compressed.getType());
+		assertEquals(LONG_TEXT, compressed.getText());
+	}
+
+	@Test
+	public void decodeRejectsUnknownTypes() {
+		assertThrows(IOException.class, () -> Frame.decodeV2(0x3f, new byte[0]));
+	}
+
+	@Test
+	public void decodeRejectsBadCompressedBodies() {
+		byte[] bomb = new byte[8];
+		Protocol.writeVarint(Protocol.MAX_FRAME + 1, bomb, 0);
+		assertThrows(IOException.class, () -> Frame.decodeV2(MessageType.TEXT.getCode() | Protocol.COMPRESSED, bomb));
+	}
+}
@@ -0,0 +1,84 @@
+package ufpb.srjn.socketchat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for HashedWheelTimer. The wheel here turns once every 80 ms (8 buckets
+ * of 10 ms), so longer delays need several rounds.
+ *
+ * @author samuel
+ */
+public class HashedWheelTimerTest {
+
+	private final HashedWheelTimer timer = new HashedWheelTimer(10, 8);
+
+	@Test
+	public void firesAfterSeveralRounds() throws InterruptedException {
+		long started = System.nanoTime();
+		AtomicLong fired = new AtomicLong();
+		CountDownLatch done = new CountDownLatch(1);
+
+		HashedWheelTimer.Timeout timeout = timer.schedule(() -> {
+			fired.set(System.nanoTime());
+			done.countDown();
+		}, 250);
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(fired.get() - started) >= 250, "fired a round early");
+		assertTrue(timeout.isExpired());
+		assertFalse(timeout.cancel());
+	}
+
+	@Test
+	public void sameBucketDifferentRounds() throws InterruptedException {
+		// 30 ms and 110 ms land in the same bucket, one turn apart.
+		long started = System.nanoTime();
+		AtomicLong near = new AtomicLong();
+		AtomicLong far = new AtomicLong();
+		CountDownLatch done = new CountDownLatch(2);
+
+		timer.schedule(() -> {
+			far.set(System.nanoTime());
+			done.countDown();
+		}, 110);
+		timer.schedule(() -> {
+			near.set(System.nanoTime());
+			done.countDown();
+		}, 30);
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(near.get() - started) >= 30);
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(far.get() - started) >= 110);
+		assertTrue(near.get() < far.get());
+	}
+
+	@Test
+	public void cancelledTimeoutNeverRuns() throws InterruptedException {
+		AtomicBoolean ran = new AtomicBoolean();
+		HashedWheelTimer.Timeout timeout = timer.schedule(() -> ran.set(true), 100);
+
+		assertTrue(timeout.cancel());
+		assertFalse(timeout.cancel());
+
+		// Something scheduled later still fires, so the wheel has passed the cancelled one.
+		CountDownLatch later = new CountDownLatch(1);
+		timer.schedule(later::countDown, 200);
+		assertTrue(later.await(5, TimeUnit.SECONDS));
+
+		assertFalse(ran.get());
+		assertFalse(timeout.isExpired());
+	}
+
+	@Test
+	public void zeroDelayRunsOnNextTick() throws InterruptedException {
+		CountDownLatch done = new CountDownLatch(1);
+		timer.schedule(done::countDown, 0);
+		assertTrue(done.await(1, TimeUnit.SECONDS));
+	}
+}
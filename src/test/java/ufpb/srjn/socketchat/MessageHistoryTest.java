@@ -0,0 +1,66 @@
+package ufpb.srjn.socketchat;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for MessageHistory, mostly about who gets to see private messages
+ * once a username changes hands.
+ *
+ * @author samuel
+ */
+public class MessageHistoryTest {
+
+	private final MessageHistory history = new MessageHistory();
+
+	@Test
+	public void resumedSessionGetsWhatItMissed() {
+		history.disconnected("alice", history.mark());
+		history.record(Frame.of("*** hello everyone"));
+		history.record(Frame.of("[bob -> alice] psst"), "bob", "alice");
+
+		List<Frame> missed = history.missed("alice", history.mark(), 10, true);
+		assertEquals(List.of("*** hello everyone", "[bob -> alice] psst"), texts(missed));
+	}
+
+	@Test
+	public void newSessionOnlyGetsBroadcasts() {
+		history.record(Frame.of("[bob -> alice] before"), "bob", "alice");
+		history.disconnected("alice", history.mark());
+		history.record(Frame.of("*** hello everyone"));
+		history.record(Frame.of("[bob -> alice] psst"), "bob", "alice");
+
+		// Someone else logs in as alice.
+		history.claimed("alice");
+		List<Frame> missed = history.missed("alice", history.mark(), 10, false);
+		assertEquals(List.of("*** hello everyone"), texts(missed));
+		assertEquals(List.of("*** hello everyone"), texts(history.recent("alice", 10)));
+	}
+
+	@Test
+	public void renameOntoAnOldNameStartsClean() {
+		history.record(Frame.of("[bob -> alice] psst"), "bob", "alice");
+		history.disconnected("alice", history.mark());
+		history.record(Frame.of("[bob -> carol] hi"), "bob", "carol");
+
+		history.renamed("carol", "alice");
+		assertEquals(List.of("[bob -> carol] hi"), texts(history.recent("alice", 10)));
+		assertEquals(List.of(), texts(history.recent("carol", 10)));
+	}
+
+	@Test
+	public void renameToAFreshNameStartsClean() {
+		history.record(Frame.of("[bob -> alice] psst"), "bob", "alice");
+		history.disconnected("alice", history.mark());
+
+		history.renamed("carol", "alice");
+		assertEquals(List.of(), texts(history.recent("alice", 10)));
+	}
+
+	private static List<String> texts(List<Frame> frames) {
+		return frames.stream().map(Frame::getText).toList();
+	}
+}
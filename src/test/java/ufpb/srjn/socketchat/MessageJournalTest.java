@@ -0,0 +1,213 @@
+package ufpb.srjn.socketchat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for MessageJournal. The build runs them with 4 KB segments and a 16 KB
+ * retention limit, so a few hundred entries roll and retire segments.
+ *
+ * @author samuel
+ */
+public class MessageJournalTest {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void recoversEntriesAfterReopening() throws IOException {
+		try (MessageJournal journal = new MessageJournal(directory)) {
+			assertEquals(-1, journal.getLastSequence());
+			appendAll(journal, 0, 10);
+		}
+
+		try (MessageJournal journal = new MessageJournal(directory)) {
+			assertEquals(9, journal.getLastSequence());
+			assertContiguous(journal.read(0, 100), 0, 9);
+
+			MessageJournal.Entry first = journal.read(0, 1).get(0);
+			assertEquals(MessageType.TEXT, first.getType());
+			assertEquals("alice", first.getSender());
+			assertEquals("", first.getRecipient());
+
+			// New entries carry on from the recovered sequence.
+			appendAll(journal, 10, 1);
+			assertContiguous(journal.tail(3), 8, 10);
+		}
+	}
+
+	@Test
+	public void truncatesPartialRecordAtTheTail() throws IOException {
+		try (MessageJournal journal = new MessageJournal(directory)) {
+			appendAll(journal, 0, 5);
+		}
+		Path active = lastSegment();
+		long size = Files.size(active);
+
+		// A crash halfway through a write: a header promising more than is there.
+		try (FileChannel channel = FileChannel.open(active, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			channel.write(ByteBuffer.allocate(14).putInt(200).putInt(0).flip());
+		}
+
+		try (MessageJournal journal = new MessageJournal(directory)) {
+			assertEquals(4, journal.getLastSequence());
+			assertEquals(size, Files.size(active));
+
+			appendAll(journal, 5, 1);
+			assertContiguous(journal.read(0, 100), 0, 5);
+		}
+	}
+
+	@Test
+	public void truncatesCorruptRecordAtTheTail() throws IOException {
+		try (MessageJournal journal = new MessageJournal(directory)) {
+			appendAll(journal, 0, 5);
+		}
+		Path active = lastSegment();
+
+		// Flip the last byte of the last record's text, so its CRC no longer matches.
+		try (FileChannel channel = FileChannel.open(active, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer last = ByteBuffer.allocate(1);
+			channel.read(last, channel.size() - 1);
+			channel.write(ByteBuffer.wrap(new byte[]{(byte) ~last.get(0)}), channel.size() - 1);
+		}
+
+		try (MessageJournal journal = new MessageJournal(directory)) {
+			assertEquals(3, journal.getLastSequence());
+			assertContiguous(journal.read(0, 100), 0, 3);
+
+			// The lost sequence number is handed out again.
+			appendAll(journal, 4, 1);
+			assertContiguous(journal.read(0, 100), 0, 4);
+		}
+	}
+
+	@Test
+	public void rollsSegmentsAndDropsTheOldest() throws IOException {
+		try (MessageJournal journal = new MessageJournal(directory)) {
+			appendAll(journal, 0, 300);
+			assertEquals(299, journal.getLastSequence());
+		}
+
+		try (MessageJournal journal = new MessageJournal(directory)) {
+			// Listed after reopening, which applies retention again.
+			List<Path> logs = logs();
+			assertTrue(logs.size() >= 3, "expected several segments, found " + logs.size());
+			long oldest = base(logs.get(0));
+			assertTrue(oldest > 0, "oldest segment should have been deleted");
+
+			// Every segment is named after its first entry.
+			for (Path log : logs) {
+				long base = base(log);
+				assertEquals(base, journal.read(base, 1).get(0).getSequence());
+			}
+			assertContiguous(journal.read(oldest, 1000), oldest, 299);
+
+			long total = 0;
+			for (Path log : logs) {
+				total += Files.size(log);
+			}
+			assertTrue(total <= 16384, "retention should keep the log under its limit, found " + total);
+		}
+	}
+
+	@Test
+	public void readsAcrossSegments() throws IOException {
+		try (MessageJournal journal = new MessageJournal(directory)) {
+			appendAll(journal, 0, 300);
+
+			// Start inside the oldest kept segment and run through every newer one.
+			long from = base(logs().get(0)) + 3;
+			List<MessageJournal.Entry> entries = journal.read(from, 1000);
+			assertContiguous(entries, from, 299);
+
+			// A limit stops the read partway, even in the middle of a segment.
+			assertContiguous(journal.read(from, 50), from, from + 49);
+			assertContiguous(journal.tail(80), 220, 299);
+		}
+	}
+
+	@Test
+	public void cutsNamesThatDontFitTheirLength() throws IOException {
+		// 70000 bytes would wrap a short length prefix and garble the rest of the record.
+		String sender = "é".repeat(35000);
+		try (MessageJournal journal = new MessageJournal(directory)) {
+			journal.append(MessageType.TEXT, sender, "bob", text(0));
+		}
+
+		try (MessageJournal journal = new MessageJournal(directory)) {
+			assertEquals(0, journal.getLastSequence());
+			MessageJournal.Entry entry = journal.read(0, 1).get(0);
+			assertEquals("é".repeat(32767), entry.getSender());
+			assertEquals("bob", entry.getRecipient());
+			assertEquals(text(0), entry.getText());
+
+			appendAll(journal, 1, 3);
+			assertContiguous(journal.read(1, 100), 1, 3);
+		}
+	}
+
+	/**
+	 * Appends count entries whose text names their expected sequence, then
+	 * waits until they are all on disk.
+	 */
+	private static void appendAll(MessageJournal journal, long first, int count) {
+		for (long sequence = first; sequence < first + count; sequence++) {
+			journal.append(MessageType.TEXT, "alice", "", text(sequence));
+		}
+
+		long last = first + count - 1;
+		long deadline = System.nanoTime() + 10_000_000_000L;
+		while (journal.getLastSequence() < last) {
+			assertTrue(System.nanoTime() < deadline, "journal never reached sequence " + last);
+			Thread.onSpinWait();
+		}
+	}
+
+	/**
+	 * Checks that entries run from first to last without gaps, each with the
+	 * text it was appended with.
+	 */
+	private static void assertContiguous(List<MessageJournal.Entry> entries, long first, long last) {
+		assertEquals(last - first + 1, entries.size());
+		for (int i = 0; i < entries.size(); i++) {
+			assertEquals(first + i, entries.get(i).getSequence());
+			assertEquals(text(first + i), entries.get(i).getText());
+		}
+	}
+
+	/**
+	 * Text of the entry appended with a given sequence, long enough that a few
+	 * hundred of them fill several segments.
+	 */
+	private static String text(long sequence) {
+		return "message " + sequence + " " + "x".repeat(100);
+	}
+
+	private List<Path> logs() throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter((file) -> file.toString().endsWith(".log")).sorted().collect(Collectors.toList());
+		}
+	}
+
+	private Path lastSegment() throws IOException {
+		List<Path> logs = logs();
+		return logs.get(logs.size() - 1);
+	}
+
+	private static long base(Path log) {
+		String name = log.getFileName().toString();
+		return Long.parseLong(name.substring(0, name.length() - 4));
+	}
+}
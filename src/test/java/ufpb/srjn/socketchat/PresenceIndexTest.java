@@ -0,0 +1,99 @@
+package ufpb.srjn.socketchat;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for PresenceIndex pages and change logs, with the default page size
+ * of 100 and log of 1024 changes.
+ *
+ * @author samuel
+ */
+public class PresenceIndexTest {
+
+	private final PresenceIndex presence = new PresenceIndex();
+
+	@Test
+	public void pagesThroughEveryone() {
+		for (int i = 0; i < 250; i++) {
+			presence.joined(String.format("user%03d", i));
+		}
+
+		Frame first = presence.page("", 1);
+		assertEquals(MessageType.TEXT, first.getType());
+		assertTrue(first.getText().startsWith("*** Connected clients (page 1 of 3): user000 user001 "));
+		assertTrue(first.getText().endsWith(" user099 "));
+
+		Frame last = presence.page("", 3);
+		assertTrue(last.getText().startsWith("*** Connected clients (page 3 of 3): user200 "));
+		assertTrue(last.getText().endsWith(" user249 "));
+		assertEquals(50, words(last.getText()) - words("*** Connected clients (page 3 of 3):"));
+	}
+
+	@Test
+	public void pagesByPrefix() {
+		presence.joined("bob");
+		presence.joined("alice");
+		presence.joined("bobby");
+		presence.joined("carol");
+		presence.joined("bo");
+
+		assertEquals("*** Connected clients starting with bob (page 1 of 1): bob bobby ", presence.page("bob", 1).getText());
+		assertEquals("*** Connected clients starting with zed (page 1 of 1): ", presence.page("zed", 1).getText());
+	}
+
+	@Test
+	public void pageAfterTheLastIsAnError() {
+		presence.joined("alice");
+
+		Frame frame = presence.page("", 2);
+		assertEquals(MessageType.ERROR, frame.getType());
+		assertEquals("There is no page 2, only 1.", frame.getText());
+
+		// Large page numbers don't overflow into a valid page.
+		assertEquals(MessageType.ERROR, presence.page("", Integer.MAX_VALUE).getType());
+	}
+
+	@Test
+	public void sinceReturnsOnlyNewerChanges() {
+		presence.joined("alice");
+		presence.joined("bob");
+		presence.renamed("bob", "robert");
+		presence.left("alice");
+
+		assertEquals("*** Presence v4: +alice +bob -bob +robert -alice", presence.since(0).getText());
+		assertEquals("*** Presence v4: -bob +robert -alice", presence.since(2).getText());
+		assertEquals("*** Presence v4:", presence.since(4).getText());
+	}
+
+	@Test
+	public void sinceFallsBackToTheFullList() {
+		presence.joined("alice");
+		presence.joined("bob");
+
+		// A version from the future can't be answered with changes.
+		assertEquals("*** Presence v2 (full): alice bob", presence.since(7).getText());
+
+		// Nor can one older than the change log.
+		for (int i = 0; i < 1100; i++) {
+			presence.joined("user" + i);
+			presence.left("user" + i);
+		}
+		assertTrue(presence.since(0).getText().startsWith("*** Presence v2202 (full): alice bob"));
+		assertTrue(presence.since(2200).getText().startsWith("*** Presence v2202: "));
+	}
+
+	@Test
+	public void unchangedNamesDontBumpTheVersion() {
+		presence.joined("alice");
+		presence.joined("alice");
+		presence.left("bob");
+
+		assertEquals("*** Presence v1:", presence.since(1).getText());
+	}
+
+	private static int words(String text) {
+		return text.trim().split(" +").length;
+	}
+}
@@ -0,0 +1,66 @@
+package ufpb.srjn.socketchat;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for RateLimiter with the default budgets: bursts of 40 commands, 10
+ * broadcasts and 20 private messages.
+ *
+ * @author samuel
+ */
+public class RateLimiterTest {
+
+	private final RateLimiter limiter = new RateLimiter();
+
+	@Test
+	public void broadcastsHaveTheirOwnBudget() {
+		RateLimiter.Budget budget = limiter.budget();
+		for (int i = 0; i < 10; i++) {
+			assertEquals(0, limiter.acquire(budget, "send -all hello"));
+		}
+		assertTrue(limiter.acquire(budget, "send -room #lobby hello") > 0);
+
+		// Private messages are still allowed.
+		assertEquals(0, limiter.acquire(budget, "send -user bob hello"));
+	}
+
+	@Test
+	public void refusedCommandsCostNothing() {
+		RateLimiter.Budget budget = limiter.budget();
+		for (int i = 0; i < 10; i++) {
+			assertEquals(0, limiter.acquire(budget, "send -all hello"));
+		}
+		for (int i = 0; i < 5; i++) {
+			assertTrue(limiter.acquire(budget, "send -all hello") > 0);
+		}
+
+		// Only the 10 broadcasts that went through were charged as commands.
+		for (int i = 0; i < 30; i++) {
+			assertEquals(0, limiter.acquire(budget, "list"), "command " + i);
+		}
+		assertTrue(limiter.acquire(budget, "list") > 0);
+	}
+
+	@Test
+	public void matchesWholeWords() {
+		RateLimiter.Budget budget = limiter.budget();
+
+		// Not a broadcast, so only the command budget applies.
+		for (int i = 0; i < 20; i++) {
+			assertEquals(0, limiter.acquire(budget, "send -allx hello"));
+		}
+	}
+
+	@Test
+	public void clientsDontShareBudgets() {
+		RateLimiter.Budget first = limiter.budget();
+		RateLimiter.Budget second = limiter.budget();
+		for (int i = 0; i < 20; i++) {
+			assertEquals(0, limiter.acquire(first, "send -user bob hello"));
+		}
+		assertTrue(limiter.acquire(first, "send -user bob hello") > 0);
+		assertEquals(0, limiter.acquire(second, "send -user bob hello"));
+	}
+}
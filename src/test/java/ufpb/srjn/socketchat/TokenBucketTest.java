@@ -0,0 +1,71 @@
+package ufpb.srjn.socketchat;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for TokenBucket. Rates are kept at one token per second, so refills
+ * never happen while a test runs.
+ *
+ * @author samuel
+ */
+public class TokenBucketTest {
+
+	@Test
+	public void allowsAFullBurstThenWaits() {
+		TokenBucket bucket = new TokenBucket(1, 5);
+		for (int i = 0; i < 5; i++) {
+			assertEquals(0, bucket.acquire(), "token " + i + " of the burst");
+		}
+
+		long wait = bucket.acquire();
+		assertTrue(wait > 0);
+		assertTrue(wait <= TimeUnit.SECONDS.toNanos(1), "never more than one interval away, was " + wait);
+	}
+
+	@Test
+	public void refusedAcquireTakesNothing() {
+		TokenBucket bucket = new TokenBucket(1, 2);
+		assertEquals(0, bucket.acquire());
+		assertEquals(0, bucket.acquire());
+
+		// Asking again while empty doesn't push the next token further away.
+		long first = bucket.acquire();
+		long second = bucket.acquire();
+		assertTrue(first > 0);
+		assertTrue(second <= first);
+	}
+
+	@Test
+	public void refundGivesATokenBack() {
+		TokenBucket bucket = new TokenBucket(1, 3);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(0, bucket.acquire());
+		}
+		assertTrue(bucket.acquire() > 0);
+
+		bucket.refund();
+		assertEquals(0, bucket.acquire());
+		assertTrue(bucket.acquire() > 0);
+	}
+
+	@Test
+	public void burstOfOneAllowsASingleToken() {
+		TokenBucket bucket = new TokenBucket(1, 0);
+		assertEquals(0, bucket.acquire());
+		assertTrue(bucket.acquire() > 0);
+	}
+
+	@Test
+	public void refillsOverTime() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(100, 1);
+		assertEquals(0, bucket.acquire());
+		long wait = bucket.acquire();
+		assertTrue(wait > 0);
+
+		TimeUnit.NANOSECONDS.sleep(wait + TimeUnit.MILLISECONDS.toNanos(5));
+		assertEquals(0, bucket.acquire());
+	}
+}